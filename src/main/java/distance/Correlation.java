@@ -2,17 +2,71 @@
 
 package distance;
 
-public class Correlation implements PixelPairs {
+import java.util.Arrays;
+
+public class Correlation implements PixelPairsWithGradient {
 
 	private double sumX, sumY, sumXY,
 		sumXSquared, sumYSquared;
 	private long count;
 	private static boolean verbose = !true;
 
+	// the sums of dv2, v1 * dv2 and v2 * dv2 for each parameter
+	private double[] sumDY = new double[0], sumXDY = new double[0],
+		sumYDY = new double[0];
+
 	public void reset() {
 		sumX = sumY = sumXY = 0;
 		sumXSquared = sumYSquared = 0;
 		count = 0;
+		Arrays.fill(sumDY, 0);
+		Arrays.fill(sumXDY, 0);
+		Arrays.fill(sumYDY, 0);
+	}
+
+	public void reset(int parameters) {
+		sumDY = new double[parameters];
+		sumXDY = new double[parameters];
+		sumYDY = new double[parameters];
+		reset();
+	}
+
+	public void add(float v1, float v2, double[] derivatives2) {
+		add(v1, v2);
+		for (int i = 0; i < sumDY.length; i++) {
+			sumDY[i] += derivatives2[i];
+			sumXDY[i] += v1 * derivatives2[i];
+			sumYDY[i] += v2 * derivatives2[i];
+		}
+	}
+
+	/*
+	 * With r = numerator / sqrt(varX * varY), where only the terms
+	 * involving Y depend on the parameters:
+	 *
+	 *   dr = d numerator / sqrt(varX * varY) - r * d varY / (2 varY)
+	 *
+	 * and the distance is 1 - r.
+	 */
+	public void getGradient(double[] gradient) {
+		double n2 = count * count;
+		double numerator = (sumXY/count) - (sumX * sumY) / n2;
+		double varX = (sumXSquared / count) - (sumX * sumX) / n2;
+		double varY = (sumYSquared / count) - (sumY * sumY) / n2;
+		double denominator = Math.sqrt(varX) * Math.sqrt(varY);
+		for (int i = 0; i < sumDY.length; i++) {
+			if (!(denominator > 0.00000001)) {
+				gradient[i] = 0;
+				continue;
+			}
+			double dNumerator = sumXDY[i] / count
+				- sumX * sumDY[i] / n2;
+			double dVarY = 2 * sumYDY[i] / count
+				- 2 * sumY * sumDY[i] / n2;
+			double r = numerator / denominator;
+			gradient[i] = -(dNumerator / denominator
+					- r * dVarY / (2 * varY));
+		}
 	}
 
 	public void add(float v1, float v2) {
@@ -26,6 +80,27 @@ public class Correlation implements PixelPairs {
 		count++;
 	}
 
+	public PixelPairs duplicate() {
+		Correlation result = new Correlation();
+		result.reset(sumDY.length);
+		return result;
+	}
+
+	public void merge(PixelPairs other) {
+		Correlation o = (Correlation)other;
+		sumX += o.sumX;
+		sumY += o.sumY;
+		sumXY += o.sumXY;
+		sumXSquared += o.sumXSquared;
+		sumYSquared += o.sumYSquared;
+		count += o.count;
+		for (int i = 0; i < sumDY.length; i++) {
+			sumDY[i] += o.sumDY[i];
+			sumXDY[i] += o.sumXDY[i];
+			sumYDY[i] += o.sumYDY[i];
+		}
+	}
+
 	public float correlation() {
 
 		float result = 0;
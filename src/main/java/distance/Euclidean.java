@@ -2,15 +2,44 @@
 
 package distance;
 
-public class Euclidean implements PixelPairs {
+import java.util.Arrays;
+
+public class Euclidean implements PixelPairsWithGradient {
 
 	private float sum;
 	private long count;
 	private static boolean verbose = !true;
 
+	// the sums of (v1 - v2) * dv2 for each parameter
+	private double[] sumDiffDerivative = new double[0];
+
 	public void reset() {
 		sum=0;
 		count=0;
+		Arrays.fill(sumDiffDerivative, 0);
+	}
+
+	public void reset(int parameters) {
+		sumDiffDerivative = new double[parameters];
+		reset();
+	}
+
+	public void add(float v1, float v2, double[] derivatives2) {
+		add(v1, v2);
+		double diff = v1 - v2;
+		for (int i = 0; i < sumDiffDerivative.length; i++)
+			sumDiffDerivative[i] += diff * derivatives2[i];
+	}
+
+	/*
+	 * d sqrt(sum / count) = d sum / (2 * count * distance), and
+	 * d sum = -2 * sum of (v1 - v2) * dv2
+	 */
+	public void getGradient(double[] gradient) {
+		double distance = distance();
+		for (int i = 0; i < sumDiffDerivative.length; i++)
+			gradient[i] = distance > 0 ?
+				-sumDiffDerivative[i] / (count * distance) : 0;
 	}
 
 	public void add(float v1, float v2) {
@@ -21,6 +50,20 @@ public class Euclidean implements PixelPairs {
 		count++;
 	}
 
+	public PixelPairs duplicate() {
+		Euclidean result = new Euclidean();
+		result.reset(sumDiffDerivative.length);
+		return result;
+	}
+
+	public void merge(PixelPairs other) {
+		Euclidean o = (Euclidean)other;
+		sum += o.sum;
+		count += o.count;
+		for (int i = 0; i < sumDiffDerivative.length; i++)
+			sumDiffDerivative[i] += o.sumDiffDerivative[i];
+	}
+
 	public float distance() {
 		if (verbose) {
 			System.err.println("calculated sum: " + Math.sqrt(sum/count));
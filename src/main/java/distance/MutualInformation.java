@@ -2,6 +2,8 @@
 
 package distance;
 
+import java.util.Arrays;
+
 /*
 
   For dealing with images of depth greater than 8 bits, we need to bin
@@ -35,17 +37,29 @@ public class MutualInformation implements PixelPairs {
         private float minimum;
         private float maximum;
 	private float width;
-	long joint[];
+	int joint[];
 	private int count;
         private int bins;
 	
-	// So that this is as efficient as possible, 
+	// So that this is as efficient as possible, the bin of a value is
+	// looked up in tables (see initBinTables()) instead of computed.
+
+	/*
+	 * firstBin[n - tableOffset] is the bin of the integral value n, and
+	 * threshold[b] is the smallest value which falls into a bin >= b.
+	 */
+	private int tableOffset;
+	private int[] firstBin;
+	private float[] threshold;
+
+	private final static int MAX_TABLE_SIZE = 1 << 20;
 
 	public MutualInformation(float minimumValue, float maximumValue, int bins) {
 		this.minimum = minimumValue;
 		this.maximum = maximumValue;
 		this.width = maximumValue - minimumValue;
 		this.bins = bins;		
+		initBinTables();
 	}
 
 	// The default constructor is for 8 bit images.
@@ -54,7 +68,10 @@ public class MutualInformation implements PixelPairs {
 	}
 
 	public void reset() {
-		joint = new long[bins * bins];
+		if (joint == null || joint.length != bins * bins)
+			joint = new int[bins * bins];
+		else
+			Arrays.fill(joint, 0);
 		count = 0;
 	}
 
@@ -69,16 +86,129 @@ public class MutualInformation implements PixelPairs {
 		if( v2 > maximum )
 			throw new RuntimeException("v2 greater than maximum");
 		*/
-		int i1 = (int)Math.floor((v1 - minimum) * bins / width);
-		int i2 = (int)Math.floor((v2 - minimum) * bins / width);
-		if( i1 >= bins )
-			i1 = bins - 1;
-		if( i2 >= bins )
-			i2 = bins - 1;
-		joint[i1 * bins + i2]++;
+		joint[bin(v1) * bins + bin(v2)]++;
+		count++;
+	}
+
+	/*
+	 * Add a pair whose bins are known already, e.g. from a volume
+	 * which was quantized with bin() beforehand.
+	 */
+	public void addBins(int bin1, int bin2) {
+		joint[bin1 * bins + bin2]++;
 		count++;
 	}
 
+	public int getBins() {
+		return bins;
+	}
+
+	/* whether the other measure puts every value into the same bin */
+	public boolean sameBinning(MutualInformation other) {
+		return other.minimum == minimum && other.maximum == maximum &&
+			other.bins == bins;
+	}
+
+	/* the bin of a value, exactly as add() always computed it */
+	final int binExact(float v) {
+		int i = (int)Math.floor((v - minimum) * bins / width);
+		if( i >= bins )
+			i = bins - 1;
+		return i;
+	}
+
+	/* the same as binExact(v), but mostly without a division */
+	public final int bin(float v) {
+		if (firstBin == null || !(v >= minimum))
+			return binExact(v);
+		int n = (int)v;
+		if (n > v)
+			n--;
+		n -= tableOffset;
+		if (n < 0 || n >= firstBin.length)
+			return binExact(v);
+		int b = firstBin[n];
+		while (b + 1 < bins && v >= threshold[b + 1])
+			b++;
+		return b;
+	}
+
+	/*
+	 * Since binExact() is monotonic, each bin starts at a threshold,
+	 * which can be found by bisecting the float values.  Together with
+	 * the bin of every integral value, this gives the bin of any value
+	 * in the range with a lookup and (mostly) one comparison.
+	 */
+	private void initBinTables() {
+		if (!(width > 0) || bins < 1)
+			return;
+		double first = Math.floor(minimum);
+		double last = Math.ceil(maximum);
+		if (last - first + 1 > MAX_TABLE_SIZE)
+			return;
+		tableOffset = (int)first;
+		firstBin = new int[(int)(last - first) + 1];
+		for (int n = 0; n < firstBin.length; n++)
+			firstBin[n] = n + tableOffset < minimum ? 0 :
+				binExact(n + tableOffset);
+
+		threshold = new float[bins];
+		threshold[0] = minimum;
+		int lower = ordinal(minimum);
+		for (int b = 1; b < bins; b++) {
+			int upper = ordinal(Float.MAX_VALUE);
+			if (binExact(Float.MAX_VALUE) < b) {
+				threshold[b] = Float.POSITIVE_INFINITY;
+				continue;
+			}
+			while (lower < upper) {
+				int middle = (int)(((long)lower + upper) >> 1);
+				if (binExact(fromOrdinal(middle)) >= b)
+					upper = middle;
+				else
+					lower = middle + 1;
+			}
+			threshold[b] = fromOrdinal(lower);
+		}
+	}
+
+	/* maps floats to ints, keeping the order */
+	private static int ordinal(float f) {
+		int bits = Float.floatToIntBits(f);
+		return bits < 0 ? Integer.MIN_VALUE - bits : bits;
+	}
+
+	private static float fromOrdinal(int o) {
+		return Float.intBitsToFloat(o < 0 ? Integer.MIN_VALUE - o : o);
+	}
+
+	public PixelPairs duplicate() {
+		MutualInformation result = new MutualInformation(this);
+		result.reset();
+		return result;
+	}
+
+	/* the tables are not modified, so they can be shared */
+	private MutualInformation(MutualInformation other) {
+		minimum = other.minimum;
+		maximum = other.maximum;
+		width = other.width;
+		bins = other.bins;
+		tableOffset = other.tableOffset;
+		firstBin = other.firstBin;
+		threshold = other.threshold;
+	}
+
+	public void merge(PixelPairs other) {
+		MutualInformation o = (MutualInformation)other;
+		if (o.bins != bins)
+			throw new RuntimeException("Cannot merge mutual "
+				+ "information with different numbers of bins");
+		for (int i = 0; i < joint.length; i++)
+			joint[i] += o.joint[i];
+		count += o.count;
+	}
+
 	public float getEntropy1() {
 		return h1;
 	}
@@ -93,26 +223,53 @@ public class MutualInformation implements PixelPairs {
 
 	float h1, h2, h12;
 
+	private final static double LOG2 = Math.log(2);
+
+	/*
+	 * p * log2(p) for p = c / count, cached for the small counts c;
+	 * these are by far the most frequent entries in the joint
+	 * histogram.  The cache is valid as long as count does not change
+	 * (which is the case when evaluating the same voxels repeatedly).
+	 */
+	private double[] pLogP;
+	private int pLogPCount = -1;
+
+	private final static int P_LOG_P_SIZE = 1 << 16;
+
+	private double pLogP(long c) {
+		if (c < P_LOG_P_SIZE) {
+			if (pLogPCount != count) {
+				if (pLogP == null)
+					pLogP = new double[P_LOG_P_SIZE];
+				Arrays.fill(pLogP, Double.NaN);
+				pLogPCount = count;
+			}
+			double result = pLogP[(int)c];
+			if (result == result)
+				return result;
+			float p = c / (float)count;
+			return pLogP[(int)c] = p * (Math.log(p) / LOG2);
+		}
+		float p = c / (float)count;
+		return p * (Math.log(p) / LOG2);
+	}
+
 	public float mutualInformation() {
 		
 		float h12 = 0, h1 = 0, h2 = 0;
 		for(int i = 0; i < bins; i++) {
 			long p1 = 0, p2 = 0;
 			for(int j = 0; j < bins; j++) {
-				float p = joint[i * bins + j] / (float)count;
-				if(p > 0)
-					h12 -= p * (Math.log(p) / Math.log(2));
-				p1 += joint[i * bins + j];
+				int c = joint[i * bins + j];
+				if(c > 0)
+					h12 -= pLogP(c);
+				p1 += c;
 				p2 += joint[j * bins + i];
 			}
-			if(p1 > 0) {
-				float p = p1 / (float)count;
-				h1 -= p	* (Math.log(p) / Math.log(2));
-			}
-			if(p2 > 0) {
-				float p = p2 / (float)count;
-				h2 -= p * (Math.log(p) / Math.log(2));
-			}
+			if(p1 > 0)
+				h1 -= pLogP(p1);
+			if(p2 > 0)
+				h2 -= pLogP(p2);
 		}
 
 		this.h1 = h1;
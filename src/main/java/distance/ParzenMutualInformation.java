@@ -0,0 +1,218 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package distance;
+
+import java.util.Arrays;
+
+/*
+  Mutual information with a Parzen window estimate of the joint
+  histogram, as described in
+
+    Mattes D, Haynor DR, Vesselle H, Lewellen TK, Eubank W:
+    PET-CT image registration in the chest using free-form
+    deformations. IEEE Trans Med Imaging 22(1), 2003
+
+  The values of the first (reference) image are simply binned, but each
+  value of the second (transformed) image is spread over four adjacent
+  bins with a cubic B-spline.  This makes the distance a smooth
+  function of the second values, so that its derivatives can be
+  computed analytically.  As with MutualInformation, the distance is
+  the negated mutual information (in bits).
+*/
+
+public class ParzenMutualInformation implements PixelPairsWithGradient {
+	private float minimum;
+	private float maximum;
+	private int bins;
+
+	/*
+	 * The second values are mapped to [0, bins - 1]; the spline
+	 * reaches one bin below and two bins above, hence the padding.
+	 */
+	private final static int PADDING_BELOW = 1, PADDING_ABOVE = 2;
+	private int columns;
+
+	private double[] joint;
+	private double[] jointDerivatives;
+	private int parameters;
+	private long count;
+
+	public ParzenMutualInformation(float minimumValue, float maximumValue,
+			int bins) {
+		if (bins < 2 || !(maximumValue > minimumValue))
+			throw new IllegalArgumentException("Invalid binning: "
+				+ minimumValue + " - " + maximumValue
+				+ " in " + bins + " bins");
+		this.minimum = minimumValue;
+		this.maximum = maximumValue;
+		this.bins = bins;
+		columns = bins + PADDING_BELOW + PADDING_ABOVE;
+	}
+
+	// The default constructor is for 8 bit images.
+	public ParzenMutualInformation() {
+		this(0, 255, 64);
+	}
+
+	public void reset() {
+		reset(parameters);
+	}
+
+	public void reset(int parameters) {
+		this.parameters = parameters;
+		if (joint == null)
+			joint = new double[bins * columns];
+		else
+			Arrays.fill(joint, 0);
+		if (jointDerivatives == null || jointDerivatives.length !=
+				bins * columns * parameters)
+			jointDerivatives = new double[bins * columns * parameters];
+		else
+			Arrays.fill(jointDerivatives, 0);
+		count = 0;
+	}
+
+	private int bin1(float v1) {
+		int i = (int)Math.floor((v1 - minimum) * bins
+				/ (maximum - minimum));
+		return i < 0 ? 0 : i >= bins ? bins - 1 : i;
+	}
+
+	/* returns the derivative of the position by v2 (0 if clamped) */
+	private double position2(float v2, double[] position) {
+		double scale = (bins - 1) / (double)(maximum - minimum);
+		double p = (v2 - minimum) * scale;
+		if (p < 0) {
+			position[0] = 0;
+			return 0;
+		}
+		if (p > bins - 1) {
+			position[0] = bins - 1;
+			return 0;
+		}
+		position[0] = p;
+		return scale;
+	}
+
+	/* the cubic B-spline and its derivative */
+	static double bSpline(double t) {
+		t = Math.abs(t);
+		if (t < 1)
+			return (4 - 6 * t * t + 3 * t * t * t) / 6;
+		if (t < 2) {
+			double u = 2 - t;
+			return u * u * u / 6;
+		}
+		return 0;
+	}
+
+	static double bSplineDerivative(double t) {
+		double sign = t < 0 ? -1 : 1;
+		t = Math.abs(t);
+		if (t < 1)
+			return sign * (-2 * t + 1.5 * t * t);
+		if (t < 2) {
+			double u = 2 - t;
+			return -sign * u * u / 2;
+		}
+		return 0;
+	}
+
+	private final double[] position = new double[1];
+
+	public void add(float v1, float v2) {
+		add(v1, v2, null);
+	}
+
+	public void add(float v1, float v2, double[] derivatives2) {
+		int row = bin1(v1) * columns + PADDING_BELOW;
+		double scale = position2(v2, position);
+		double p = position[0];
+		int first = (int)Math.floor(p) - 1;
+		for (int kappa = first; kappa < first + 4; kappa++) {
+			int cell = row + kappa;
+			joint[cell] += bSpline(p - kappa);
+			if (derivatives2 == null || scale == 0)
+				continue;
+			double d = bSplineDerivative(p - kappa) * scale;
+			int offset = cell * parameters;
+			for (int i = 0; i < parameters; i++)
+				jointDerivatives[offset + i] +=
+					d * derivatives2[i];
+		}
+		count++;
+	}
+
+	public PixelPairs duplicate() {
+		ParzenMutualInformation result =
+			new ParzenMutualInformation(minimum, maximum, bins);
+		result.reset(parameters);
+		return result;
+	}
+
+	public void merge(PixelPairs other) {
+		ParzenMutualInformation o = (ParzenMutualInformation)other;
+		if (o.bins != bins || o.parameters != parameters)
+			throw new RuntimeException("Cannot merge mutual "
+				+ "information with different binnings");
+		for (int i = 0; i < joint.length; i++)
+			joint[i] += o.joint[i];
+		for (int i = 0; i < jointDerivatives.length; i++)
+			jointDerivatives[i] += o.jointDerivatives[i];
+		count += o.count;
+	}
+
+	private final static double LOG2 = Math.log(2);
+
+	/* the marginal histogram of the second values */
+	private double[] marginal2() {
+		double[] result = new double[columns];
+		for (int i = 0; i < bins; i++)
+			for (int j = 0; j < columns; j++)
+				result[j] += joint[i * columns + j];
+		return result;
+	}
+
+	public float mutualInformation() {
+		double[] p2 = marginal2();
+		double result = 0;
+		for (int i = 0; i < bins; i++) {
+			double p1 = 0;
+			for (int j = 0; j < columns; j++)
+				p1 += joint[i * columns + j];
+			for (int j = 0; j < columns; j++) {
+				double p = joint[i * columns + j];
+				if (p > 0)
+					result += p * Math.log(p * count
+							/ (p1 * p2[j]));
+			}
+		}
+		return (float)(result / count / LOG2);
+	}
+
+	public float distance() {
+		return -mutualInformation();
+	}
+
+	/*
+	 * Since the marginal histogram of the first values does not depend
+	 * on the parameters, and the joint probabilities always sum up to
+	 * one, the derivative of the mutual information boils down to
+	 *
+	 *   sum over all bins of dp(i, j) * log(p(i, j) / p2(j))
+	 */
+	public void getGradient(double[] gradient) {
+		double[] p2 = marginal2();
+		Arrays.fill(gradient, 0, parameters, 0);
+		for (int cell = 0; cell < joint.length; cell++) {
+			double p = joint[cell];
+			if (p <= 0)
+				continue;
+			double factor = Math.log(p / p2[cell % columns]) / LOG2;
+			int offset = cell * parameters;
+			for (int i = 0; i < parameters; i++)
+				gradient[i] -= jointDerivatives[offset + i]
+					* factor / count;
+		}
+	}
+}
@@ -7,5 +7,25 @@ public interface PixelPairs {
 	public void add(float value1, float value2);
 
 	public float distance();
-}
 
+	/*
+	 * A new, empty measure with the same parameters as this one, or
+	 * null if the measure cannot be copied; the callers then add all
+	 * pairs to this measure, in one thread.
+	 */
+	public default PixelPairs duplicate() {
+		return null;
+	}
+
+	/*
+	 * Add the pairs collected by another measure (obtained from
+	 * duplicate()) to this one.  For the measures which only count,
+	 * this is exactly the same as adding the pairs one by one; the
+	 * measures which sum floating point values can differ in the
+	 * last bits, as the sums are added in a different order.
+	 */
+	public default void merge(PixelPairs other) {
+		throw new RuntimeException(getClass().getName()
+			+ " cannot merge pairs");
+	}
+}
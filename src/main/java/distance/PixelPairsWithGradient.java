@@ -0,0 +1,22 @@
+package distance;
+
+/*
+ * A measure which can also tell the derivatives of its distance with
+ * respect to a number of parameters (e.g. those of a transformation),
+ * given the derivatives of the second value of each pair.
+ *
+ * When registering, value2 is the interpolated value of the transformed
+ * image, so its derivatives are the image gradient times the derivatives
+ * of the transformed coordinates; that way, the gradient costs about as
+ * much as one evaluation of the distance instead of two per parameter.
+ */
+public interface PixelPairsWithGradient extends PixelPairs {
+	// like reset(), but prepare for derivatives by that many parameters
+	public void reset(int parameters);
+
+	// derivatives2[i] is the derivative of value2 by parameter i
+	public void add(float value1, float value2, double[] derivatives2);
+
+	// the derivatives of distance() by the parameters
+	public void getGradient(double[] gradient);
+}
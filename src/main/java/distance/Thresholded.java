@@ -24,6 +24,18 @@ public class Thresholded implements PixelPairs {
 			count++;
 	}
 
+	public PixelPairs duplicate() {
+		Thresholded result = new Thresholded(0);
+		result.threshold = threshold;
+		return result;
+	}
+
+	public void merge(PixelPairs other) {
+		Thresholded o = (Thresholded)other;
+		count += o.count;
+		total += o.total;
+	}
+
 	public float distance() {
 		return count * 255 / (float)total;
 	}
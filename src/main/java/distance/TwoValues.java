@@ -27,6 +27,19 @@ public class TwoValues implements PixelPairs {
 			count++;
 	}
 
+	public PixelPairs duplicate() {
+		TwoValues result = new TwoValues(0, 0);
+		result.material1 = material1;
+		result.material2 = material2;
+		return result;
+	}
+
+	public void merge(PixelPairs other) {
+		TwoValues o = (TwoValues)other;
+		count += o.count;
+		total += o.total;
+	}
+
 	public float distance() {
 		return count * 255 / (float)total;
 	}
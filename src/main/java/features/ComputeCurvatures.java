@@ -37,6 +37,7 @@ import math3d.Eigensystem3x3Double;
 import math3d.Eigensystem3x3Float;
 import math3d.JacobiDouble;
 import math3d.JacobiFloat;
+import util.Parallel;
 
 /**
  * Principle Curvature Plugin for ImageJ
@@ -344,7 +345,15 @@ public class ComputeCurvatures implements Runnable
 
     }
 
-    private boolean cancelGeneration = false;
+    /* The Gaussian generated by run() or setup(): a FloatArray3D for
+       stacks, a FloatArray2D for single images, and null if it could
+       not be generated. */
+
+    public FloatArray getGaussian( ) {
+        return data;
+    }
+
+    private volatile boolean cancelGeneration = false;
 
     public void cancelGaussianGeneration( ) {
         cancelGeneration = true;
@@ -1300,12 +1309,25 @@ public class ComputeCurvatures implements Runnable
      * @param calibration Calibration data for the image, or null if we assume separation in all three dimensions is 1
      * @return FloatProcessor The folded image
      */
-    public FloatArray3D computeGaussianFastMirror(FloatArray3D input, float sigma,  GaussianGenerationCallback callback, Calibration calibration)
+    public FloatArray3D computeGaussianFastMirror(final FloatArray3D input, float sigma, final GaussianGenerationCallback callback, Calibration calibration)
     {
-        FloatArray3D output = new FloatArray3D(input.width, input.height, input.depth);
+        return computeGaussianFastMirror(input, new FloatArray3D(input.width, input.height, input.depth), sigma, callback, calibration);
+    }
 
-        float avg;
-        float kernelsumX = 0, kernelsumY = 0, kernelsumZ = 0;
+    /**
+     * The same, but folding into output, which must have the same
+     * dimensions as input; it can be input itself, since every pass
+     * copies what it reads before writing it.
+     *
+     * @param input FloatArray3D which will be folded
+     * @param output FloatArray3D to hold the folded image
+     * @param sigma Standard Derivation of the gaussian function
+     * @param calibration Calibration data for the image, or null if we assume separation in all three dimensions is 1
+     * @return FloatArray3D output, or null if the generation was cancelled
+     */
+    public FloatArray3D computeGaussianFastMirror(final FloatArray3D input, final FloatArray3D output, float sigma, final GaussianGenerationCallback callback, Calibration calibration)
+    {
+        final int width = input.width, height = input.height, depth = input.depth;
 
         float pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
 
@@ -1315,115 +1337,184 @@ public class ComputeCurvatures implements Runnable
             pixelDepth = (float)calibration.pixelDepth;
         }
 
-        float[] kernelX = createGaussianKernel1D(sigma / pixelWidth, true);
-        float[] kernelY = createGaussianKernel1D(sigma / pixelHeight, true);
-        float[] kernelZ = createGaussianKernel1D(sigma / pixelDepth, true);
-        int filterSizeX = kernelX.length;
-        int filterSizeY = kernelY.length;
-        int filterSizeZ = kernelZ.length;
-
-        // get kernel sums
-        for (int i = 0; i < kernelX.length; i++)
-            kernelsumX += kernelX[i];
-        for (int i = 0; i < kernelY.length; i++)
-            kernelsumY += kernelY[i];
-        for (int i = 0; i < kernelZ.length; i++)
-            kernelsumZ += kernelZ[i];
-
-        double totalPoints = input.width * input.height * input.depth * 3;
-        long pointsDone = 0;
-
-        // fold in x
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int y = 0; y < input.height; y++)
-                for (int z = 0; z < input.depth; z++)
-                {
-                    avg = 0;
-
-                    if (x -filterSizeX / 2 >= 0 && x + filterSizeX / 2 < input.width)
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.get(x + f, y, z) * kernelX[f + filterSizeX / 2];
-                    else
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.getMirror(x + f, y, z) * kernelX[f + filterSizeX / 2];
-
-                    output.set(avg / kernelsumX, x, y, z);
-
+        final float[] kernelX = createGaussianKernel1D(sigma / pixelWidth, true);
+        final float[] kernelY = createGaussianKernel1D(sigma / pixelHeight, true);
+        final float[] kernelZ = createGaussianKernel1D(sigma / pixelDepth, true);
+        final float kernelsumX = kernelSum(kernelX);
+        final float kernelsumY = kernelSum(kernelY);
+        final float kernelsumZ = kernelSum(kernelZ);
+
+        // the mirrored positions, as in FloatArray3D.getMirror()
+        final int[] mirrorX = mirrorTable(width, kernelX.length / 2, width);
+        final int[] mirrorY = mirrorTable(height, kernelY.length / 2, height);
+        final int[] mirrorZ = mirrorTable(depth, kernelZ.length / 2, height);
+
+        final double totalPoints = (double)width * height * depth * 3;
+        final long[] pointsDone = new long[1];
+        final boolean[] cancelled = new boolean[1];
+
+        // fold in x, plane by plane
+        Parallel.forEach(depth, new Parallel.Loop() {
+            public void run(int z) {
+                if (!startGaussianPart(cancelled))
+                    return;
+                float[] line = gaussianBuffer(0, mirrorX.length);
+                for (int y = 0; y < height; y++) {
+                    int offset = output.getPos(0, y, z);
+                    for (int i = 0; i < mirrorX.length; i++)
+                        line[i] = input.data[offset + mirrorX[i]];
+                    convolveLine(line, 0, kernelX, kernelsumX, output.data, offset, width);
                 }
-            pointsDone += input.height * input.depth;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
-        }
-
-        // fold in y
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int z = 0; z < input.depth; z++)
-            {
-                float[] temp = new float[input.height];
-
-                for (int y = 0; y < input.height; y++)
-                {
-                    avg = 0;
-
-                    if (y -filterSizeY / 2 >= 0 && y + filterSizeY / 2 < input.height)
-                        for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                            avg += output.get(x, y + f, z) * kernelY[f + filterSizeY / 2];
-                    else
-                       for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                           avg += output.getMirror(x, y + f, z) * kernelY[f + filterSizeY / 2];
+                gaussianPartDone(callback, pointsDone, (long)width * height, totalPoints, true);
+            }
+        });
+        if (cancelled[0])
+            return null;
 
-                    temp[y] = avg / kernelsumY;
+        // fold in y, plane by plane, summing up whole rows
+        Parallel.forEach(depth, new Parallel.Loop() {
+            public void run(int z) {
+                if (!startGaussianPart(cancelled))
+                    return;
+                float[] plane = gaussianBuffer(0, width * height);
+                int offset = output.getPos(0, 0, z);
+                System.arraycopy(output.data, offset, plane, 0, width * height);
+                for (int y = 0; y < height; y++) {
+                    int row = output.getPos(0, y, z);
+                    for (int x = 0; x < width; x++)
+                        output.data[row + x] = 0;
+                    for (int f = 0; f < kernelY.length; f++) {
+                        int source = mirrorY[y + f] * width;
+                        float k = kernelY[f];
+                        for (int x = 0; x < width; x++)
+                            output.data[row + x] += plane[source + x] * k;
+                    }
+                    for (int x = 0; x < width; x++)
+                        output.data[row + x] /= kernelsumY;
                 }
+                gaussianPartDone(callback, pointsDone, (long)width * height, totalPoints, true);
+            }
+        });
+        if (cancelled[0])
+            return null;
 
-                for (int y = 0; y < input.height; y++)
-                    output.set(temp[y], x, y, z);
+        /* fold in z, row by row: blocks of the row's z-lines are
+           transposed into contiguous (mirror padded) lines, convolved,
+           and transposed back */
+        Parallel.forEach(height, new Parallel.Loop() {
+            public void run(int y) {
+                if (!startGaussianPart(cancelled))
+                    return;
+                int length = mirrorZ.length;
+                float[] lines = gaussianBuffer(1, GAUSSIAN_BLOCK * length);
+                float[] folded = gaussianBuffer(2, GAUSSIAN_BLOCK * depth);
+                for (int x0 = 0; x0 < width; x0 += GAUSSIAN_BLOCK) {
+                    int block = Math.min(GAUSSIAN_BLOCK, width - x0);
+                    for (int i = 0; i < length; i++) {
+                        int offset = output.getPos(x0, y, mirrorZ[i]);
+                        for (int b = 0; b < block; b++)
+                            lines[b * length + i] = output.data[offset + b];
+                    }
+                    for (int b = 0; b < block; b++)
+                        convolveLine(lines, b * length, kernelZ, kernelsumZ, folded, b * depth, depth);
+                    for (int z = 0; z < depth; z++) {
+                        int offset = output.getPos(x0, y, z);
+                        for (int b = 0; b < block; b++)
+                            output.data[offset + b] = folded[b * depth + z];
+                    }
+                }
+                gaussianPartDone(callback, pointsDone, (long)width * depth, totalPoints, false);
             }
-            pointsDone += input.depth * input.height;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
+        });
+        if (cancelled[0])
+            return null;
 
-        }
+        if( callback != null )
+            callback.proportionDone( 1.0 );
 
-        // fold in z
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int y = 0; y < input.height; y++)
-            {
-                float[] temp = new float[input.depth];
+        return output;
+    }
 
-                for (int z = 0; z < input.depth; z++)
-                {
-                    avg = 0;
+    /* The number of z-lines computeGaussianFastMirror() transposes at once */
+    private static final int GAUSSIAN_BLOCK = 64;
 
-                    if (z -filterSizeZ / 2 >= 0 && z + filterSizeZ / 2 < input.depth)
-                        for (int f = -filterSizeZ / 2; f <= filterSizeZ / 2; f++)
-                            avg += output.get(x, y, z + f) * kernelZ[f + filterSizeZ / 2];
-                    else
-                       for (int f = -filterSizeZ / 2; f <= filterSizeZ / 2; f++)
-                           avg += output.getMirror(x, y, z + f) * kernelZ[f + filterSizeZ / 2];
+    /* Scratch arrays of computeGaussianFastMirror(), reused by each thread */
+    private static final ThreadLocal<float[][]> gaussianBuffers = new ThreadLocal<float[][]>() {
+        protected float[][] initialValue() {
+            return new float[3][0];
+        }
+    };
 
-                    temp[z] = avg / kernelsumZ;
-                }
+    private static float[] gaussianBuffer(int which, int length) {
+        float[][] buffers = gaussianBuffers.get();
+        if (buffers[which].length < length)
+            buffers[which] = new float[length];
+        return buffers[which];
+    }
 
-                for (int z = 0; z < input.depth; z++)
-                    output.set(temp[z], x, y, z);
+    private static float kernelSum(float[] kernel) {
+        float sum = 0;
+        for (int i = 0; i < kernel.length; i++)
+            sum += kernel[i];
+        return sum;
+    }
 
+    /* The positions -radius, ..., n - 1 + radius of a line, mirrored
+       like in FloatArray3D.getMirror() (where negative positions
+       bounce between 0 and bounce - 1) */
+    static int[] mirrorTable(int n, int radius, int bounce) {
+        int[] result = new int[n + 2 * radius];
+        for (int i = 0; i < result.length; i++) {
+            int p = i - radius;
+            if (p >= n)
+                p = n - (p - n + 2);
+            if (p < 0) {
+                int tmp = 0;
+                int dir = 1;
+                while (p < 0) {
+                    tmp += dir;
+                    if (tmp == bounce - 1 || tmp == 0)
+                        dir *= -1;
+                    p++;
+                }
+                p = tmp;
             }
-            pointsDone += input.height * input.depth;
-            if(callback != null && pointsDone < totalPoints)
-                callback.proportionDone( pointsDone / totalPoints );
+            // only lines shorter than the kernel can get here
+            result[i] = Math.max(0, Math.min(n - 1, p));
+        }
+        return result;
+    }
 
+    /* Convolves the mirror padded line starting at lines[start],
+       summing up in the same order as the loops over getMirror() */
+    private static void convolveLine(float[] lines, int start, float[] kernel, float kernelsum, float[] result, int offset, int n) {
+        for (int x = 0; x < n; x++) {
+            float avg = 0;
+            for (int f = 0; f < kernel.length; f++)
+                avg += lines[start + x + f] * kernel[f];
+            result[offset + x] = avg / kernelsum;
         }
+    }
 
-        if( callback != null )
-            callback.proportionDone( 1.0 );
+    /* Whether a part of the Gaussian should be computed; once
+       cancelGaussianGeneration() was called, the remaining parts are
+       skipped, and computeGaussianFastMirror() returns null */
+    private boolean startGaussianPart(boolean[] cancelled) {
+        if (!cancelGeneration)
+            return true;
+        synchronized (cancelled) {
+            cancelled[0] = true;
+        }
+        return false;
+    }
 
-        return output;
+    /* Reports the progress (from one thread at a time) */
+    private static void gaussianPartDone(GaussianGenerationCallback callback, long[] pointsDone, long points, double totalPoints, boolean reportLast) {
+        synchronized (pointsDone) {
+            pointsDone[0] += points;
+            if (callback != null && (reportLast || pointsDone[0] < totalPoints))
+                callback.proportionDone( pointsDone[0] / totalPoints );
+        }
     }
 
     /**
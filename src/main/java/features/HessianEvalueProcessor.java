@@ -7,6 +7,9 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.process.FloatProcessor;
+import math3d.Eigensystem2x2Float;
+import math3d.Eigensystem3x3Float;
+import util.Parallel;
 
 public abstract class HessianEvalueProcessor implements GaussianGenerationCallback {
 
@@ -25,6 +28,9 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 		sigma = newSigma;
 	}
 
+	/* The measures are computed for several slices at the same time,
+	   so measureFromEvalues3D() must not change any state. */
+
 	public ImagePlus generateImage(ImagePlus original) {
 
 		Calibration calibration=original.getCalibration();
@@ -43,9 +49,9 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 		IJ.showStatus("Convolving with Gaussian \u03C3="+sigma+" (min. pixel separation: "+minimumSeparation+")...");
 		c.run();
 
-		int width = original.getWidth();
-		int height = original.getHeight();
-		int depth = original.getStackSize();
+		final int width = original.getWidth();
+		final int height = original.getHeight();
+		final int depth = original.getStackSize();
 
 		ImageStack stack = new ImageStack(width, height);
 
@@ -90,39 +96,36 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 
 		} else {
 
-			for (int z = 0; z < depth; ++z) {
-
-				float[] slice = new float[width * height];
-
-				if ((z >= 1) && (z < depth - 1)) {
-					for (int y = 1; y < height - 1; ++y) {
-						for (int x = 1; x < width - 1; ++x) {
-
-							boolean real = c.hessianEigenvaluesAtPoint3D(x, y, z,
-												     true, // order absolute
-												     evalues,
-												     normalize,
-												     false,
-												     sepX,
-												     sepY,
-												     sepZ);
-							int index = y * width + x;
-							float value = 0;
-							if( real )
-								value = measureFromEvalues3D(evalues);
-							slice[index] = value;
-							if( value < minResult )
-								minResult = value;
-							if( value > maxResult )
-								maxResult = value;
-						}
+			ComputeCurvatures.FloatArray gaussian = c.getGaussian();
+			if( gaussian == null )
+				return null;
+			final float[] data = ((ComputeCurvatures.FloatArray3D)gaussian).data;
+			final float[][] slices = new float[depth][];
+			final float[] minima = new float[depth];
+			final float[] maxima = new float[depth];
+			final int[] done = new int[1];
+
+			Parallel.forEach(depth, new Parallel.Loop() {
+				public void run(int z) {
+					slices[z] = new float[width * height];
+					minima[z] = Float.MAX_VALUE;
+					maxima[z] = Float.MIN_VALUE;
+					if ((z >= 1) && (z < depth - 1))
+						measureSlice3D(data, width, height, z, sigma, slices[z], minima, maxima);
+					synchronized (done) {
+						// at most about 100 updates
+						if (++done[0] * 100 / depth != (done[0] - 1) * 100 / depth)
+							IJ.showProgress(done[0] / (double) depth);
 					}
 				}
+			});
 
+			for (int z = 0; z < depth; ++z) {
 				FloatProcessor fp = new FloatProcessor(width, height);
-				fp.setPixels(slice);
+				fp.setPixels(slices[z]);
 				stack.addSlice(null, fp);
-				IJ.showProgress(z / (double) depth);
+				minResult = Math.min(minResult, minima[z]);
+				maxResult = Math.max(maxResult, maxima[z]);
 			}
 		}
 
@@ -137,4 +140,133 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 
 		return result;
 	}
+
+	/* Computes the measure for the inner voxels of the plane z of the
+	   Gaussian (with the given sigma), like
+	   ComputeCurvatures.hessianEigenvaluesAtPoint3D() ordering on
+	   absolute size, but reading the Hessian straight from the data
+	   with the offsets of the neighbours, and without allocating
+	   anything per voxel. */
+
+	void measureSlice3D(float[] data, int width, int height, int z,
+			double sigma, float[] slice, float[] minima,
+			float[] maxima) {
+		final int dx = 1, dy = width, dz = width * height;
+		final double sigmaSquared = sigma * sigma;
+		float[] evalues = new float[3];
+		float minResult = minima[z], maxResult = maxima[z];
+
+		for (int y = 1; y < height - 1; ++y) {
+			int i = z * dz + y * dy + 1;
+			for (int x = 1; x < width - 1; ++x, ++i) {
+				float temp = 2 * data[i];
+				float xx = data[i + dx] - temp + data[i - dx];
+				float yy = data[i + dy] - temp + data[i - dy];
+				float zz = data[i + dz] - temp + data[i - dz];
+				float xy = ((data[i + dx + dy] - data[i - dx + dy]) / 2
+					    - (data[i + dx - dy] - data[i - dx - dy]) / 2) / 2;
+				float xz = ((data[i + dx + dz] - data[i - dx + dz]) / 2
+					    - (data[i + dx - dz] - data[i - dx - dz]) / 2) / 2;
+				float yz = ((data[i + dy + dz] - data[i - dy + dz]) / 2
+					    - (data[i + dy - dz] - data[i - dy - dz]) / 2) / 2;
+				xx *= sigmaSquared;
+				yy *= sigmaSquared;
+				zz *= sigmaSquared;
+				xy *= sigmaSquared;
+				xz *= sigmaSquared;
+				yz *= sigmaSquared;
+
+				float value = 0;
+				if( Eigensystem3x3Float.findEvalues(xx, xy, xz, yy, yz, zz, evalues) ) {
+					orderOnAbsoluteSize(evalues);
+					if( normalize ) {
+						float divideBy = Math.abs(evalues[2]);
+						evalues[0] /= divideBy;
+						evalues[1] /= divideBy;
+						evalues[2] /= divideBy;
+					}
+					value = measureFromEvalues3D(evalues);
+				}
+				slice[y * width + x] = value;
+				if( value < minResult )
+					minResult = value;
+				if( value > maxResult )
+					maxResult = value;
+			}
+		}
+		minima[z] = minResult;
+		maxima[z] = maxResult;
+	}
+
+	/* The same for the inner pixels of a single image, like
+	   ComputeCurvatures.hessianEigenvaluesAtPoint2D() ordering on
+	   absolute size, again without allocating anything per pixel */
+
+	void measureSlice2D(float[] data, int width, int height,
+			double sigma, float[] slice) {
+		final double sigmaSquared = sigma * sigma;
+		float[] evalues = new float[2];
+
+		for (int y = 1; y < height - 1; ++y) {
+			int i = y * width + 1;
+			for (int x = 1; x < width - 1; ++x, ++i) {
+				float temp = 2 * data[i];
+				float xx = data[i + 1] - temp + data[i - 1];
+				float yy = data[i + width] - temp + data[i - width];
+				float xy = ((data[i + 1 + width] - data[i - 1 + width]) / 2
+					    - (data[i + 1 - width] - data[i - 1 - width]) / 2) / 2;
+				xx *= sigmaSquared;
+				yy *= sigmaSquared;
+				xy *= sigmaSquared;
+
+				float value = 0;
+				if( Eigensystem2x2Float.findEvalues(xx, xy, yy, evalues) ) {
+					if( Math.abs(evalues[0]) > Math.abs(evalues[1]) ) {
+						float swap = evalues[0];
+						evalues[0] = evalues[1];
+						evalues[1] = swap;
+					}
+					if( normalize ) {
+						float divideBy = Math.abs(evalues[1]);
+						evalues[0] /= divideBy;
+						evalues[1] /= divideBy;
+					}
+					value = measureFromEvalues2D(evalues);
+				}
+				slice[i] = value;
+			}
+		}
+	}
+
+	/* Sorts the three values by their absolute size, in the same way
+	   as hessianEigenvaluesAtPoint3D() does */
+
+	static void orderOnAbsoluteSize(float[] e) {
+		float e0 = e[0], e1 = e[1], e2 = e[2];
+		float e0c = Math.abs(e0), e1c = Math.abs(e1), e2c = Math.abs(e2);
+		if( e0c <= e1c ) {
+			if( e1c <= e2c ) {
+				return;
+			} else if( e0c <= e2c ) {
+				e[1] = e2;
+				e[2] = e1;
+			} else {
+				e[0] = e2;
+				e[1] = e0;
+				e[2] = e1;
+			}
+		} else {
+			if( e0c <= e2c ) {
+				e[0] = e1;
+				e[1] = e0;
+			} else if( e1c <= e2c ) {
+				e[0] = e1;
+				e[1] = e2;
+				e[2] = e0;
+			} else {
+				e[0] = e2;
+				e[2] = e0;
+			}
+		}
+	}
 }
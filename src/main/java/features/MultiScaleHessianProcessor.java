@@ -0,0 +1,215 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import util.Parallel;
+
+import java.util.Arrays;
+
+/*
+ * The maximum over several scales of the measure of a
+ * HessianEvalueProcessor (e.g. the tubeness), as in Sato's and
+ * Frangi's multi-scale vesselness filters; the measures are comparable
+ * across scales, as the Hessian is multiplied by sigma^2.
+ *
+ * Rather than convolving the original image with each Gaussian, the
+ * sigmas are handled in ascending order, and each Gaussian is derived
+ * from the previous one by a convolution with a Gaussian of
+ * sqrt(sigma^2 - previousSigma^2).  Apart from the mirrored edges and
+ * the truncated kernels, this is the same, but the kernels are
+ * smaller, and only the current Gaussian is kept (in place), together
+ * with the running maximum and, optionally, the sigma at which each
+ * voxel had its maximum.
+ */
+public class MultiScaleHessianProcessor implements GaussianGenerationCallback {
+
+	protected HessianEvalueProcessor processor;
+	protected double[] sigmas;
+
+	/* Progress of the current scale goes from scaleStart to scaleEnd */
+	private double scaleStart, scaleEnd;
+
+	public MultiScaleHessianProcessor(HessianEvalueProcessor processor,
+			double[] sigmas) {
+		if (sigmas.length == 0)
+			throw new RuntimeException("No sigma given");
+		this.processor = processor;
+		this.sigmas = sigmas.clone();
+		Arrays.sort(this.sigmas);
+		if (this.sigmas[0] <= 0)
+			throw new RuntimeException("The sigmas must be positive");
+		// a repeated sigma would only measure the same scale again
+		for (int s = 1; s < this.sigmas.length; s++)
+			if (this.sigmas[s] == this.sigmas[s - 1])
+				throw new RuntimeException("Duplicate sigma: "
+					+ this.sigmas[s]);
+	}
+
+	public void proportionDone(double d) {
+		if (d < 0)
+			IJ.showProgress(1.0);
+		else
+			// the Gaussian is the first half of a scale
+			IJ.showProgress(scaleStart
+				+ Math.min(d, 1) * (scaleEnd - scaleStart) / 2);
+	}
+
+	public ImagePlus generateImage(ImagePlus original) {
+		ImagePlus[] result = generateImages(original, false);
+		return result == null ? null : result[0];
+	}
+
+	/* Returns the maximum of the measure over the sigmas and, if
+	   bestScale is set, an image of the sigma at which each voxel had
+	   that maximum (the smallest, if there is a tie; and hence the
+	   smallest sigma where the measure is 0 at all scales).  Returns
+	   null if the Gaussian could not be generated. */
+
+	public ImagePlus[] generateImages(ImagePlus original,
+			boolean bestScale) {
+
+		Calibration calibration = original.getCalibration();
+		boolean useCalibration = processor.useCalibration
+			&& calibration != null;
+
+		final int width = original.getWidth();
+		final int height = original.getHeight();
+		final int depth = original.getStackSize();
+
+		ComputeCurvatures c = new ComputeCurvatures(original,
+			sigmas[0], this, useCalibration);
+		ComputeCurvatures.FloatArray2D image2D = null;
+		ComputeCurvatures.FloatArray3D image3D = null;
+		if (depth == 1)
+			image2D = c.ImageToFloatArray(original.getProcessor());
+		else
+			image3D = c.StackToFloatArray(original.getStack());
+		if (image2D == null && image3D == null)
+			return null;
+
+		final float[][] maximum = new float[depth][width * height];
+		final float[][] best = bestScale ?
+			new float[depth][width * height] : null;
+
+		double previousSigma = 0;
+		for (int s = 0; s < sigmas.length; s++) {
+			final double sigma = sigmas[s];
+			scaleStart = s / (double)sigmas.length;
+			scaleEnd = (s + 1) / (double)sigmas.length;
+
+			float increment = (float)Math.sqrt(sigma * sigma
+				- previousSigma * previousSigma);
+			previousSigma = sigma;
+			if (increment > 0) {
+				IJ.showStatus("Convolving with Gaussian \u03C3="
+					+ sigma + " (" + (s + 1) + "/"
+					+ sigmas.length + ")...");
+				if (depth == 1)
+					image2D = c.computeGaussianFastMirror(
+						image2D, increment, this,
+						useCalibration ? calibration : null);
+				else
+					image3D = c.computeGaussianFastMirror(
+						image3D, image3D, increment, this,
+						useCalibration ? calibration : null);
+				if (image2D == null && image3D == null)
+					return null;
+			}
+
+			IJ.showStatus("Calculating Hessian eigenvalues for \u03C3="
+				+ sigma + " (" + (s + 1) + "/"
+				+ sigmas.length + ")...");
+			final boolean first = s == 0;
+			if (depth == 1) {
+				float[] slice = new float[width * height];
+				processor.measureSlice2D(image2D.data,
+					width, height, sigma, slice);
+				update(slice, maximum[0], best == null ?
+					null : best[0], (float)sigma, first);
+				continue;
+			}
+
+			final float[] data = image3D.data;
+			// (the limits of each slice are not needed)
+			final float[] minima = new float[depth];
+			final float[] maxima = new float[depth];
+			final int[] done = new int[1];
+			Parallel.forEach(depth, new Parallel.Loop() {
+				public void run(int z) {
+					float[] slice = maximum[z];
+					if (!first)
+						slice = new float[width * height];
+					if ((z >= 1) && (z < depth - 1))
+						processor.measureSlice3D(data,
+							width, height, z, sigma,
+							slice, minima, maxima);
+					update(slice, maximum[z], best == null ?
+						null : best[z], (float)sigma,
+						first);
+					synchronized (done) {
+						// at most about 100 updates
+						if (++done[0] * 100 / depth != (done[0] - 1) * 100 / depth)
+							IJ.showProgress(scaleEnd - (scaleEnd - scaleStart)
+								* (depth - done[0]) / (2.0 * depth));
+					}
+				}
+			});
+		}
+
+		IJ.showProgress(1.0);
+
+		ImagePlus[] result = new ImagePlus[bestScale ? 2 : 1];
+		result[0] = toImage("processed " + original.getTitle(),
+			maximum, width, height, calibration);
+		if (bestScale)
+			result[1] = toImage("best \u03C3 for "
+				+ original.getTitle(), best,
+				width, height, calibration);
+		return result;
+	}
+
+	/* Merges the measure of a scale into the running maximum */
+
+	static void update(float[] slice, float[] maximum, float[] best,
+			float sigma, boolean first) {
+		if (first) {
+			if (slice != maximum)
+				System.arraycopy(slice, 0,
+					maximum, 0, slice.length);
+			if (best != null)
+				Arrays.fill(best, sigma);
+			return;
+		}
+		for (int i = 0; i < slice.length; i++)
+			if (slice[i] > maximum[i]) {
+				maximum[i] = slice[i];
+				if (best != null)
+					best[i] = sigma;
+			}
+	}
+
+	static ImagePlus toImage(String title, float[][] slices,
+			int width, int height, Calibration calibration) {
+		ImageStack stack = new ImageStack(width, height);
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int z = 0; z < slices.length; z++) {
+			FloatProcessor fp = new FloatProcessor(width, height);
+			fp.setPixels(slices[z]);
+			stack.addSlice(null, fp);
+			for (int i = 0; i < slices[z].length; i++) {
+				min = Math.min(min, slices[z][i]);
+				max = Math.max(max, slices[z][i]);
+			}
+		}
+		ImagePlus result = new ImagePlus(title, stack);
+		result.setCalibration(calibration);
+		result.getProcessor().setMinAndMax(min, max);
+		result.updateAndDraw();
+		return result;
+	}
+}
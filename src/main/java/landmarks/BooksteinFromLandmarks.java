@@ -11,7 +11,9 @@ import ij.process.ByteProcessor;
 import java.util.ArrayList;
 
 import math3d.Bookstein;
+import math3d.BooksteinGrid;
 import math3d.Point3d;
+import util.Parallel;
 import vib.oldregistration.RegistrationAlgorithm;
 
 public class BooksteinFromLandmarks extends RegistrationAlgorithm {
@@ -36,6 +38,15 @@ public class BooksteinFromLandmarks extends RegistrationAlgorithm {
 	Calibration templateCalibration;
 	Calibration domainCalibration;
 
+	/* The spacing (in template voxels) of the grid on which
+	   register() evaluates the exact transform, and the maximal
+	   error (in voxels of the image to transform) of the
+	   interpolation in between.  The default gridStep of 1 evaluates
+	   the exact transform for every voxel; a gridStep of e.g. 4 is
+	   much faster, but approximate (see math3d.BooksteinGrid). */
+	public int gridStep = 1;
+	public double maxGridError = 0.1;
+
 	public void generateTransformation( ) {
 
                 NamedPointSet points0 = null;
@@ -229,42 +240,59 @@ public class BooksteinFromLandmarks extends RegistrationAlgorithm {
 
 		ImageStack domainStack = sourceImages[1].getStack();
 
-		byte [][] domainPixels = new byte[domainDepth][];
+		final byte [][] domainPixels = new byte[domainDepth][];
 		for( int z = 0; z < domainDepth; ++z )
 			domainPixels[z] = ( byte[] ) domainStack.getPixels( z + 1 );
 
-		RegistrationAlgorithm.ImagePoint result = new RegistrationAlgorithm.ImagePoint();
+		/* With a gridStep larger than 1, the exact transform is
+		   only evaluated on a coarse grid (see math3d.BooksteinGrid). */
+		double minSpacing = Math.min( xSpacingDomain,
+					      Math.min( ySpacingDomain, zSpacingDomain ) );
+		final BooksteinGrid grid = new BooksteinGrid( templateToDomain,
+			templateWidth, templateHeight, templateDepth,
+			xSpacingTemplate, ySpacingTemplate, zSpacingTemplate,
+			gridStep, maxGridError * minSpacing );
+
+		final byte [][] newPixels = new byte[templateDepth][];
+		final int [] done = new int[1];
 
 		IJ.showProgress( 0 );
 
-		for( int z = 0; z < templateDepth; ++z ) {
+		Parallel.forEach( templateDepth, new Parallel.Loop() {
+			public void run( int z ) {
+				byte [] pixels = new byte[ templateWidth * templateHeight ];
+				double [] result = new double[3];
 
-			byte [] pixels = new byte[ templateWidth * templateHeight ];
+				for( int y = 0; y < templateHeight; ++y )
+					for( int x = 0; x < templateWidth; ++x ) {
 
-			for( int y = 0; y < templateHeight; ++y )
-				for( int x = 0; x < templateWidth; ++x ) {
+						grid.apply( x, y, z, result );
 
-					transformTemplateToDomain( x, y, z, result );
+						int dx = (int)Math.round( result[0] / xSpacingDomain );
+						int dy = (int)Math.round( result[1] / ySpacingDomain );
+						int dz = (int)Math.round( result[2] / zSpacingDomain );
 
-					int dx = result.x;
-					int dy = result.y;
-					int dz = result.z;
+						if( dx < 0 || dy < 0 || dz < 0 ||
+						    dx >= domainWidth ||
+						    dy >= domainHeight ||
+						    dz >= domainDepth )
+							continue;
 
-					if( dx < 0 || dy < 0 || dz < 0 ||
-					    dx >= domainWidth ||
-					    dy >= domainHeight ||
-					    dz >= domainDepth )
-						continue;
+						pixels[y*templateWidth+x] =
+							domainPixels[dz][dy*domainWidth+dx];
+					}
 
-					pixels[y*templateWidth+x] =
-						domainPixels[dz][dy*domainWidth+dx];
+				newPixels[z] = pixels;
+				synchronized( done ) {
+					IJ.showProgress( ++done[0] / (double)templateDepth );
 				}
+			}
+		} );
 
+		for( int z = 0; z < templateDepth; ++z ) {
 			ByteProcessor bp = new ByteProcessor( templateWidth, templateHeight );
-			bp.setPixels( pixels );
+			bp.setPixels( newPixels[z] );
 			newStack.addSlice( "", bp );
-
-			IJ.showProgress( (z + 1) / (double)templateDepth );
 		}
 
 		IJ.showProgress( 1.0 );
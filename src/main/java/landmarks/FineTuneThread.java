@@ -4,6 +4,8 @@ package landmarks;
 
 import ij.ImagePlus;
 import pal.math.ConjugateDirectionSearch;
+import util.CMAESearch;
+import vib.RegistrationOptimizer;
 
 /* This can all get very confusing, so to make my convention clear:
 
@@ -69,19 +71,21 @@ public class FineTuneThread extends Thread {
 		this.listener = listener;
 	}
 
+	/* Set from NamePoints.fineTuneOptimizer:
+	   RegistrationOptimizer.CMA_ES evaluates a population of
+	   transformations concurrently (TransformationAttempt is
+	   thread-safe); anything else (there is no analytic gradient)
+	   uses the conjugate direction search. */
+	int optimizerType = RegistrationOptimizer.CONJUGATE_DIRECTION_SEARCH;
+
 	ConjugateDirectionSearch optimizer;
+	CMAESearch populationOptimizer;
 
 	@Override
 	public void run() {
 
 		double [] startValues = initialTransformation.clone();
 
-		optimizer = new ConjugateDirectionSearch();
-
-		optimizer.step = 1;
-		optimizer.scbd = 10.0;
-		optimizer.illc = true;
-
 		TransformationAttempt attempt = new TransformationAttempt(
 			cubeSide,
 			croppedTemplate,
@@ -92,7 +96,25 @@ public class FineTuneThread extends Thread {
 			listener,
 			progressWindow );
 
-		optimizer.optimize(attempt, startValues, 2, 2);
+		if( optimizerType == RegistrationOptimizer.CMA_ES ) {
+
+			populationOptimizer = new CMAESearch();
+			populationOptimizer.sigma = 1;
+			if( pleaseStop )
+				populationOptimizer.interrupt = true;
+
+			populationOptimizer.optimize(attempt, startValues, 2, 2);
+
+		} else {
+
+			optimizer = new ConjugateDirectionSearch();
+
+			optimizer.step = 1;
+			optimizer.scbd = 10.0;
+			optimizer.illc = true;
+
+			optimizer.optimize(attempt, startValues, 2, 2);
+		}
 
 		if( pleaseStop ) {
 			listener.fineTuneThreadFinished( FineTuneProgressListener.CANCELLED, null, this );
@@ -133,5 +155,7 @@ public class FineTuneThread extends Thread {
 		pleaseStop = true;
 		if( optimizer != null )
 			optimizer.interrupt = true;
+		if( populationOptimizer != null )
+			populationOptimizer.interrupt = true;
 	}
 }
@@ -72,6 +72,7 @@ import util.BatchOpener;
 import util.OverlayRegistered;
 import util.Penalty;
 import vib.FastMatrix;
+import vib.RegistrationOptimizer;
 import vib.oldregistration.RegistrationAlgorithm;
 
 class PointsDialog extends Dialog implements ActionListener, WindowListener {
@@ -525,6 +526,13 @@ public class NamePoints implements FineTuneProgressListener {
 
 	int numberOfFineTuneThreads = 2;
 
+	/*
+	 * The minimizer used for fine-tuning, e.g.
+	 * RegistrationOptimizer.CMA_ES to evaluate a population of
+	 * transformations concurrently (see FineTuneThread).
+	 */
+	public int fineTuneOptimizer = RegistrationOptimizer.CONJUGATE_DIRECTION_SEARCH;
+
 	double x_spacing;
 	double y_spacing;
 	double z_spacing;
@@ -998,6 +1006,7 @@ public class NamePoints implements FineTuneProgressListener {
 		synchronized (fineTuneThreadQueue) {
 			if( fineTuning ) {
 				FineTuneThread ftt = fineTuneThreadQueue.removeFirst();
+				ftt.optimizerType = fineTuneOptimizer;
 				ftt.start();
 				fineTuneThreadsStarted.addLast(ftt);
 				++ currentlyRunningFineTuneThreads;
@@ -6,57 +6,77 @@
 
 package math3d;
 
+import util.Parallel;
+
 public class Bookstein {
 	protected Point3d[] points;
 	protected Bookstein1d bx, by, bz;
 	
 	public Bookstein(Point3d[] orig, Point3d[] trans) {
+		this(orig, trans, 0);
+	}
+
+	/*
+	 * With a positive smoothing, the transform no longer needs to map
+	 * the landmarks exactly; instead, it trades the distance to the
+	 * landmarks for less bending (the larger smoothing, the closer to
+	 * an affine transform).
+	 *
+	 * The system is solved by an LU decomposition, once for all three
+	 * coordinates; it is symmetric, but not positive definite, so a
+	 * Cholesky decomposition is out of the question.
+	 */
+	public Bookstein(final Point3d[] orig, Point3d[] trans,
+			double smoothing) {
 		if (orig.length != trans.length)
 			throw new RuntimeException("orig has " + orig.length
 						   + " points, but trans has " + trans.length
 						   + "???");
 		points = orig;
-		int N = orig.length + 4;
-		double[][] matrix = new double[N][N];
-		for (int i = 0; i < orig.length; i++) {
-			for (int j = i + 1; j < orig.length; j++)
-				matrix[i][j] = U(orig[i].distanceTo(orig[j]));
-			matrix[i][orig.length] = 1;
-			matrix[i][orig.length + 1] = orig[i].x;
-			matrix[i][orig.length + 2] = orig[i].y;
-			matrix[i][orig.length + 3] = orig[i].z;
-			for (int j = i + 1; j < N; j++)
+		final int n = orig.length;
+		int N = n + 4;
+		final double[][] matrix = new double[N][N];
+		Parallel.forEach(n, new Parallel.Loop() {
+			public void run(int i) {
+				for (int j = i + 1; j < n; j++)
+					matrix[i][j] = matrix[j][i] =
+						U(orig[i].distanceTo(orig[j]));
+				matrix[i][n] = 1;
+				matrix[i][n + 1] = orig[i].x;
+				matrix[i][n + 2] = orig[i].y;
+				matrix[i][n + 3] = orig[i].z;
+			}
+		});
+		for (int i = 0; i < n; i++) {
+			matrix[i][i] = smoothing;
+			for (int j = n; j < N; j++)
 				matrix[j][i] = matrix[i][j];
 		}
 
-		FastMatrixN.invert(matrix);
+		int[] permutation = FastMatrixN.luDecomposition(matrix);
 
-		bx = new Bookstein1d();
-		by = new Bookstein1d();
-		bz = new Bookstein1d();
-		bx.w = new double[orig.length];
-		by.w = new double[orig.length];
-		bz.w = new double[orig.length];
-		for (int i = 0; i < orig.length; i++)
-			for (int j = 0; j < orig.length; j++) {
-				bx.w[i] += trans[j].x * matrix[i][j];
-				by.w[i] += trans[j].y * matrix[i][j];
-				bz.w[i] += trans[j].z * matrix[i][j];
-			}
-		for (int j = 0; j < orig.length; j++) {
-			bx.a1 += trans[j].x * matrix[orig.length][j];
-			bx.ax += trans[j].x * matrix[orig.length + 1][j];
-			bx.ay += trans[j].x * matrix[orig.length + 2][j];
-			bx.az += trans[j].x * matrix[orig.length + 3][j];
-			by.a1 += trans[j].y * matrix[orig.length][j];
-			by.ax += trans[j].y * matrix[orig.length + 1][j];
-			by.ay += trans[j].y * matrix[orig.length + 2][j];
-			by.az += trans[j].y * matrix[orig.length + 3][j];
-			bz.a1 += trans[j].z * matrix[orig.length][j];
-			bz.ax += trans[j].z * matrix[orig.length + 1][j];
-			bz.ay += trans[j].z * matrix[orig.length + 2][j];
-			bz.az += trans[j].z * matrix[orig.length + 3][j];
-		}
+		bx = solve(matrix, permutation, trans, 0);
+		by = solve(matrix, permutation, trans, 1);
+		bz = solve(matrix, permutation, trans, 2);
+	}
+
+	private Bookstein1d solve(double[][] lu, int[] permutation,
+			Point3d[] trans, int coordinate) {
+		int n = trans.length;
+		double[] b = new double[n + 4];
+		for (int i = 0; i < n; i++)
+			b[i] = coordinate == 0 ? trans[i].x :
+				coordinate == 1 ? trans[i].y : trans[i].z;
+		double[] x = FastMatrixN.luSolve(lu, permutation, b);
+
+		Bookstein1d result = new Bookstein1d();
+		result.w = new double[n];
+		System.arraycopy(x, 0, result.w, 0, n);
+		result.a1 = x[n];
+		result.ax = x[n + 1];
+		result.ay = x[n + 2];
+		result.az = x[n + 3];
+		return result;
 	}
 	
 	public double x, y, z;
@@ -72,6 +92,28 @@ public class Bookstein {
 		}
 	}
 	
+	/*
+	 * Like apply(), but it can be called by several threads at the
+	 * same time; result gets the transformed x, y and z.
+	 */
+	public void apply(double x, double y, double z, double[] result) {
+		double rx = bx.a1 + bx.ax * x + bx.ay * y + bx.az * z;
+		double ry = by.a1 + by.ax * x + by.ay * y + by.az * z;
+		double rz = bz.a1 + bz.ax * x + bz.ay * y + bz.az * z;
+		for (int i = 0; i < points.length; i++) {
+			double dx = x - points[i].x;
+			double dy = y - points[i].y;
+			double dz = z - points[i].z;
+			double u = U(Math.sqrt(dx * dx + dy * dy + dz * dz));
+			rx += bx.w[i] * u;
+			ry += by.w[i] * u;
+			rz += bz.w[i] * u;
+		}
+		result[0] = rx;
+		result[1] = ry;
+		result[2] = rz;
+	}
+
 	public class Bookstein1d {
 		double a1, ax, ay, az;
 		public double[] w;
@@ -88,6 +130,12 @@ public class Bookstein {
 		}
 	}
 	
+	/* the affine part a1, ax, ay, az of the coordinate 0, 1 or 2 */
+	protected double[] getAffinePart(int coordinate) {
+		Bookstein1d b = coordinate == 0 ? bx : coordinate == 1 ? by : bz;
+		return new double[] { b.a1, b.ax, b.ay, b.az };
+	}
+
 	public static double U(double r) {
 		if (r <= 0) return 0;
 		return r * r * Math.log(r);
@@ -0,0 +1,172 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * A fast approximation of a Bookstein transform on a voxel lattice
+ */
+
+package math3d;
+
+import util.Parallel;
+
+/*
+ * Evaluating a Bookstein transform costs a logarithm and a square root
+ * per landmark, which adds up to minutes when warping a whole volume.
+ * As the thin-plate spline is smooth, it is evaluated exactly only on a
+ * coarse grid of control points, every step voxels; inside the grid
+ * cells, the transformed coordinates are interpolated trilinearly.
+ *
+ * To bound the error, the exact transform is compared to the
+ * interpolated one half way between the control points: at the centers
+ * of the cells, of their faces and of their edges.  As long as the
+ * maximal difference exceeds maxError, the step is halved.  If even a
+ * step of 2 is too coarse, the transform is evaluated exactly for every
+ * voxel.
+ *
+ * The voxel (i, j, k) is at the world coordinates (i * sx, j * sy,
+ * k * sz); maxError is in world units, too.  The control points are
+ * evaluated concurrently, and apply() may be called by several threads
+ * at the same time.
+ */
+public class BooksteinGrid {
+	protected Bookstein bookstein;
+	protected double sx, sy, sz;
+	protected int step, nx, ny, nz;
+	// the transformed x, y, z of the control point (i, j, k)
+	protected double[] grid;
+	protected double error;
+
+	public BooksteinGrid(Bookstein bookstein, int w, int h, int d,
+			double sx, double sy, double sz,
+			int step, double maxError) {
+		this.bookstein = bookstein;
+		this.sx = sx;
+		this.sy = sy;
+		this.sz = sz;
+		for (; step > 1; step /= 2) {
+			init(w, h, d, step);
+			error = measureError();
+			if (error <= maxError)
+				return;
+		}
+		// exact evaluation
+		this.step = 1;
+		grid = null;
+		error = 0;
+	}
+
+	/* 1 means that the transform is evaluated exactly */
+	public int getStep() {
+		return step;
+	}
+
+	/* the maximal error half way between the control points, in world
+	   units */
+	public double getError() {
+		return error;
+	}
+
+	/* result gets the transformed world coordinates of (i, j, k) */
+	public void apply(int i, int j, int k, double[] result) {
+		if (grid == null) {
+			bookstein.apply(i * sx, j * sy, k * sz, result);
+			return;
+		}
+		interpolate(i / step, j / step, k / step,
+			(i % step) / (double)step,
+			(j % step) / (double)step,
+			(k % step) / (double)step, result);
+	}
+
+	private void init(int w, int h, int d, final int step) {
+		this.step = step;
+		// the last control point must be at or after the last voxel
+		nx = (w - 1 + step - 1) / step + 1;
+		ny = (h - 1 + step - 1) / step + 1;
+		nz = (d - 1 + step - 1) / step + 1;
+		if (nx < 2) nx = 2;
+		if (ny < 2) ny = 2;
+		if (nz < 2) nz = 2;
+		grid = new double[3 * nx * ny * nz];
+		Parallel.forEach(nz, new Parallel.Loop() {
+			public void run(int k) {
+				double[] result = new double[3];
+				int index = 3 * nx * ny * k;
+				for (int j = 0; j < ny; j++)
+					for (int i = 0; i < nx; i++) {
+						bookstein.apply(i * step * sx,
+							j * step * sy,
+							k * step * sz, result);
+						grid[index++] = result[0];
+						grid[index++] = result[1];
+						grid[index++] = result[2];
+					}
+			}
+		});
+	}
+
+	/*
+	 * The points (i2, j2, k2) * step / 2 with at least one odd
+	 * coordinate are the centers of the cells, faces and edges.
+	 */
+	private double measureError() {
+		final double[] maxima = new double[2 * nz - 1];
+		Parallel.forEach(2 * nz - 1, new Parallel.Loop() {
+			public void run(int k2) {
+				double[] exact = new double[3];
+				double[] approx = new double[3];
+				double max = 0;
+				int k = Math.min(k2 / 2, nz - 2);
+				for (int j2 = 0; j2 < 2 * ny - 1; j2++) {
+					int j = Math.min(j2 / 2, ny - 2);
+					for (int i2 = 0; i2 < 2 * nx - 1; i2++) {
+						if ((i2 | j2 | k2) % 2 == 0)
+							continue;
+						int i = Math.min(i2 / 2, nx - 2);
+						bookstein.apply(
+							i2 * 0.5 * step * sx,
+							j2 * 0.5 * step * sy,
+							k2 * 0.5 * step * sz,
+							exact);
+						interpolate(i, j, k,
+							(i2 - 2 * i) * 0.5,
+							(j2 - 2 * j) * 0.5,
+							(k2 - 2 * k) * 0.5,
+							approx);
+						double dx = exact[0] - approx[0];
+						double dy = exact[1] - approx[1];
+						double dz = exact[2] - approx[2];
+						max = Math.max(max, dx * dx
+							+ dy * dy + dz * dz);
+					}
+				}
+				maxima[k2] = Math.sqrt(max);
+			}
+		});
+		double max = 0;
+		for (int k = 0; k < maxima.length; k++)
+			max = Math.max(max, maxima[k]);
+		return max;
+	}
+
+	private void interpolate(int i, int j, int k,
+			double xR, double yR, double zR, double[] result) {
+		int index = 3 * (i + nx * (j + ny * k));
+		int di = i + 1 < nx ? 3 : 0;
+		int dj = j + 1 < ny ? 3 * nx : 0;
+		int dk = k + 1 < nz ? 3 * nx * ny : 0;
+		for (int c = 0; c < 3; c++, index++) {
+			double v00 = grid[index] + xR
+				* (grid[index + di] - grid[index]);
+			double v10 = grid[index + dj] + xR
+				* (grid[index + dj + di] - grid[index + dj]);
+			double v01 = grid[index + dk] + xR
+				* (grid[index + dk + di] - grid[index + dk]);
+			double v11 = grid[index + dk + dj] + xR
+				* (grid[index + dk + dj + di]
+				   - grid[index + dk + dj]);
+			double v0 = v00 + yR * (v10 - v00);
+			double v1 = v01 + yR * (v11 - v01);
+			result[c] = v0 + zR * (v1 - v0);
+		}
+	}
+}
@@ -46,10 +46,19 @@ public class Eigensystem2x2Float {
 
 		eigenValues = new float[2];
 
-		double A = (double)m[0][0];
-		double B = (double)m[0][1];
-		double C = (double)m[1][1];
-		
+		// In the double version these identity casts should have no cost:
+
+		return findEvalues( (double)m[0][0], (double)m[0][1], (double)m[1][1],
+				    eigenValues );
+	}
+
+	/* The same without any allocation, for callers that have the
+	   matrix elements at hand: the eigenvalues are stored in
+	   eigenValues (which must have 2 elements). */
+
+	public static boolean findEvalues( double A, double B, double C,
+					   float [] eigenValues ) {
+
 		double a = 1;
 		double b = -(A + C);
 		double c = A * C - B * B;
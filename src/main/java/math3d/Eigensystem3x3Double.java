@@ -47,6 +47,21 @@ public class Eigensystem3x3Double {
 
 		eigenValues = new /*change*/double[3];
 
+		// In the double version these identity casts should have no cost:
+
+		return findEvalues( (double)m[0][0], (double)m[0][1], (double)m[0][2],
+				    (double)m[1][1], (double)m[1][2], (double)m[2][2],
+				    eigenValues );
+	}
+
+	/* The same without any allocation, for callers that have the
+	   matrix elements at hand: the eigenvalues are stored in
+	   eigenValues (which must have 3 elements). */
+
+	public static boolean findEvalues( double A, double B, double C,
+					   double D, double E, double F,
+					   /*change*/double [] eigenValues ) {
+
 		// Find the coefficients of the characteristic polynomial:
 		// http://en.wikipedia.org/wiki/Eigenvalue_algorithm
 
@@ -57,15 +72,6 @@ public class Eigensystem3x3Double {
 			C  E  F
 		*/
 
-		// In the double version these identity casts should have no cost:
-
-		double A = (double)m[0][0];
-		double B = (double)m[0][1];
-		double C = (double)m[0][2];
-		double D = (double)m[1][1];
-		double E = (double)m[1][2];
-		double F = (double)m[2][2];
-
 		double a = -1;
 
 		double b =
@@ -183,4 +189,249 @@ public class Eigensystem3x3Double {
 			return true;
 		}
 	}
+
+	/* The batched version, for many matrices at once: the symmetric
+	   matrices
+
+		xx[i]  xy[i]  xz[i]
+		xy[i]  yy[i]  yz[i]
+		xz[i]  yz[i]  zz[i]
+
+	   for offset <= i < offset + n are solved, and their eigenvalues
+	   stored in e0[i], e1[i] and e2[i], in ascending order (or in
+	   ascending order of their absolute values, if byAbsoluteValue).
+	   If vectors is not null, the unit eigenvector of the k-th
+	   eigenvalue is stored in vectors[9 * i + 3 * k + c] (c = 0, 1, 2).
+
+	   This uses the trigonometric form of the roots: with q = trace / 3,
+	   p = sqrt(trace((A - qI)^2) / 6) and r = det((A - qI) / p) / 2, the
+	   eigenvalues are q + 2p cos(acos(r) / 3 + 2k pi / 3).  The
+	   eigenvectors are the largest cross product of two rows of A - eI.
+	   When the matrix is almost a multiple of the identity, or (if the
+	   eigenvectors are asked for) two eigenvalues almost coincide, the
+	   matrix is passed to JacobiDouble instead.
+
+	   The work is done in blocks, by simple loops over arrays, which
+	   the JIT can vectorize; only atan(), cos() and sin() (and the
+	   fallback) are called per matrix.  Returns the number of matrices
+	   that needed the fallback. */
+
+	public static int findEvaluesBatch( /*change*/double [] xx, /*change*/double [] xy,
+					    /*change*/double [] xz, /*change*/double [] yy,
+					    /*change*/double [] yz, /*change*/double [] zz,
+					    int offset, int n, boolean byAbsoluteValue,
+					    /*change*/double [] e0, /*change*/double [] e1,
+					    /*change*/double [] e2, /*change*/double [] vectors ) {
+
+		int size = Math.min( n, BATCH_BLOCK );
+		double [] q = new double[size];
+		double [] p = new double[size];
+		double [] r = new double[size];
+		double [] small = new double[size];
+		double [] middle = new double[size];
+		double [] large = new double[size];
+		double [] values = new double[3];
+		double [] v = new double[9];
+		int fallbacks = 0;
+
+		for( int start = offset; start < offset + n; start += BATCH_BLOCK ) {
+			int m = Math.min( BATCH_BLOCK, offset + n - start );
+
+			// Shift by the mean of the eigenvalues, and scale
+
+			for( int j = 0; j < m; ++j ) {
+				int i = start + j;
+				// (in the float version, the sum must not be a float)
+				double A = xx[i], D = yy[i], F = zz[i];
+				double mean = ( A + D + F ) / 3;
+				double a = A - mean;
+				double b = xy[i];
+				double c = xz[i];
+				double d = D - mean;
+				double e = yz[i];
+				double f = F - mean;
+				double p2 = ( a * a + d * d + f * f
+					      + 2 * ( b * b + c * c + e * e ) ) / 6;
+				double s = Math.sqrt( p2 );
+				double det =
+					+ a * ( d * f - e * e )
+					- b * ( b * f - e * c )
+					+ c * ( b * e - d * c );
+				q[j] = mean;
+				p[j] = s;
+				r[j] = det / ( 2 * s * p2 );
+			}
+
+			// The angles; r is outside [-1, 1] only by rounding.
+			// Math.acos() is several times slower than Math.atan()
+			// (acos(r) = pi / 2 - atan(r / sqrt(1 - r^2)), which is
+			// also right for r = +-1), and cos(phi + 2 pi / 3)
+			// follows from cos(phi) and sin(phi).
+
+			for( int j = 0; j < m; ++j ) {
+				double cosine = Math.max( -1, Math.min( 1, r[j] ) );
+				double sine = Math.sqrt( ( 1 - cosine ) * ( 1 + cosine ) );
+				double phi = ( Math.PI / 2 - Math.atan( cosine / sine ) ) / 3;
+				large[j] = Math.cos( phi );
+				small[j] = Math.sin( phi );
+			}
+
+			for( int j = 0; j < m; ++j ) {
+				double c = large[j], s = small[j];
+				large[j] = q[j] + 2 * p[j] * c;
+				small[j] = q[j] - p[j] * ( c + ROOT_THREE * s );
+				middle[j] = 3 * q[j] - large[j] - small[j];
+			}
+
+			for( int j = 0; j < m; ++j ) {
+				int i = start + j;
+				e0[i] = (/*change*/double)small[j];
+				e1[i] = (/*change*/double)middle[j];
+				e2[i] = (/*change*/double)large[j];
+			}
+
+			// The special cases, the eigenvectors and the ordering
+
+			for( int j = 0; j < m; ++j ) {
+				if( vectors == null && !byAbsoluteValue && p[j] != 0
+				    && !( p[j] < BATCH_ISOTROPIC * Math.abs( q[j] ) ) )
+					continue;
+				int i = start + j;
+				values[0] = small[j];
+				values[1] = middle[j];
+				values[2] = large[j];
+				boolean solved;
+				if( p[j] == 0 ) {
+					// a multiple of the identity
+					values[0] = values[1] = values[2] = q[j];
+					for( int k = 0; k < 9; ++k )
+						v[k] = k % 4 == 0 ? 1 : 0;
+					solved = true;
+				} else if( p[j] < BATCH_ISOTROPIC * Math.abs( q[j] ) )
+					solved = false;
+				else if( vectors == null )
+					solved = true;
+				else {
+					double gap = Math.min( values[1] - values[0], values[2] - values[1] );
+					solved = gap > BATCH_DEGENERATE * ( values[2] - values[0] )
+						&& findEvector( xx[i] - q[j], xy[i], xz[i], yy[i] - q[j], yz[i], zz[i] - q[j],
+								values[0] - q[j], v, 0 )
+						&& findEvector( xx[i] - q[j], xy[i], xz[i], yy[i] - q[j], yz[i], zz[i] - q[j],
+								values[2] - q[j], v, 6 );
+					if( solved ) {
+						// the middle one is orthogonal to both
+						v[3] = v[7] * v[2] - v[8] * v[1];
+						v[4] = v[8] * v[0] - v[6] * v[2];
+						v[5] = v[6] * v[1] - v[7] * v[0];
+						normalize( v, 3 );
+					}
+				}
+				if( !solved ) {
+					fallbacks++;
+					jacobi( xx[i], xy[i], xz[i], yy[i], yz[i], zz[i], values, v );
+				}
+				if( byAbsoluteValue )
+					orderOnAbsoluteSize( values, v );
+				e0[i] = (/*change*/double)values[0];
+				e1[i] = (/*change*/double)values[1];
+				e2[i] = (/*change*/double)values[2];
+				if( vectors != null )
+					for( int k = 0; k < 9; ++k )
+						vectors[9 * i + k] = (/*change*/double)v[k];
+			}
+		}
+		return fallbacks;
+	}
+
+	private static final int BATCH_BLOCK = 256;
+
+	private static final double ROOT_THREE = 1.7320508075688772935;
+
+	/* Below this spread of the eigenvalues (relative to their mean),
+	   the shift by the mean cancels too many digits. */
+	private static final double BATCH_ISOTROPIC = 1e-6;
+
+	/* Below this gap between two eigenvalues (relative to the spread),
+	   the cross products do not give accurate eigenvectors. */
+	private static final double BATCH_DEGENERATE = 1e-4;
+
+	/* Stores the unit eigenvector of the (shifted) matrix for the
+	   eigenvalue e in v[index .. index + 2]. */
+
+	private static boolean findEvector( double a, double b, double c,
+					    double d, double e, double f,
+					    double value, double [] v, int index ) {
+		a -= value;
+		d -= value;
+		f -= value;
+
+		// the cross products of the rows (a b c), (b d e) and (c e f)
+
+		double x01 = b * e - c * d, y01 = c * b - a * e, z01 = a * d - b * b;
+		double x02 = b * f - c * e, y02 = c * c - a * f, z02 = a * e - b * c;
+		double x12 = d * f - e * e, y12 = e * c - b * f, z12 = b * e - d * c;
+
+		double n01 = x01 * x01 + y01 * y01 + z01 * z01;
+		double n02 = x02 * x02 + y02 * y02 + z02 * z02;
+		double n12 = x12 * x12 + y12 * y12 + z12 * z12;
+
+		if( n01 >= n02 && n01 >= n12 ) {
+			v[index] = x01; v[index + 1] = y01; v[index + 2] = z01;
+		} else if( n02 >= n12 ) {
+			v[index] = x02; v[index + 1] = y02; v[index + 2] = z02;
+		} else {
+			v[index] = x12; v[index + 1] = y12; v[index + 2] = z12;
+		}
+		return normalize( v, index );
+	}
+
+	private static boolean normalize( double [] v, int index ) {
+		double norm = Math.sqrt( v[index] * v[index]
+					 + v[index + 1] * v[index + 1]
+					 + v[index + 2] * v[index + 2] );
+		if( !( norm > 0 ) )
+			return false;
+		v[index] /= norm;
+		v[index + 1] /= norm;
+		v[index + 2] /= norm;
+		return true;
+	}
+
+	private static void jacobi( /*change*/double A, /*change*/double B, /*change*/double C,
+				    /*change*/double D, /*change*/double E, /*change*/double F,
+				    double [] values, double [] v ) {
+		JacobiDouble jacobi = new JacobiDouble( new /*change*/double[][] {
+				{ A, B, C }, { B, D, E }, { C, E, F } } );
+		/*change*/double [] evalues = jacobi.getEigenValues();
+		/*change*/double [][] evectors = jacobi.getEigenVectors();
+		int [] order = { 0, 1, 2 };
+		for( int k = 1; k < 3; ++k )
+			for( int l = k; l > 0 && evalues[order[l]] < evalues[order[l - 1]]; --l ) {
+				int swap = order[l];
+				order[l] = order[l - 1];
+				order[l - 1] = swap;
+			}
+		for( int k = 0; k < 3; ++k ) {
+			values[k] = evalues[order[k]];
+			for( int c = 0; c < 3; ++c )
+				v[3 * k + c] = evectors[order[k]][c];
+		}
+	}
+
+	/* Sorts the eigenvalues (and their eigenvectors) by their
+	   absolute values; equal ones keep their order. */
+
+	private static void orderOnAbsoluteSize( double [] values, double [] v ) {
+		for( int k = 1; k < 3; ++k )
+			for( int l = k; l > 0 && Math.abs( values[l] ) < Math.abs( values[l - 1] ); --l ) {
+				double swap = values[l];
+				values[l] = values[l - 1];
+				values[l - 1] = swap;
+				for( int c = 0; c < 3; ++c ) {
+					swap = v[3 * l + c];
+					v[3 * l + c] = v[3 * l - 3 + c];
+					v[3 * l - 3 + c] = swap;
+				}
+			}
+	}
 }
@@ -7,6 +7,8 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 
+import util.Parallel;
+
 public class FastMatrixN {
 	public static void invert(double[][] matrix) {
 		invert(matrix, false);
@@ -81,6 +83,141 @@ public class FastMatrixN {
 			matrix[i] = other[i];
 	}
 
+	/*
+	 * LU decomposition with partial pivoting, in place: afterwards,
+	 * the rows are permuted, the strict lower triangle holds L (whose
+	 * diagonal is 1) and the upper triangle holds U.  Returns the
+	 * permutation: row i of the result was row permutation[i].
+	 *
+	 * The decomposition works on panels of columns; the update of
+	 * the trailing rows, which is where the time is spent, is done
+	 * concurrently, row by row, so that each row stays in the cache
+	 * while the whole panel is applied to it.
+	 */
+	public static int[] luDecomposition(final double[][] matrix) {
+		final int M = matrix.length;
+		if (M != matrix[0].length)
+			throw new RuntimeException("LU: no square matrix");
+		int[] permutation = new int[M];
+		for (int i = 0; i < M; i++)
+			permutation[i] = i;
+
+		final int panelSize = 64;
+		for (int first = 0; first < M; first += panelSize) {
+			final int p0 = first;
+			final int p1 = Math.min(M, first + panelSize);
+
+			// factorize the panel
+			for (int i = p0; i < p1; i++) {
+				int p = i;
+				for (int j = i + 1; j < M; j++)
+					if (Math.abs(matrix[j][i]) >
+							Math.abs(matrix[p][i]))
+						p = j;
+				if (matrix[p][i] == 0)
+					throw new RuntimeException("LU: "
+						+ "singular matrix");
+				if (p != i) {
+					double[] d = matrix[p];
+					matrix[p] = matrix[i];
+					matrix[i] = d;
+					int t = permutation[p];
+					permutation[p] = permutation[i];
+					permutation[i] = t;
+				}
+				final int column = i;
+				final double[] pivotRow = matrix[i];
+				forEachRow(i + 1, M, new Parallel.Loop() {
+					public void run(int j) {
+						double[] row = matrix[j];
+						double f = row[column] /=
+							pivotRow[column];
+						for (int k = column + 1;
+								k < p1; k++)
+							row[k] -= f
+								* pivotRow[k];
+					}
+				});
+			}
+			if (p1 == M)
+				break;
+
+			// the panel's rows of U right of the panel
+			for (int i = p0 + 1; i < p1; i++) {
+				double[] row = matrix[i];
+				for (int r = p0; r < i; r++) {
+					double f = row[r];
+					double[] upper = matrix[r];
+					for (int k = p1; k < M; k++)
+						row[k] -= f * upper[k];
+				}
+			}
+
+			// update the trailing rows
+			forEachRow(p1, M, new Parallel.Loop() {
+				public void run(int j) {
+					double[] row = matrix[j];
+					for (int r = p0; r < p1; r++) {
+						double f = row[r];
+						if (f == 0)
+							continue;
+						double[] upper = matrix[r];
+						for (int k = p1; k < M; k++)
+							row[k] -= f * upper[k];
+					}
+				}
+			});
+		}
+		return permutation;
+	}
+
+	/* runs loop.run(j) for start <= j < end, in chunks of rows */
+	private static void forEachRow(final int start, final int end,
+			final Parallel.Loop loop) {
+		final int chunkSize = 32;
+		int chunks = (end - start + chunkSize - 1) / chunkSize;
+		if (chunks < 2) {
+			for (int j = start; j < end; j++)
+				loop.run(j);
+			return;
+		}
+		Parallel.forEach(chunks, new Parallel.Loop() {
+			public void run(int chunk) {
+				int j1 = Math.min(end, start
+						+ (chunk + 1) * chunkSize);
+				for (int j = start + chunk * chunkSize;
+						j < j1; j++)
+					loop.run(j);
+			}
+		});
+	}
+
+	/*
+	 * Solves Ax = b, where lu and permutation are the results of
+	 * luDecomposition(A); the same decomposition can be used for any
+	 * number of right hand sides.
+	 */
+	public static double[] luSolve(double[][] lu, int[] permutation,
+			double[] b) {
+		int M = lu.length;
+		double[] x = new double[M];
+		for (int i = 0; i < M; i++) {
+			double sum = b[permutation[i]];
+			double[] row = lu[i];
+			for (int j = 0; j < i; j++)
+				sum -= row[j] * x[j];
+			x[i] = sum;
+		}
+		for (int i = M - 1; i >= 0; i--) {
+			double sum = x[i];
+			double[] row = lu[i];
+			for (int j = i + 1; j < M; j++)
+				sum -= row[j] * x[j];
+			x[i] = sum / row[i];
+		}
+		return x;
+	}
+
 	public static double[][] clone(double[][] matrix) {
 		int M = matrix.length, N = matrix[0].length;
 		double[][] result = new double[M][N];
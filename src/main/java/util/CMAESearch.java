@@ -0,0 +1,288 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.Random;
+
+import math3d.JacobiDouble;
+
+import pal.math.MultivariateFunction;
+
+/*
+ * A minimizer using the Covariance Matrix Adaptation Evolution Strategy
+ * (CMA-ES, see N. Hansen, "The CMA Evolution Strategy: A Tutorial").
+ *
+ * Each generation samples a whole population of candidates, which are
+ * evaluated concurrently; so unlike ConjugateDirectionSearch, this uses
+ * all cores even for a single optimization.  It can be used in place of
+ * ConjugateDirectionSearch, as optimize() has the same signature.
+ *
+ * Functions which cannot be evaluated by several threads at the same
+ * time must implement CMAESearch.Duplicable; every worker thread then
+ * evaluates its own copy (if duplicate() returns null, the function is
+ * evaluated by one thread at a time).  At the end, the best vector is
+ * evaluated once more by the original function, so that functions
+ * remembering their best evaluation (such as
+ * RegistrationOptimizer.Refinement) see it, too.
+ *
+ * The candidates are drawn from a seeded random generator before they
+ * are evaluated, so the result does not depend on the number of
+ * threads.
+ */
+public class CMAESearch {
+	public interface Duplicable {
+		public MultivariateFunction duplicate();
+	}
+
+	public int threads = Parallel.getNumThreads();
+	// the population size; 0 means the default 4 + 3 ln(n)
+	public int lambda;
+	// the initial standard deviation of the candidates
+	public double sigma = 1;
+	// 0 means the default 100 + 50 (n + 3)^2 / sqrt(lambda)
+	public int maxGenerations;
+	public long seed = 1;
+	public int prin;
+	public volatile boolean interrupt;
+	// the number of function evaluations of the last optimization
+	public int numFun;
+
+	public void optimize(final MultivariateFunction f, double[] xvec,
+			double tolfx, double tolx) {
+		int n = f.getNumArguments();
+		int lambda = this.lambda > 0 ? this.lambda :
+			4 + (int)(3 * Math.log(n));
+		int mu = lambda / 2;
+		double[] weights = new double[mu];
+		double sum = 0, sumSquares = 0;
+		for (int i = 0; i < mu; i++) {
+			weights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+			sum += weights[i];
+		}
+		for (int i = 0; i < mu; i++) {
+			weights[i] /= sum;
+			sumSquares += weights[i] * weights[i];
+		}
+		double mueff = 1 / sumSquares;
+
+		double cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+		double cs = (mueff + 2) / (n + mueff + 5);
+		double c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+		double cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff)
+				/ ((n + 2) * (n + 2) + mueff));
+		double damps = 1 + cs + 2 * Math.max(0,
+				Math.sqrt((mueff - 1) / (n + 1)) - 1);
+		double chiN = Math.sqrt(n) * (1 - 1.0 / (4 * n)
+				+ 1.0 / (21 * n * n));
+		int maxGenerations = this.maxGenerations > 0 ?
+			this.maxGenerations : 100 + (int)(50 * (n + 3) * (n + 3)
+				/ Math.sqrt(lambda));
+
+		double[] mean = (double[])xvec.clone();
+		double sigma = this.sigma;
+		double[] pc = new double[n], ps = new double[n];
+		double[][] b = new double[n][n], c = new double[n][n];
+		double[][] invSqrtC = new double[n][n];
+		double[] d = new double[n];
+		for (int i = 0; i < n; i++) {
+			b[i][i] = c[i][i] = invSqrtC[i][i] = 1;
+			d[i] = 1;
+		}
+		int eigenGeneration = 0;
+
+		final double[][] candidates = new double[lambda][n];
+		final double[] values = new double[lambda];
+		double[][] steps = new double[lambda][n];
+		Integer[] order = new Integer[lambda];
+		double[] z = new double[n];
+		Random random = new Random(seed);
+
+		double[] best = (double[])xvec.clone();
+		double bestValue = Double.MAX_VALUE;
+		double[] history = new double[10 + (int)(30.0 * n / lambda)];
+		numFun = 0;
+
+		final LinkedList<MultivariateFunction> idle =
+			new LinkedList<MultivariateFunction>();
+
+		for (int generation = 0; generation < maxGenerations &&
+				!interrupt; generation++) {
+			for (int k = 0; k < lambda; k++) {
+				for (int i = 0; i < n; i++)
+					z[i] = d[i] * random.nextGaussian();
+				for (int i = 0; i < n; i++) {
+					double y = 0;
+					for (int j = 0; j < n; j++)
+						y += b[i][j] * z[j];
+					candidates[k][i] = clamp(f, i,
+						mean[i] + sigma * y);
+				}
+			}
+
+			Parallel.forEach(lambda, threads, new Parallel.Loop() {
+				public void run(int k) {
+					MultivariateFunction g = take(f, idle);
+					if (g == f && f instanceof Duplicable)
+						synchronized (f) {
+							values[k] = f.evaluate(
+								candidates[k]);
+						}
+					else
+						values[k] = g.evaluate(
+							candidates[k]);
+					synchronized (idle) {
+						idle.addLast(g);
+					}
+				}
+			});
+			numFun += lambda;
+
+			for (int k = 0; k < lambda; k++)
+				order[k] = Integer.valueOf(k);
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer o1, Integer o2) {
+					return Double.compare(values[o1.intValue()],
+						values[o2.intValue()]);
+				}
+			});
+			int first = order[0].intValue();
+			if (values[first] < bestValue) {
+				bestValue = values[first];
+				System.arraycopy(candidates[first], 0, best, 0, n);
+			}
+			if (prin > 0)
+				System.err.println("CMA-ES generation " + generation
+					+ ": " + values[first] + ", sigma "
+					+ sigma);
+
+			// move the mean to the weighted best candidates
+			double[] old = (double[])mean.clone();
+			for (int i = 0; i < n; i++) {
+				mean[i] = 0;
+				for (int k = 0; k < mu; k++)
+					mean[i] += weights[k] *
+						candidates[order[k].intValue()][i];
+			}
+			double[] yw = new double[n];
+			for (int i = 0; i < n; i++)
+				yw[i] = (mean[i] - old[i]) / sigma;
+
+			// cumulate the evolution paths
+			double psNorm = 0;
+			for (int i = 0; i < n; i++) {
+				double v = 0;
+				for (int j = 0; j < n; j++)
+					v += invSqrtC[i][j] * yw[j];
+				ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs)
+						* mueff) * v;
+				psNorm += ps[i] * ps[i];
+			}
+			psNorm = Math.sqrt(psNorm);
+			boolean hsig = psNorm / Math.sqrt(1 - Math.pow(1 - cs,
+						2 * (generation + 1))) / chiN
+				< 1.4 + 2.0 / (n + 1);
+			for (int i = 0; i < n; i++)
+				pc[i] = (1 - cc) * pc[i] + (hsig ? Math.sqrt(cc
+						* (2 - cc) * mueff) * yw[i] : 0);
+
+			// adapt the covariance matrix
+			for (int k = 0; k < mu; k++) {
+				double[] x = candidates[order[k].intValue()];
+				for (int i = 0; i < n; i++)
+					steps[k][i] = (x[i] - old[i]) / sigma;
+			}
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j <= i; j++) {
+					double rankMu = 0;
+					for (int k = 0; k < mu; k++)
+						rankMu += weights[k] *
+							steps[k][i] * steps[k][j];
+					c[i][j] = (1 - c1 - cmu) * c[i][j]
+						+ c1 * (pc[i] * pc[j] + (hsig ? 0 :
+							cc * (2 - cc) * c[i][j]))
+						+ cmu * rankMu;
+					c[j][i] = c[i][j];
+				}
+
+			// adapt the step size
+			sigma *= Math.exp(cs / damps * (psNorm / chiN - 1));
+
+			// decompose C = B D^2 B^T now and then
+			if (generation - eigenGeneration >
+					1 / (c1 + cmu) / n / 10) {
+				eigenGeneration = generation;
+				decompose(c, b, d, invSqrtC);
+			}
+
+			// stop criteria
+			history[generation % history.length] = values[first];
+			double maxD = 0;
+			for (int i = 0; i < n; i++)
+				maxD = Math.max(maxD, Math.sqrt(c[i][i]));
+			if (sigma * maxD < tolx)
+				break;
+			if (generation >= history.length) {
+				double min = Double.MAX_VALUE;
+				double max = -Double.MAX_VALUE;
+				for (int i = 0; i < history.length; i++) {
+					min = Math.min(min, history[i]);
+					max = Math.max(max, history[i]);
+				}
+				if (max - min < tolfx && values[first] -
+						values[order[lambda - 1]
+						.intValue()] > -tolfx)
+					break;
+			}
+		}
+
+		System.arraycopy(best, 0, xvec, 0, n);
+		// let the original function know about the best vector
+		f.evaluate(xvec);
+		numFun++;
+	}
+
+	private static double clamp(MultivariateFunction f, int i, double v) {
+		return Math.max(f.getLowerBound(i),
+				Math.min(f.getUpperBound(i), v));
+	}
+
+	private static MultivariateFunction take(MultivariateFunction f,
+			LinkedList<MultivariateFunction> idle) {
+		synchronized (idle) {
+			if (!idle.isEmpty())
+				return idle.removeFirst();
+		}
+		if (f instanceof Duplicable) {
+			MultivariateFunction copy = ((Duplicable)f).duplicate();
+			if (copy != null)
+				return copy;
+		}
+		return f;
+	}
+
+	private static void decompose(double[][] c, double[][] b, double[] d,
+			double[][] invSqrtC) {
+		int n = d.length;
+		double[][] copy = new double[n][];
+		for (int i = 0; i < n; i++)
+			copy[i] = (double[])c[i].clone();
+		JacobiDouble jacobi = new JacobiDouble(copy);
+		double[][] vectors = jacobi.getEigenMatrix();
+		double[] values = jacobi.getEigenValues();
+		for (int i = 0; i < n; i++) {
+			d[i] = Math.sqrt(Math.max(values[i], 1e-20));
+			for (int j = 0; j < n; j++)
+				b[i][j] = vectors[i][j];
+		}
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++) {
+				double v = 0;
+				for (int k = 0; k < n; k++)
+					v += b[i][k] * b[j][k] / d[k];
+				invSqrtC[i][j] = v;
+			}
+	}
+}
@@ -9,6 +9,7 @@ import ij.measure.Calibration;
 import ij.process.ByteProcessor;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -21,11 +22,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import nrrd.NrrdHeader;
 import nrrd.NrrdInfo;
@@ -146,11 +150,73 @@ public class CMTKTransformation {
 	}
 
 
+	/* Like trilinearInterpolateByte(), but for 16-bit and 32-bit
+	   models (the planes are short[] or float[] arrays); the value
+	   is not rounded. */
+
+	public double trilinearInterpolate( double image_x,
+					    double image_y,
+					    double image_z,
+					    int width,
+					    int height,
+					    int depth,
+					    Object [] v ) {
+
+		double x_d = image_x - Math.floor(image_x);
+		double y_d = image_y - Math.floor(image_y);
+		double z_d = image_z - Math.floor(image_z);
+
+		int x_f = (int)Math.floor(image_x); int x_c = (int)Math.ceil(image_x);
+		int y_f = (int)Math.floor(image_y); int y_c = (int)Math.ceil(image_y);
+		int z_f = (int)Math.floor(image_z); int z_c = (int)Math.ceil(image_z);
+
+		if( (x_f < 0) || (x_c < 0) ||
+		    (y_f < 0) || (y_c < 0) ||
+		    (z_f < 0) || (z_c < 0) ||
+		    (x_f >= width) || (x_c >= width) ||
+		    (y_f >= height) || (y_c >= height) ||
+		    (z_f >= depth) || (z_c >= depth) )
+			return 0;
+
+		double fff = value( v[z_f], width*y_f+x_f );
+		double cff = value( v[z_c], width*y_f+x_f );
+
+		double fcf = value( v[z_f], width*y_c+x_f );
+		double ccf = value( v[z_c], width*y_c+x_f );
+
+		double ffc = value( v[z_f], width*y_f+x_c );
+		double cfc = value( v[z_c], width*y_f+x_c );
+
+		double fcc = value( v[z_f], width*y_c+x_c );
+		double ccc = value( v[z_c], width*y_c+x_c );
+
+		double i1 = (1 - z_d) * (fff) + (cff) * z_d;
+		double i2 = (1 - z_d) * (fcf) + (ccf) * z_d;
+
+		double j1 = (1 - z_d) * (ffc) + (cfc) * z_d;
+		double j2 = (1 - z_d) * (fcc) + (ccc) * z_d;
+
+		double w1 = i1 * (1 - y_d) + i2 * y_d;
+		double w2 = j1 * (1 - y_d) + j2 * y_d;
+
+		return w1 * (1 - x_d) + w2 * x_d;
+	}
+
+	static double value( Object plane, int index ) {
+		if( plane instanceof short[] )
+			return ((short[])plane)[index] & 0xFFFF;
+		return ((float[])plane)[index];
+	}
+
+	/* The template is transformed in slabs of slices, one per
+	   thread.  The model may be an 8-bit, 16-bit or 32-bit image;
+	   the result has the same type. */
+
 	public ImagePlus transform( ImagePlus templateImage, ImagePlus modelImage ) {
 
-		int modelWidth = modelImage.getWidth();
-		int modelHeight = modelImage.getHeight();
-		int modelDepth = modelImage.getStackSize();
+		final int modelWidth = modelImage.getWidth();
+		final int modelHeight = modelImage.getHeight();
+		final int modelDepth = modelImage.getStackSize();
 		double modelXSpacing = 1;
 		double modelYSpacing = 1;
 		double modelZSpacing = 1;
@@ -161,9 +227,9 @@ public class CMTKTransformation {
 			modelZSpacing = modelCalibration.pixelDepth;
 		}
 
-		int templateWidth = templateImage.getWidth();
-		int templateHeight = templateImage.getHeight();
-		int templateDepth = templateImage.getStackSize();
+		final int templateWidth = templateImage.getWidth();
+		final int templateHeight = templateImage.getHeight();
+		final int templateDepth = templateImage.getStackSize();
 		double templateXSpacing = 1;
 		double templateYSpacing = 1;
 		double templateZSpacing = 1;
@@ -174,50 +240,145 @@ public class CMTKTransformation {
 			templateZSpacing = templateCalibration.pixelDepth;
 		}
 
-		IJ.showProgress( 0 );
+		final int type = modelImage.getType();
+		if( type != ImagePlus.GRAY8 && type != ImagePlus.GRAY16 &&
+		    type != ImagePlus.GRAY32 )
+			throw new RuntimeException( "CMTKTransformation.transform() only supports 8-bit, 16-bit and 32-bit models" );
 
-		double [] result = new double[3];
-		byte [][] imageBytes = new byte[templateDepth][templateWidth*templateHeight];
+		IJ.showProgress( 0 );
 
+		final Object [] modelPixels = new Object[modelDepth];
+		final byte [][] modelBytes = new byte[modelDepth][];
 		ImageStack modelStack = modelImage.getStack();
-		byte [][] modelBytes = new byte[modelDepth][];
-		for( int z = 0; z < modelDepth; ++z )
-			modelBytes[z] = (byte[])modelStack.getPixels( z + 1 );
-
-		for( int zi = 0; zi < templateDepth; ++zi ) {
-			for( int yi = 0; yi < templateHeight; ++yi )
-				for( int xi = 0; xi < templateWidth; ++xi ) {
-					double x = xi * templateXSpacing;
-					double y = yi * templateYSpacing;
-					double z = zi * templateZSpacing;
-					transformPoint( x, y, z, result );
-					double xt = result[0];
-					double yt = result[1];
-					double zt = result[2];
-					byte value = trilinearInterpolateByte(
-						xt/modelXSpacing,
-						yt/modelYSpacing,
-						zt/modelZSpacing,
-						modelWidth,
-						modelHeight,
-						modelDepth,
-						modelBytes );
-					imageBytes[zi][yi*templateWidth+xi] = value;
-				}
-			IJ.showProgress( zi / (double)( templateDepth + 1 ) );
+		for( int z = 0; z < modelDepth; ++z ) {
+			modelPixels[z] = modelStack.getPixels( z + 1 );
+			if( type == ImagePlus.GRAY8 )
+				modelBytes[z] = (byte[])modelPixels[z];
 		}
+
+		final WeightTable tableX = weightTable( templateWidth, templateXSpacing, deltax, dimsx );
+		final WeightTable tableY = weightTable( templateHeight, templateYSpacing, deltay, dimsy );
+		final WeightTable tableZ = weightTable( templateDepth, templateZSpacing, deltaz, dimsz );
+
+		final double mxs = modelXSpacing, mys = modelYSpacing, mzs = modelZSpacing;
+		final Object [] slices = new Object[templateDepth];
+		final int [] done = new int[1];
+
+		Parallel.forEach( templateDepth, new Parallel.Loop() {
+			public void run( int zi ) {
+				double [] result = new double[3];
+				int n = templateWidth * templateHeight;
+				byte [] bytes = null;
+				short [] shorts = null;
+				float [] floats = null;
+				switch( type ) {
+				case ImagePlus.GRAY8: slices[zi] = bytes = new byte[n]; break;
+				case ImagePlus.GRAY16: slices[zi] = shorts = new short[n]; break;
+				default: slices[zi] = floats = new float[n];
+				}
+				for( int yi = 0; yi < templateHeight; ++yi )
+					for( int xi = 0; xi < templateWidth; ++xi ) {
+						transformPoint( xi, yi, zi, tableX, tableY, tableZ, result );
+						double xt = result[0] / mxs;
+						double yt = result[1] / mys;
+						double zt = result[2] / mzs;
+						int i = yi * templateWidth + xi;
+						if( bytes != null ) {
+							bytes[i] = trilinearInterpolateByte(
+								xt, yt, zt,
+								modelWidth,
+								modelHeight,
+								modelDepth,
+								modelBytes );
+							continue;
+						}
+						double value = trilinearInterpolate(
+							xt, yt, zt,
+							modelWidth,
+							modelHeight,
+							modelDepth,
+							modelPixels );
+						if( shorts != null )
+							shorts[i] = (short)Math.max( 0, Math.min( 65535, Math.round( value ) ) );
+						else
+							floats[i] = (float)value;
+					}
+				synchronized( done ) {
+					IJ.showProgress( ++done[0] / (double)( templateDepth + 1 ) );
+				}
+			}
+		} );
+
 		ImageStack newStack = new ImageStack( templateWidth, templateHeight );
-		for( int z = 0; z < templateDepth; ++z ) {
-			ByteProcessor bp = new ByteProcessor( templateWidth, templateHeight );
-			bp.setPixels( imageBytes[z] );
-			newStack.addSlice( "", bp );
-		}
+		for( int z = 0; z < templateDepth; ++z )
+			newStack.addSlice( "", slices[z] );
 		IJ.showProgress( 1.0 );
 		ImagePlus resultImage = new ImagePlus( "Transformed", newStack );
 		resultImage.setCalibration( templateCalibration );
 		return resultImage;
 	}
 
+	/* The B-spline weights along one axis of a voxel grid: the
+	   voxel i is influenced by the control points grid[i], ...,
+	   grid[i] + 3 with the weights weights[4 * i], ...,
+	   weights[4 * i + 3]. */
+
+	static class WeightTable {
+		int [] grid;
+		double [] weights;
+	}
+
+	WeightTable weightTable( int n, double spacing, double delta, int dims ) {
+		WeightTable table = new WeightTable();
+		table.grid = new int[n];
+		table.weights = new double[4 * n];
+		for( int i = 0; i < n; ++i ) {
+			// exactly as in transformPoint( double, ... )
+			double cellD = (i * spacing) / delta;
+			int grid = Math.min( (int)cellD, dims - 4 );
+			double u = cellD - grid;
+			table.grid[i] = grid;
+			for( int l = 0; l < 4; ++l )
+				table.weights[4 * i + l] = bSpline( l, u );
+		}
+		return table;
+	}
+
+	/* Transforms the voxel (xi, yi, zi) of the grid that the tables
+	   were made for; the result is identical to transformPoint()
+	   of the voxel's coordinates. */
+
+	public void transformPoint( int xi, int yi, int zi,
+				    WeightTable tableX, WeightTable tableY, WeightTable tableZ,
+				    double [] result ) {
+
+		int gridi = tableX.grid[xi];
+		int gridj = tableY.grid[yi];
+		int gridk = tableZ.grid[zi];
+
+		double [] wx = tableX.weights, wy = tableY.weights, wz = tableZ.weights;
+		int ox = 4 * xi, oy = 4 * yi, oz = 4 * zi;
+
+		double r0 = 0, r1 = 0, r2 = 0;
+
+		for( int l = 0; l < 4; ++l )
+			for( int m = 0; m < 4; ++m ) {
+				double wlm = wx[ox + l] * wy[oy + m];
+				int c = (gridi+l) + dimsx * ((gridj+m) + dimsy * gridk);
+				for( int n = 0; n < 4; ++n, c += dimsx * dimsy ) {
+					double splineProduct = wlm * wz[oz + n];
+					double [] coeff = coeffs[c];
+					r0 += splineProduct * coeff[0];
+					r1 += splineProduct * coeff[1];
+					r2 += splineProduct * coeff[2];
+				}
+			}
+
+		result[0] = r0;
+		result[1] = r1;
+		result[2] = r2;
+	}
+
 	public double bSpline( int l, double u ) {
 		switch (l) {
 		case 0:
@@ -533,7 +694,10 @@ public class CMTKTransformation {
 		File xFile = new File( directoryOfOriginalFile, "inverse_x.gz" );
 		File yFile = new File( directoryOfOriginalFile, "inverse_y.gz" );
 		File zFile = new File( directoryOfOriginalFile, "inverse_z.gz" );
-		return headerFile.exists() && xFile.exists() && yFile.exists() && zFile.exists();
+		File rawHeaderFile = new File( directoryOfOriginalFile, "inverse-raw.nhdr" );
+		File rawFile = new File( directoryOfOriginalFile, "inverse.raw" );
+		return (rawHeaderFile.exists() && rawFile.exists()) ||
+			(headerFile.exists() && xFile.exists() && yFile.exists() && zFile.exists());
 	}
 
 	/* The CMTK creates a mapping from the template to the model.
@@ -561,6 +725,19 @@ public class CMTKTransformation {
 	   nearest neighbour with the problems (a) or (b), or possibly
 	   natural neighbour with rather more thought...
 
+	   The template slices are mapped concurrently; as several
+	   threads may update the same model voxel, each model plane
+	   has a lock, and of two equally near template points the
+	   first in scan order wins, so that the result is the same as
+	   a serial one.
+
+	   The inverse is cached next to the original file as a raw
+	   NRRD (inverse-raw.nhdr and inverse.raw), which is memory
+	   mapped rather than read in.  The older gzipped files
+	   (inverse.nhdr and inverse_[xyz].gz) are still read, and
+	   converted to the raw format.  A raw cache that cannot be
+	   mapped is deleted, and the inverse loaded or computed
+	   again, as is one whose gzipped files cannot be read.
 	*/
 
 	public Inverse inverse( ImagePlus template, ImagePlus model ) {
@@ -576,51 +753,88 @@ public class CMTKTransformation {
 		File xFile = new File( directoryOfOriginalFile, "inverse_x.gz" );
 		File yFile = new File( directoryOfOriginalFile, "inverse_y.gz" );
 		File zFile = new File( directoryOfOriginalFile, "inverse_z.gz" );
+		File rawHeaderFile = new File( directoryOfOriginalFile, "inverse-raw.nhdr" );
+		File rawFile = new File( directoryOfOriginalFile, "inverse.raw" );
+		if( rawHeaderFile.exists() && rawFile.exists() ) {
+			inverse = Inverse.map( rawHeaderFile, template, model );
+			if( inverse != null )
+				return inverse;
+			deleteRawCache( rawHeaderFile, rawFile );
+		}
 		if( headerFile.exists() && xFile.exists() && yFile.exists() && zFile.exists() ) {
 			inverse = Inverse.load( headerFile, xFile, yFile, zFile,
 						template, model );
-			return inverse;
+			if( inverse != null ) {
+				try {
+					inverse.writeRaw( rawHeaderFile, rawFile );
+				} catch( IOException e ) {
+					IJ.error( "Writing the inverse to disk failed: "+e);
+					e.printStackTrace();
+				}
+				return inverse;
+			}
 		}
 
-		int modelWidth = model.getWidth();
-		int modelHeight = model.getHeight();
-		int modelDepth = model.getStackSize();
+		template.close();
+		model.close();
 
-		int templateWidth = template.getWidth();
-		int templateHeight = template.getHeight();
-		int templateDepth = template.getStackSize();
+		Inverse result = computeInverse( template, model );
+		if( result == null )
+			return null;
 
-		double templatePixelWidth = 1;
-		double templatePixelHeight = 1;
-		double templatePixelDepth = 1;
+		/* I'm so short of memory on my desktop machine that I
+		   have to write this straight out to disk and then
+		   map it in again.  It'd so tedious to calculate
+		   that this probably isn't a bad thing anyway... */
 
-		Calibration templateCalibration = template.getCalibration();
-		if( templateCalibration != null ) {
-			templatePixelWidth = templateCalibration.pixelWidth;
-			templatePixelHeight = templateCalibration.pixelHeight;
-			templatePixelDepth = templateCalibration.pixelDepth;
+		try {
+			System.out.println("Writing to "+rawHeaderFile.getAbsolutePath());
+			result.writeRaw( rawHeaderFile, rawFile );
+		} catch( IOException e ) {
+			IJ.error( "Writing the inverse to disk failed: "+e);
+			e.printStackTrace();
+			return result;
 		}
 
-		double modelPixelWidth = 1;
-		double modelPixelHeight = 1;
-		double modelPixelDepth = 1;
-
-		Calibration modelCalibration = model.getCalibration();
-		if( modelCalibration != null ) {
-			modelPixelWidth = modelCalibration.pixelWidth;
-			modelPixelHeight = modelCalibration.pixelHeight;
-			modelPixelDepth = modelCalibration.pixelDepth;
+		System.out.println("Mapping it back in now:");
+		inverse = Inverse.map( rawHeaderFile, template, model );
+		if( inverse == null ) {
+			deleteRawCache( rawHeaderFile, rawFile );
+			inverse = result;
+			return inverse;
 		}
+		result = null;
 
-		template.close();
-		model.close();
+		// Shouldn't make a difference, but maybe it does on some old or broken VMs...
+		System.gc();
+
+		return inverse;
+	}
+
+	static void deleteRawCache( File rawHeaderFile, File rawFile ) {
+		System.out.println("Deleting the raw cache "+rawFile.getAbsolutePath());
+		rawHeaderFile.delete();
+		rawFile.delete();
+	}
+
+	Inverse computeInverse( ImagePlus template, ImagePlus model ) {
+
+		final Inverse result = new Inverse( template, model );
+
+		final int modelWidth = result.modelWidth;
+		final int modelHeight = result.modelHeight;
+		final int modelDepth = result.modelDepth;
+
+		final int templateWidth = result.templateWidth;
+		final int templateHeight = result.templateHeight;
+		final int templateDepth = result.templateDepth;
 
-		int pointsEitherSide = 3;
+		final int pointsEitherSide = 3;
 
-		short [][] templateX;
-		short [][] templateY;
-		short [][] templateZ;
-		float [][] distanceSquared;
+		final short [][] templateX;
+		final short [][] templateY;
+		final short [][] templateZ;
+		final float [][] distanceSquared;
 
 		try {
 
@@ -635,155 +849,116 @@ public class CMTKTransformation {
 			return null;
 		}
 
-		double [] transformed = new double[3];
-
+		final Object [] planeLocks = new Object[modelDepth];
 		for( int z = 0; z < modelDepth; ++z ) {
-			for( int p = 0; p < (modelWidth * modelHeight); ++p ) {
-				distanceSquared[z][p] = Float.MAX_VALUE;
-				templateX[z][p] = Short.MIN_VALUE;
-				templateY[z][p] = Short.MIN_VALUE;
-				templateZ[z][p] = Short.MIN_VALUE;
-			}
-		}
-
-		for( int tiz = 0; tiz < templateDepth; ++tiz ) {
-			System.out.println("New template z: "+tiz);
-			for( int tiy = 0; tiy < templateHeight; ++tiy ) {
-				// System.out.println("New template y: "+tiy);
-				for( int tix = 0; tix < templateWidth; ++tix ) {
-/*
-					if( true ) {
-						int indexOfMaximum = 0;
-						int pi = (tiy * templateWidth + tix) % (modelWidth * modelHeight);
-						int pz = tiz % modelDepth;
-						distanceSquared[indexOfMaximum][pz][pi] = 3.4f;
-						templateX[indexOfMaximum][pz][pi] = (short)(templateWidth - tix);
-						templateY[indexOfMaximum][pz][pi] = (short)(templateHeight - tiy);
-						templateZ[indexOfMaximum][pz][pi] = (short)(templateDepth - tiz);
-						continue;
-					}
-*/
-					double tx = tix * templatePixelWidth;
-					double ty = tiy * templatePixelHeight;
-					double tz = tiz * templatePixelDepth;
-					transformPoint( tx, ty, tz, transformed );
-					double mx = transformed[0];
-					double my = transformed[1];
-					double mz = transformed[2];
-					int mix = (int)Math.round( mx / modelPixelWidth );
-					int miy = (int)Math.round( my / modelPixelHeight );
-					int miz = (int)Math.round( mz / modelPixelDepth );
-					for( int nearmiz = miz - pointsEitherSide;
-					     nearmiz <= miz + pointsEitherSide;
-					     ++nearmiz )
-						for( int nearmiy = miy - pointsEitherSide;
-						     nearmiy <= miy + pointsEitherSide;
-						     ++nearmiy )
-							for( int nearmix = mix - pointsEitherSide;
-							     nearmix <= mix + pointsEitherSide;
-							     ++nearmix ) {
-								if( nearmix < 0 || nearmiy < 0 || nearmiz < 0 ||
-								    nearmix >= modelWidth ||
-								    nearmiy >= modelHeight ||
-								    nearmiz >= modelDepth )
-									continue;
-								double nearmx = nearmix * modelPixelWidth;
-								double nearmy = nearmiy * modelPixelHeight;
-								double nearmz = nearmiz * modelPixelDepth;
-								double xdiff = nearmx - mx;
-								double ydiff = nearmy - my;
-								double zdiff = nearmz - mz;
-								double doubleDistanceSquared =
-									xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
-								float ds = (float)doubleDistanceSquared;
-								int pi = nearmiy * modelWidth + nearmix;
-								if( ds < distanceSquared[nearmiz][pi] ) {
-									distanceSquared[nearmiz][pi] = ds;
-									templateX[nearmiz][pi] = (short)tix;
-									templateY[nearmiz][pi] = (short)tiy;
-									templateZ[nearmiz][pi] = (short)tiz;
-								}
-							}
-				}
-			}
+			planeLocks[z] = new Object();
+			Arrays.fill( distanceSquared[z], Float.MAX_VALUE );
+			Arrays.fill( templateX[z], Short.MIN_VALUE );
+			Arrays.fill( templateY[z], Short.MIN_VALUE );
+			Arrays.fill( templateZ[z], Short.MIN_VALUE );
 		}
 
-		/* I'm so short of memory on my desktop machine that I
-		   have to write this straight out to disk and then
-		   read it in again.  It'd so tedious to calculate
-		   that this probably isn't a bad thing anyway... */
-
-		try {
-			System.out.println("Writing to "+headerFile.getAbsolutePath());
-
-			// Write the header file first:
-			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(headerFile),"UTF-8"));
-			pw.println("NRRD0005");
-			pw.println("type: short");
-			pw.println("endian: big");
-			pw.println("dimension: 4");
-			pw.println("sizes: "+modelWidth+" "+modelHeight+" "+modelDepth+" 3");
-			pw.println("encoding: gz");
-			pw.println("data file: LIST");
-			pw.println(xFile.getName());
-			pw.println(yFile.getName());
-			pw.println(zFile.getName());
-			// FIXME: how do we output the model calibration in NRRD?  Or not bother?
-			pw.close();
+		final WeightTable tableX = weightTable( templateWidth, result.templatePixelWidth, deltax, dimsx );
+		final WeightTable tableY = weightTable( templateHeight, result.templatePixelHeight, deltay, dimsy );
+		final WeightTable tableZ = weightTable( templateDepth, result.templatePixelDepth, deltaz, dimsz );
+		final double mpw = result.modelPixelWidth, mph = result.modelPixelHeight, mpd = result.modelPixelDepth;
+		final int [] done = new int[1];
 
-			System.out.println("  Writing to "+xFile.getAbsolutePath());
-			System.out.println("  Writing to "+yFile.getAbsolutePath());
-			System.out.println("  Writing to "+zFile.getAbsolutePath());
-
-			DataOutputStream dosX = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(xFile)));
-			DataOutputStream dosY = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(yFile)));
-			DataOutputStream dosZ = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(zFile)));
-
-			for( int miz = 0; miz < modelDepth; ++miz )
-				for( int miy = 0; miy < modelHeight; ++miy )
-					for( int mix = 0; mix < modelWidth; ++mix ) {
-						int pi = ((int)miy) * modelWidth + (int)mix;
-						if( distanceSquared[miz][pi] < Float.MAX_VALUE ) {
-							dosX.writeShort( templateX[miz][pi] );
-							dosY.writeShort( templateY[miz][pi] );
-							dosZ.writeShort( templateZ[miz][pi] );
-						} else {
-							dosX.writeShort( Short.MIN_VALUE );
-							dosY.writeShort( Short.MIN_VALUE );
-							dosZ.writeShort( Short.MIN_VALUE );
+		IJ.showProgress( 0 );
+		Parallel.forEach( templateDepth, new Parallel.Loop() {
+			public void run( int tiz ) {
+				double [] transformed = new double[3];
+				for( int tiy = 0; tiy < templateHeight; ++tiy )
+					for( int tix = 0; tix < templateWidth; ++tix ) {
+						transformPoint( tix, tiy, tiz, tableX, tableY, tableZ, transformed );
+						double mx = transformed[0];
+						double my = transformed[1];
+						double mz = transformed[2];
+						int mix = (int)Math.round( mx / mpw );
+						int miy = (int)Math.round( my / mph );
+						int miz = (int)Math.round( mz / mpd );
+						for( int nearmiz = Math.max( 0, miz - pointsEitherSide );
+						     nearmiz <= Math.min( modelDepth - 1, miz + pointsEitherSide );
+						     ++nearmiz ) {
+							float [] distances = distanceSquared[nearmiz];
+							short [] planeX = templateX[nearmiz];
+							short [] planeY = templateY[nearmiz];
+							short [] planeZ = templateZ[nearmiz];
+							synchronized( planeLocks[nearmiz] ) {
+								for( int nearmiy = miy - pointsEitherSide;
+								     nearmiy <= miy + pointsEitherSide;
+								     ++nearmiy )
+									for( int nearmix = mix - pointsEitherSide;
+									     nearmix <= mix + pointsEitherSide;
+									     ++nearmix ) {
+										if( nearmix < 0 || nearmiy < 0 ||
+										    nearmix >= modelWidth ||
+										    nearmiy >= modelHeight )
+											continue;
+										double nearmx = nearmix * mpw;
+										double nearmy = nearmiy * mph;
+										double nearmz = nearmiz * mpd;
+										double xdiff = nearmx - mx;
+										double ydiff = nearmy - my;
+										double zdiff = nearmz - mz;
+										double doubleDistanceSquared =
+											xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
+										float ds = (float)doubleDistanceSquared;
+										int pi = nearmiy * modelWidth + nearmix;
+										if( ds < distances[pi] ||
+										    (ds == distances[pi] &&
+										     scansBefore( tix, tiy, tiz,
+												  planeX[pi],
+												  planeY[pi],
+												  planeZ[pi] )) ) {
+											distances[pi] = ds;
+											planeX[pi] = (short)tix;
+											planeY[pi] = (short)tiy;
+											planeZ[pi] = (short)tiz;
+										}
+									}
+							}
 						}
 					}
+				synchronized( done ) {
+					IJ.showProgress( ++done[0] / (double)( templateDepth + 1 ) );
+				}
+			}
+		} );
+		IJ.showProgress( 1.0 );
 
-			dosX.close();
-			dosY.close();
-			dosZ.close();
-
-		} catch( IOException e ) {
-			IJ.error( "Writing the inverse to disk failed: "+e);
-			e.printStackTrace();
+		for( int z = 0; z < modelDepth; ++z ) {
+			result.templateX[z] = ShortBuffer.wrap( templateX[z] );
+			result.templateY[z] = ShortBuffer.wrap( templateY[z] );
+			result.templateZ[z] = ShortBuffer.wrap( templateZ[z] );
 		}
+		return result;
+	}
 
-		templateX = null;
-		templateY = null;
-		templateZ = null;
-		distanceSquared = null;
-
-		// Shouldn't make a difference, but maybe it does on some old or broken VMs...
-		System.gc();
+	/* Whether the template voxel (x0, y0, z0) comes before (x1, y1,
+	   z1) when scanning the template plane by plane */
 
-		System.out.println("Loading back in now:");
-		Inverse result = Inverse.load( headerFile, xFile, yFile, zFile, template, model );
-		return result;
+	static boolean scansBefore( int x0, int y0, int z0, int x1, int y1, int z1 ) {
+		if( z0 != z1 )
+			return z0 < z1;
+		if( y0 != y1 )
+			return y0 < y1;
+		return x0 < x1;
 	}
 
+
 	static public class Inverse {
 
 		int modelWidth, modelHeight, modelDepth;
 		int templateWidth, templateHeight, templateDepth;
 
-		short templateX [][];
-		short templateY [][];
-		short templateZ [][];
+		/* The template voxel of each model voxel, one buffer
+		   per model plane, indexed by y * modelWidth + x;
+		   Short.MIN_VALUE if there is none.  These are either
+		   on the heap or mapped from inverse.raw. */
+		ShortBuffer [] templateX;
+		ShortBuffer [] templateY;
+		ShortBuffer [] templateZ;
 
 		Calibration templateCalibration;
 		Calibration modelCalibration;
@@ -810,9 +985,9 @@ public class CMTKTransformation {
 				templatePixelHeight = templateCalibration.pixelHeight;
 				templatePixelDepth = templateCalibration.pixelDepth;
 			}
-			templateX = new short[modelDepth][modelWidth*modelHeight];
-			templateY = new short[modelDepth][modelWidth*modelHeight];
-			templateZ = new short[modelDepth][modelWidth*modelHeight];
+			templateX = new ShortBuffer[modelDepth];
+			templateY = new ShortBuffer[modelDepth];
+			templateZ = new ShortBuffer[modelDepth];
 		}
 
 		public static Inverse load( File headerFile, File xFile, File yFile, File zFile, ImagePlus template, ImagePlus model ) {
@@ -868,10 +1043,11 @@ public class CMTKTransformation {
 
 				// Then create the object and read in the data files:
 				result = new Inverse( template, model );
+				int planeSize = modelWidth * modelHeight;
 
 				for( int i = 0; i < ni.dataFiles.length; ++i ) {
 					File f = ni.dataFiles[i];
-					short [][] target = null;
+					ShortBuffer [] target = null;
 					switch( i ) {
 					case 0:
 						target = result.templateX;
@@ -886,12 +1062,12 @@ public class CMTKTransformation {
 						throw new RuntimeException( "BUG: i is surprising (" + i + ")" );
 					}
 					DataInputStream dis = new DataInputStream( new BufferedInputStream( new GZIPInputStream(new FileInputStream(f)) ));
-					long expectedShorts = modelWidth * modelHeight * modelDepth;
-					for( p = 0; p < expectedShorts; ++p ) {
-						int modelX = (int)( p % modelWidth );
-						int modelY = (int)( (p / modelWidth) % modelHeight );
-						int modelZ = (int)( (p / (modelWidth * modelHeight)) % modelDepth );
-						target[modelZ][modelY*modelWidth+modelX] = dis.readShort();
+					p = 0;
+					for( int z = 0; z < modelDepth; ++z ) {
+						short [] plane = new short[planeSize];
+						for( int pi = 0; pi < planeSize; ++pi, ++p )
+							plane[pi] = dis.readShort();
+						target[z] = ShortBuffer.wrap( plane );
 					}
 					dis.close();
 				}
@@ -906,6 +1082,93 @@ public class CMTKTransformation {
 			return result;
 		}
 
+		/* Maps the raw NRRD written by writeRaw() instead of
+		   reading it; each plane of each component is mapped
+		   separately, as a mapping may have at most 2GB.
+		   Returns null if the file cannot be mapped. */
+
+		public static Inverse map( File headerFile, ImagePlus template, ImagePlus model ) {
+
+			Inverse result = new Inverse( template, model );
+
+			try {
+				NrrdHeader nh = new NrrdHeader();
+				nh.readHeader( headerFile.getAbsolutePath() );
+				NrrdInfo ni = new NrrdInfo( nh );
+				ni.parseHeader();
+
+				String type = ni.getStandardType( ni.getStringFieldChecked( "type", 1, true )[0] );
+				String encoding = ni.getStringFieldChecked( "encoding", 1, true )[0];
+				String endian = ni.getStringFieldChecked( "endian", 1, true )[0];
+				if( ! type.equals( "int16" ) || ! encoding.equals( "raw" ) || ! endian.equals( "big" ) )
+					throw new Exception( "The mapped inverse must be raw big endian int16, not "+encoding+" "+endian+" "+type );
+
+				long [] requiredSizes = new long[4];
+				requiredSizes[0] = result.modelWidth;
+				requiredSizes[1] = result.modelHeight;
+				requiredSizes[2] = result.modelDepth;
+				requiredSizes[3] = 3;
+				long [] sizes = ni.getLongFieldChecked( "sizes", 4, true );
+				if( ! Arrays.equals( sizes, requiredSizes ) )
+					throw new Exception( "The sizes of the mapped inverse don't match the model" );
+				if( ni.dataFiles.length != 1 )
+					throw new Exception( "The mapped inverse must have one data file, not: "+ni.dataFiles.length );
+
+				long planeBytes = 2L * result.modelWidth * result.modelHeight;
+				long componentBytes = planeBytes * result.modelDepth;
+
+				RandomAccessFile file = new RandomAccessFile( ni.dataFiles[0], "r" );
+				try {
+					FileChannel channel = file.getChannel();
+					if( channel.size() != 3 * componentBytes )
+						throw new Exception( ni.dataFiles[0]+" should have "+(3 * componentBytes)+" bytes, not "+channel.size() );
+					ShortBuffer [][] components = { result.templateX, result.templateY, result.templateZ };
+					for( int i = 0; i < 3; ++i )
+						for( int z = 0; z < result.modelDepth; ++z )
+							components[i][z] = channel.map( FileChannel.MapMode.READ_ONLY,
+											i * componentBytes + z * planeBytes,
+											planeBytes ).order( ByteOrder.BIG_ENDIAN ).asShortBuffer();
+				} finally {
+					// the mappings stay valid
+					file.close();
+				}
+
+			} catch( Exception e ) {
+				IJ.error("There was an error mapping the CMTK inverse: "+e);
+				e.printStackTrace();
+				return null;
+			}
+
+			return result;
+		}
+
+		/* Writes the inverse as a raw NRRD with one big endian
+		   data file holding the x, y and z components one after
+		   the other.  The header is written last, so that an
+		   interrupted write does not leave a cache behind. */
+
+		public void writeRaw( File headerFile, File rawFile ) throws IOException {
+
+			int planeSize = modelWidth * modelHeight;
+			DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( rawFile ), 1 << 16 ) );
+			ShortBuffer [][] components = { templateX, templateY, templateZ };
+			for( int c = 0; c < 3; ++c )
+				for( int z = 0; z < modelDepth; ++z )
+					for( int i = 0; i < planeSize; ++i )
+						dos.writeShort( components[c][z].get( i ) );
+			dos.close();
+
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(headerFile),"UTF-8"));
+			pw.println("NRRD0005");
+			pw.println("type: short");
+			pw.println("endian: big");
+			pw.println("dimension: 4");
+			pw.println("sizes: "+modelWidth+" "+modelHeight+" "+modelDepth+" 3");
+			pw.println("encoding: raw");
+			pw.println("data file: "+rawFile.getName());
+			pw.close();
+		}
+
 		public void transformPoint( double modelX, double modelY, double modelZ, double [] transformed ) {
 			int mix = (int)Math.round( modelX / modelPixelWidth );
 			int miy = (int)Math.round( modelY / modelPixelHeight );
@@ -916,9 +1179,9 @@ public class CMTKTransformation {
 				transformed[1] = Double.NaN;
 				transformed[2] = Double.NaN;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short transformedX = templateX[miz].get( miy * modelWidth + mix );
+				short transformedY = templateY[miz].get( miy * modelWidth + mix );
+				short transformedZ = templateZ[miz].get( miy * modelWidth + mix );
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -943,9 +1206,9 @@ public class CMTKTransformation {
 				transformed[1] = Integer.MIN_VALUE;
 				transformed[2] = Integer.MIN_VALUE;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short transformedX = templateX[miz].get( miy * modelWidth + mix );
+				short transformedY = templateY[miz].get( miy * modelWidth + mix );
+				short transformedZ = templateZ[miz].get( miy * modelWidth + mix );
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -970,9 +1233,9 @@ public class CMTKTransformation {
 				transformed[1] = Integer.MIN_VALUE;
 				transformed[2] = Integer.MIN_VALUE;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short transformedX = templateX[miz].get( miy * modelWidth + mix );
+				short transformedY = templateY[miz].get( miy * modelWidth + mix );
+				short transformedZ = templateZ[miz].get( miy * modelWidth + mix );
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -997,9 +1260,9 @@ public class CMTKTransformation {
 				transformed[1] = Double.NaN;
 				transformed[2] = Double.NaN;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short transformedX = templateX[miz].get( miy * modelWidth + mix );
+				short transformedY = templateY[miz].get( miy * modelWidth + mix );
+				short transformedZ = templateZ[miz].get( miy * modelWidth + mix );
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -0,0 +1,108 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs the chunks 0, ..., n - 1 of a loop on a shared pool of daemon
+ * threads.  The calling thread works on the chunks, too, and it only
+ * ever waits for chunks another thread has already started, so these
+ * calls can be nested (e.g. a parallel search whose tasks evaluate a
+ * parallel metric).
+ */
+public class Parallel {
+	public interface Loop {
+		public void run(int chunk);
+	}
+
+	private static ExecutorService pool;
+
+	public static int getNumThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	static synchronized ExecutorService getPool() {
+		if (pool == null)
+			pool = Executors.newCachedThreadPool(
+					new ThreadFactory() {
+				int counter;
+				public synchronized Thread newThread(
+						Runnable r) {
+					Thread thread = new Thread(r,
+						"VIB worker " + (++counter));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return pool;
+	}
+
+	public static void forEach(int n, final Loop loop) {
+		forEach(n, getNumThreads(), loop);
+	}
+
+	public static void forEach(final int n, int threads, final Loop loop) {
+		if (threads > n)
+			threads = n;
+		if (threads < 2) {
+			for (int i = 0; i < n; i++)
+				loop.run(i);
+			return;
+		}
+
+		// counter[0] is the next chunk, counter[1] the finished ones
+		final int[] counter = { 0, 0 };
+		final Throwable[] error = { null };
+		Runnable worker = new Runnable() {
+			public void run() {
+				for (;;) {
+					int i;
+					synchronized (counter) {
+						if (counter[0] >= n ||
+								error[0] != null)
+							return;
+						i = counter[0]++;
+					}
+					try {
+						loop.run(i);
+					} catch (Throwable t) {
+						synchronized (counter) {
+							if (error[0] == null)
+								error[0] = t;
+						}
+					}
+					synchronized (counter) {
+						counter[1]++;
+						counter.notifyAll();
+					}
+				}
+			}
+		};
+
+		ExecutorService pool = getPool();
+		for (int t = 1; t < threads; t++)
+			pool.execute(worker);
+		worker.run();
+
+		// wait for the chunks other threads are still working on
+		synchronized (counter) {
+			while (counter[1] < counter[0])
+				try {
+					counter.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+		}
+
+		if (error[0] instanceof RuntimeException)
+			throw (RuntimeException)error[0];
+		if (error[0] instanceof Error)
+			throw (Error)error[0];
+		if (error[0] != null)
+			throw new RuntimeException(error[0]);
+	}
+}
@@ -0,0 +1,247 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import util.Parallel;
+
+/*
+ * The coefficients of the cubic B-spline interpolating an image (see
+ * M. Unser, "Splines: A Perfect Fit for Signal and Image Processing").
+ *
+ * The coefficients are obtained by a recursive prefilter, applied
+ * separably along x, y and z, with mirrored boundaries; the lines are
+ * filtered concurrently.  As the prefilter needs a pass over the whole
+ * volume, the coefficients are cached, keyed like the levels of
+ * ImagePyramid by the identity of the image's stack (only weakly
+ * referenced) and its dimensions: replacing the stack or adding slices
+ * gives new coefficients, but after changing the pixels in place,
+ * invalidate() needs to be called.
+ */
+public class BSplineCoefficients {
+	public final int w, h, d;
+	// the coefficients of the plane z, indexed by x + w * y
+	public final float[][] coefficients;
+
+	private static HashMap<Key, Entry> cache = new HashMap<Key, Entry>();
+
+	public static BSplineCoefficients get(ImagePlus image) {
+		Key key = new Key(image.getStack());
+		Entry entry;
+		synchronized (BSplineCoefficients.class) {
+			removeCollected();
+			entry = cache.get(key);
+			if (entry == null) {
+				entry = new Entry();
+				cache.put(key, entry);
+			}
+		}
+		/*
+		 * Prefilter outside the global lock, so that different
+		 * images are handled concurrently; threads asking for the
+		 * same image wait for the first one.
+		 */
+		synchronized (entry) {
+			if (entry.coefficients == null)
+				entry.coefficients =
+					new BSplineCoefficients(image);
+			return entry.coefficients;
+		}
+	}
+
+	/* Forget the coefficients of an image whose pixels were changed */
+	public static synchronized void invalidate(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		Iterator<Key> iter = cache.keySet().iterator();
+		while (iter.hasNext())
+			if (iter.next().stack.get() == stack)
+				iter.remove();
+	}
+
+	public static synchronized void clear() {
+		cache.clear();
+	}
+
+	/* must be called with the class lock held */
+	private static void removeCollected() {
+		Iterator<Key> iter = cache.keySet().iterator();
+		while (iter.hasNext())
+			if (iter.next().stack.get() == null)
+				iter.remove();
+	}
+
+	private static class Entry {
+		BSplineCoefficients coefficients;
+	}
+
+	/* the stack is only weakly referenced */
+	private static class Key {
+		WeakReference<ImageStack> stack;
+		int width, height, depth, hashCode;
+
+		Key(ImageStack stack) {
+			this.stack = new WeakReference<ImageStack>(stack);
+			width = stack.getWidth();
+			height = stack.getHeight();
+			depth = stack.getSize();
+			hashCode = System.identityHashCode(stack);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			ImageStack stack = this.stack.get();
+			return stack != null && stack == other.stack.get() &&
+				width == other.width &&
+				height == other.height &&
+				depth == other.depth;
+		}
+	}
+
+	// the pole of the cubic B-spline prefilter
+	private final static double pole = Math.sqrt(3) - 2;
+	private final static double tolerance = 1e-7;
+
+	public BSplineCoefficients(ImagePlus image) {
+		final ImageStack stack = image.getStack();
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		if (image.getType() == ImagePlus.COLOR_RGB)
+			throw new RuntimeException("B-splines need a scalar image");
+		coefficients = new float[d][];
+
+		// filter along x and y, plane by plane
+		Parallel.forEach(d, new Parallel.Loop() {
+			public void run(int k) {
+				float[] plane = toFloat(stack.getPixels(k + 1));
+				double[] line = new double[Math.max(w, h)];
+				for (int j = 0; j < h; j++)
+					filter(plane, j * w, 1, w, line);
+				for (int i = 0; i < w; i++)
+					filter(plane, i, w, h, line);
+				coefficients[k] = plane;
+			}
+		});
+
+		// filter along z, row by row
+		if (d > 1)
+			Parallel.forEach(h, new Parallel.Loop() {
+				public void run(int j) {
+					double[] line = new double[d];
+					for (int i = j * w; i < (j + 1) * w; i++) {
+						for (int k = 0; k < d; k++)
+							line[k] = coefficients[k][i];
+						filter(line, d);
+						for (int k = 0; k < d; k++)
+							coefficients[k][i] =
+								(float)line[k];
+					}
+				}
+			});
+	}
+
+	private static float[] toFloat(Object pixels) {
+		if (pixels instanceof float[])
+			return (float[])((float[])pixels).clone();
+		if (pixels instanceof short[]) {
+			// signed, as getNoInterpolShort() and AverageShort
+			short[] p = (short[])pixels;
+			float[] result = new float[p.length];
+			for (int i = 0; i < p.length; i++)
+				result[i] = p[i];
+			return result;
+		}
+		byte[] p = (byte[])pixels;
+		float[] result = new float[p.length];
+		for (int i = 0; i < p.length; i++)
+			result[i] = p[i] & 0xff;
+		return result;
+	}
+
+	private static void filter(float[] pixels, int offset, int stride,
+			int n, double[] line) {
+		for (int i = 0; i < n; i++)
+			line[i] = pixels[offset + i * stride];
+		filter(line, n);
+		for (int i = 0; i < n; i++)
+			pixels[offset + i * stride] = (float)line[i];
+	}
+
+	/* the in-place prefilter of the first n entries of c */
+	static void filter(double[] c, int n) {
+		if (n < 2)
+			return;
+		double z = pole;
+		double gain = (1 - z) * (1 - 1 / z);
+		for (int i = 0; i < n; i++)
+			c[i] *= gain;
+
+		// causal pass
+		c[0] = initialCausal(c, n, z);
+		for (int i = 1; i < n; i++)
+			c[i] += z * c[i - 1];
+
+		// anti-causal pass
+		c[n - 1] = (z / (z * z - 1)) * (z * c[n - 2] + c[n - 1]);
+		for (int i = n - 2; i >= 0; i--)
+			c[i] = z * (c[i + 1] - c[i]);
+	}
+
+	private static double initialCausal(double[] c, int n, double z) {
+		int horizon = (int)Math.ceil(Math.log(tolerance)
+				/ Math.log(Math.abs(z)));
+		if (horizon < n) {
+			// the mirrored part is negligible
+			double zn = z, sum = c[0];
+			for (int i = 1; i < horizon; i++) {
+				sum += zn * c[i];
+				zn *= z;
+			}
+			return sum;
+		}
+		double zn = z, iz = 1 / z;
+		double z2n = Math.pow(z, n - 1);
+		double sum = c[0] + z2n * c[n - 1];
+		z2n *= z2n * iz;
+		for (int i = 1; i < n - 1; i++) {
+			sum += (zn + z2n) * c[i];
+			zn *= z;
+			z2n *= iz;
+		}
+		return sum / (1 - zn * zn);
+	}
+
+	/* the index of the mirrored boundary condition */
+	final static int mirror(int i, int n) {
+		if (n == 1)
+			return 0;
+		int period = 2 * n - 2;
+		i = Math.abs(i) % period;
+		return i < n ? i : period - i;
+	}
+
+	/*
+	 * Fills in the four weights of the cubic B-spline for the fraction
+	 * t = x - floor(x); they belong to floor(x) - 1, ..., floor(x) + 2.
+	 */
+	final static void weights(double t, double[] weights, int offset) {
+		double t1 = 1 - t, t2 = t * t;
+		weights[offset] = t1 * t1 * t1 / 6;
+		weights[offset + 1] = (4 - 6 * t2 + 3 * t2 * t) / 6;
+		weights[offset + 3] = t2 * t / 6;
+		weights[offset + 2] = 1 - weights[offset]
+			- weights[offset + 1] - weights[offset + 3];
+	}
+}
@@ -13,6 +13,13 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
+import java.lang.ref.WeakReference;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.Parallel;
+
 public class DiffusionInterpol2 {
 	ImagePlus image;
 	FloatMatrix[] labelTransformations;
@@ -21,6 +28,16 @@ public class DiffusionInterpol2 {
 	boolean remember;
 	float tolerance;
 
+	/*
+	 * How to solve the diffusion equation: GAUSS_SEIDEL sweeps one
+	 * voxel after the other, RED_BLACK relaxes every other voxel in
+	 * parallel, and MULTIGRID uses red-black sweeps in V-cycles.
+	 */
+	public final static int GAUSS_SEIDEL = 0;
+	public final static int RED_BLACK = 1;
+	public final static int MULTIGRID = 2;
+	public int solver = GAUSS_SEIDEL;
+
 	public void initialize(ImagePlus image, ImagePlus templateLabels, 
 			ImagePlus model, FloatMatrix[] labelTransformations, boolean reuse, 
 			boolean remember, float tolerance) {
@@ -33,51 +50,118 @@ public class DiffusionInterpol2 {
 		this.reuse = reuse;
 		this.remember = remember;
 		this.tolerance = tolerance;
+		fixed = null;
 	}
 
-	static float[][] savedDisplace;
-
-	public void doit() {
-		try {
-			reuse = savedDisplace != null ? reuse : false;
-			FloatMatrix fromTemplate = FloatMatrix.fromCalibration(template.image);
-			FloatMatrix toModel = FloatMatrix.fromCalibration(model.image).inverse();
-	
-			for (int i = 1; i < labelTransformations.length; i++) {
-				if (labelTransformations[i] != null)
-					labelTransformations[i] = toModel.times(
-						labelTransformations[i].inverse().times(fromTemplate));
-			}
-			labelTransformations[0] = null; // Exterior does not matter
-
-			globalTransformation = FloatMatrix.average(labelTransformations);
-			if (reuse)
-				displace = savedDisplace;
-			else {
-				if (savedDisplace != null) {
-					// give the garbage collector a chance
-					savedDisplace = null;
-					System.gc();
-					System.gc();
+	/*
+	 * Where to store the displacement field (see DisplacementField);
+	 * if it does not fit into the heap, it is mapped from a scratch
+	 * file instead.  With halfPrecision, a remembered field is cached
+	 * in half precision (the solvers always need single precision).
+	 */
+	public int storage = DisplacementField.HEAP;
+	public boolean halfPrecision;
+
+	/*
+	 * The remembered displacement fields, keyed by the template labels
+	 * (weakly referenced) and the label transformations (which map the
+	 * template to the model, and do not change between the channels of
+	 * one model).  By default, all instances share one cache of a
+	 * quarter of the maximal heap size.
+	 */
+	public static DisplacementFieldCache sharedCache =
+		new DisplacementFieldCache(Runtime.getRuntime().maxMemory() / 4);
+	public DisplacementFieldCache cache = sharedCache;
+
+	static class CacheKey implements DisplacementFieldCache.WeakKey {
+		WeakReference<ImagePlus> templateLabels;
+		int labelsHashCode;
+		float[] transformations;
+
+		CacheKey(ImagePlus templateLabels,
+				FloatMatrix[] labelTransformations) {
+			this.templateLabels =
+				new WeakReference<ImagePlus>(templateLabels);
+			labelsHashCode = System.identityHashCode(templateLabels);
+			transformations = new float[12 * labelTransformations.length];
+			for (int i = 0; i < labelTransformations.length; i++) {
+				FloatMatrix m = labelTransformations[i];
+				if (m == null) {
+					Arrays.fill(transformations, 12 * i,
+						12 * i + 12, Float.NaN);
+					continue;
 				}
+				float[] values = {
+					m.a00, m.a01, m.a02, m.a03,
+					m.a10, m.a11, m.a12, m.a13,
+					m.a20, m.a21, m.a22, m.a23
+				};
+				System.arraycopy(values, 0,
+					transformations, 12 * i, 12);
+			}
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof CacheKey))
+				return false;
+			CacheKey key = (CacheKey)other;
+			ImagePlus labels = templateLabels.get();
+			return labels != null &&
+				labels == key.templateLabels.get() &&
+				Arrays.equals(transformations,
+					key.transformations);
+		}
 
-				displace = new float[template.d][];
-				for (int k = 0; k < template.d; k++)
-					displace[k] = new float[3
-						* template.w * template.h];
+		public int hashCode() {
+			return labelsHashCode * 31 +
+				Arrays.hashCode(transformations);
+		}
 
-				init();
-				iterate(tolerance, false);
-			}
+		public boolean isCleared() {
+			return templateLabels.get() == null;
+		}
+	}
 
-			apply();
+	public void doit() {
+		FloatMatrix fromTemplate = FloatMatrix.fromCalibration(template.image);
+		FloatMatrix toModel = FloatMatrix.fromCalibration(model.image).inverse();
 
-			savedDisplace = (remember ? displace : null);
-		} catch(OutOfMemoryError e) {
-			System.err.println("Out of Memory: DiffusionInterpol2 " + 
-									ij.Macro.getOptions());
-			e.printStackTrace();
-			throw e;
+		for (int i = 1; i < labelTransformations.length; i++) {
+			if (labelTransformations[i] != null)
+				labelTransformations[i] = toModel.times(
+					labelTransformations[i].inverse().times(fromTemplate));
+		}
+		labelTransformations[0] = null; // Exterior does not matter
+
+		globalTransformation = FloatMatrix.average(labelTransformations);
+		CacheKey key = new CacheKey(templateLabels.image,
+			labelTransformations);
+		displace = reuse ? cache.get(key) : null;
+		if (displace == null) {
+			displace = allocate();
+			init();
+			iterate(tolerance, false);
+			if (remember)
+				cache.put(key, halfPrecision ?
+					displace.copy(displace.storage, true) :
+					displace);
+		}
+
+		apply();
+	}
+
+	DisplacementField allocate() {
+		try {
+			return new DisplacementField(template.w, template.h,
+				template.d, storage);
+		} catch (OutOfMemoryError e) {
+			if (storage != DisplacementField.HEAP)
+				throw e;
+			IJ.log("DiffusionInterpol2: the displacement field "
+				+ "does not fit into the heap; mapping it "
+				+ "from a scratch file");
+			return new DisplacementField(template.w, template.h,
+				template.d, DisplacementField.MAPPED);
 		}
 	}
 
@@ -85,16 +169,16 @@ public class DiffusionInterpol2 {
 	InterpolatedImage templateLabels;
 	InterpolatedImage model;
 
-	float[][] displace;
+	DisplacementField displace;
 
 	int level;
 	float accumX, accumY, accumZ;
 	float curX, curY, curZ;
 
 	final private void accumAdd(int i, int j, int k) {
-		accumX += displace[k][3 * (j * template.w + i) + 0];
-		accumY += displace[k][3 * (j * template.w + i) + 1];
-		accumZ += displace[k][3 * (j * template.w + i) + 2];
+		accumX += displace.get(k, 3 * (j * template.w + i) + 0);
+		accumY += displace.get(k, 3 * (j * template.w + i) + 1);
+		accumZ += displace.get(k, 3 * (j * template.w + i) + 2);
 	}
 
 	final void iterateInnerPart(int i, int j, int k) {
@@ -103,9 +187,9 @@ public class DiffusionInterpol2 {
 
 		accumX = accumY = accumZ = 0;
 
-		curX = displace[k][3 * (j * template.w + i) + 0];
-		curY = displace[k][3 * (j * template.w + i) + 1];
-		curZ = displace[k][3 * (j * template.w + i) + 2];
+		curX = displace.get(k, 3 * (j * template.w + i) + 0);
+		curY = displace.get(k, 3 * (j * template.w + i) + 1);
+		curZ = displace.get(k, 3 * (j * template.w + i) + 2);
 
 		if (k - level >= 0) accumAdd(i, j, k - level); else accumAdd(i, j, k + level);
 		if (j - level >= 0) accumAdd(i, j - level, k); else accumAdd(i, j + level, k);
@@ -123,9 +207,9 @@ public class DiffusionInterpol2 {
 			Math.abs(curZ - accumZ);
 
 		if (delta > 0) {
-			displace[k][3 * (j * template.w + i) + 0] = accumX;
-			displace[k][3 * (j * template.w + i) + 1] = accumY;
-			displace[k][3 * (j * template.w + i) + 2] = accumZ;
+			displace.set(k, 3 * (j * template.w + i) + 0, accumX);
+			displace.set(k, 3 * (j * template.w + i) + 1, accumY);
+			displace.set(k, 3 * (j * template.w + i) + 2, accumZ);
 
 			if (delta > 0.1) changed++;
 			if (delta > 3) changed++;
@@ -165,6 +249,432 @@ public class DiffusionInterpol2 {
 		return mdelta;
 	}
 
+	/*
+	 * The red-black and multigrid solvers work on grids: the node
+	 * (i, j, k) of a grid is the voxel (i * stride, j * stride,
+	 * k * stride) of the planes u (three floats per voxel, in rows of
+	 * width voxels, like the tiles of a DisplacementField), and it
+	 * keeps its value if fixed is not 0 there.
+	 * Like iterateInnerPart(), the free nodes are relaxed towards the
+	 * average of their six neighbours (mirrored at the border), plus
+	 * f (which is only needed for multigrid corrections; null means 0).
+	 *
+	 * As the neighbours of a node always have the other parity of
+	 * i + j + k, all "red" nodes can be relaxed at the same time, and
+	 * then all "black" ones.
+	 */
+	static class Grid {
+		int w, h, d, stride, width;
+		FloatBuffer[] u;
+		float[][] f;
+		byte[][] fixed;
+
+		Grid(int w, int h, int d, int stride, int width,
+				FloatBuffer[] u, float[][] f, byte[][] fixed) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.stride = stride;
+			this.width = width;
+			this.u = u;
+			this.f = f;
+			this.fixed = fixed;
+		}
+
+		/* a compact grid (stride 1) for multigrid corrections */
+		Grid(int w, int h, int d) {
+			this(w, h, d, 1, w, new DisplacementField(w, h, d,
+					DisplacementField.HEAP).getTiles(),
+				new float[d][3 * w * h], new byte[d][w * h]);
+		}
+
+		final int index(int i, int j) {
+			return j * stride * width + i * stride;
+		}
+	}
+
+	final static int lower(int i, int n) {
+		return i > 0 ? i - 1 : (n > 1 ? 1 : 0);
+	}
+
+	final static int upper(int i, int n) {
+		return i + 1 < n ? i + 1 : (i > 0 ? i - 1 : 0);
+	}
+
+	/* the number of nodes of a grid with the given stride */
+	final static int nodes(int n, int stride) {
+		return (n - 1) / stride + 1;
+	}
+
+	byte[][] fixed;
+
+	/* the voxels which are labeled keep their displacement */
+	byte[][] getFixed() {
+		if (fixed == null) {
+			fixed = new byte[template.d][template.w * template.h];
+			Parallel.forEach(template.d, new Parallel.Loop() {
+				public void run(int k) {
+					byte[] plane = fixed[k];
+					for (int j = 0; j < template.h; j++)
+						for (int i = 0; i < template.w; i++)
+							if (templateLabels.getNoInterpol(i, j, k) != 0)
+								plane[j * template.w + i] = 1;
+				}
+			});
+		}
+		return fixed;
+	}
+
+	/*
+	 * The kernels below work on float arrays: tiles on the heap are
+	 * used as they are, other tiles are copied into scratch arrays of
+	 * the current thread (slot says which one), and copied back with
+	 * store() when they were changed.  Only the rows of the grid's
+	 * nodes are copied.
+	 */
+	final static ThreadLocal<ArrayList<float[]>> scratch =
+			new ThreadLocal<ArrayList<float[]>>() {
+		protected ArrayList<float[]> initialValue() {
+			return new ArrayList<float[]>();
+		}
+	};
+
+	static float[] load(Grid g, int plane, int slot) {
+		FloatBuffer tile = g.u[plane];
+		if (tile.hasArray())
+			return tile.array();
+		ArrayList<float[]> arrays = scratch.get();
+		while (arrays.size() <= slot)
+			arrays.add(null);
+		float[] result = arrays.get(slot);
+		if (result == null || result.length != tile.capacity()) {
+			result = new float[tile.capacity()];
+			arrays.set(slot, result);
+		}
+		// duplicate() lets several threads read the same tile
+		FloatBuffer copy = tile.duplicate();
+		for (int j = 0; j < g.h; j++) {
+			int offset = 3 * g.index(0, j);
+			copy.position(offset);
+			copy.get(result, offset, 3 * g.width);
+		}
+		return result;
+	}
+
+	static void store(Grid g, int plane, float[] array) {
+		FloatBuffer tile = g.u[plane];
+		if (tile.hasArray())
+			return;
+		FloatBuffer copy = tile.duplicate();
+		for (int j = 0; j < g.h; j++) {
+			int offset = 3 * g.index(0, j);
+			copy.position(offset);
+			copy.put(array, offset, 3 * g.width);
+		}
+	}
+
+	/* relaxes the nodes of one color in the plane k */
+	static float relax(Grid g, int k, int color, int[] changes) {
+		int s = g.stride;
+		float[] u = load(g, k * s, 0);
+		float[] uLower = load(g, lower(k, g.d) * s, 1);
+		float[] uUpper = load(g, upper(k, g.d) * s, 2);
+		float[] f = g.f == null ? null : g.f[k * s];
+		byte[] fixed = g.fixed[k * s];
+		float mdelta = 0;
+		for (int j = 0; j < g.h; j++) {
+			int jLower = lower(j, g.h), jUpper = upper(j, g.h);
+			for (int i = (color + j + k) & 1; i < g.w; i += 2) {
+				int index = g.index(i, j);
+				if (fixed[index] != 0)
+					continue;
+				int n0 = 3 * g.index(i, jLower);
+				int n1 = 3 * g.index(lower(i, g.w), j);
+				int n2 = 3 * g.index(i, jUpper);
+				int n3 = 3 * g.index(upper(i, g.w), j);
+				float delta = 0;
+				for (int c = 0; c < 3; c++) {
+					// same order as iterateInnerPart()
+					float accum = uLower[3 * index + c]
+						+ u[n0 + c] + u[n1 + c]
+						+ uUpper[3 * index + c]
+						+ u[n2 + c] + u[n3 + c];
+					accum /= 6;
+					if (f != null)
+						accum += f[3 * index + c];
+					delta += Math.abs(u[3 * index + c] - accum);
+					u[3 * index + c] = accum;
+				}
+				if (delta > 0.1) changes[k]++;
+				if (delta > 3) changes[k]++;
+				if (delta > mdelta)
+					mdelta = delta;
+			}
+		}
+		store(g, k * s, u);
+		return mdelta;
+	}
+
+	/* one red-black sweep over the grid; returns the maximal change */
+	float sweep(final Grid g) {
+		final float[] deltas = new float[g.d];
+		final int[] changes = new int[g.d];
+		for (int color = 0; color < 2; color++) {
+			final int c = color;
+			Parallel.forEach(g.d, new Parallel.Loop() {
+				public void run(int k) {
+					deltas[k] = Math.max(deltas[k],
+						relax(g, k, c, changes));
+				}
+			});
+		}
+		float result = 0;
+		for (int k = 0; k < g.d; k++) {
+			result = Math.max(result, deltas[k]);
+			changed += changes[k];
+		}
+		return result;
+	}
+
+	/* a parallel replacement for iterateNormal() */
+	float iterateRedBlack() {
+		changed = bchanged = 0;
+		Grid g = new Grid(nodes(template.w, level),
+			nodes(template.h, level), nodes(template.d, level),
+			level, template.w, displace.getTiles(), null,
+			getFixed());
+		// two sweeps, like the two passes of iterateNormal()
+		mdelta = sweep(g);
+		IJ.showProgress(1, 2);
+		mdelta = Math.max(mdelta, sweep(g));
+		IJ.showProgress(1, 1);
+		return mdelta;
+	}
+
+	/*
+	 * Multigrid: on every level of iterate(), V-cycles replace the
+	 * sweeps of iterateNormal().  They smooth the displacement field
+	 * with red-black sweeps, and solve for the remaining (smooth) error
+	 * on the grids of the coarser levels, down to 16.  These are
+	 * compact grids: the node (i, j, k) of a coarse grid is the node
+	 * (2i, 2j, 2k) of the next finer one.
+	 *
+	 * The convergence criterion stays the same: a level is done when
+	 * the last sweep of a V-cycle changed no voxel by more than the
+	 * tolerance divided by the level.
+	 */
+	final static int PRE_SMOOTHING = 2, POST_SMOOTHING = 2;
+	final static int MAX_COARSEST_SWEEPS = 1000;
+	final static float COARSEST_REDUCTION = 1e-3f;
+
+	/* one V-cycle on the current level; returns the maximal change */
+	float iterateMultigrid(Grid[] grids) {
+		changed = bchanged = 0;
+		mdelta = vCycle(grids, 0);
+		IJ.showProgress(1, 1);
+		return mdelta;
+	}
+
+	/* the grids of the current level and the coarser ones */
+	Grid[] getGrids() {
+		ArrayList<Grid> list = new ArrayList<Grid>();
+		Grid g = new Grid(nodes(template.w, level),
+			nodes(template.h, level), nodes(template.d, level),
+			level, template.w, displace.getTiles(), null,
+			getFixed());
+		list.add(g);
+		for (int stride = 2 * level; stride <= 16 &&
+				g.w * g.h * g.d > 1; stride *= 2) {
+			g = coarsen(g);
+			list.add(g);
+		}
+		return (Grid[])list.toArray(new Grid[list.size()]);
+	}
+
+	/*
+	 * A coarse node is fixed if the fine node or one of its six
+	 * neighbours is: otherwise, the coarse grid would not know about
+	 * thin labels, and its corrections would overshoot next to them.
+	 */
+	static Grid coarsen(Grid fine) {
+		Grid coarse = new Grid(nodes(fine.w, 2), nodes(fine.h, 2),
+			nodes(fine.d, 2));
+		for (int k = 0; k < coarse.d; k++) {
+			int fk = 2 * k;
+			byte[] lowerPlane = fine.fixed[lower(fk, fine.d) * fine.stride];
+			byte[] plane = fine.fixed[fk * fine.stride];
+			byte[] upperPlane = fine.fixed[upper(fk, fine.d) * fine.stride];
+			for (int j = 0; j < coarse.h; j++)
+				for (int i = 0; i < coarse.w; i++) {
+					int fi = 2 * i, fj = 2 * j;
+					int index = fine.index(fi, fj);
+					if (plane[index] != 0 ||
+							lowerPlane[index] != 0 ||
+							upperPlane[index] != 0 ||
+							plane[fine.index(lower(fi, fine.w), fj)] != 0 ||
+							plane[fine.index(upper(fi, fine.w), fj)] != 0 ||
+							plane[fine.index(fi, lower(fj, fine.h))] != 0 ||
+							plane[fine.index(fi, upper(fj, fine.h))] != 0)
+						coarse.fixed[k][j * coarse.w + i] = 1;
+				}
+		}
+		return coarse;
+	}
+
+	/* returns the maximal change of the last sweep on grids[n] */
+	float vCycle(Grid[] grids, int n) {
+		Grid g = grids[n];
+		float delta = 0;
+		if (n == grids.length - 1) {
+			// the coarsest grid is small: solve it (almost) exactly
+			float first = sweep(g);
+			delta = first;
+			for (int i = 1; i < MAX_COARSEST_SWEEPS &&
+					delta > COARSEST_REDUCTION * first; i++)
+				delta = sweep(g);
+			return delta;
+		}
+		for (int i = 0; i < PRE_SMOOTHING; i++)
+			sweep(g);
+		restrictResidual(g, grids[n + 1]);
+		vCycle(grids, n + 1);
+		prolongate(grids[n + 1], g);
+		for (int i = 0; i < POST_SMOOTHING; i++)
+			delta = sweep(g);
+		return delta;
+	}
+
+	/*
+	 * result gets the residual f - u + (average of the neighbours);
+	 * u holds the loaded tiles of the grid which are needed
+	 */
+	static void residual(Grid g, float[][] u, int i, int j, int k,
+			float[] result) {
+		int s = g.stride;
+		int index = g.index(i, j);
+		if (g.fixed[k * s][index] != 0) {
+			result[0] = result[1] = result[2] = 0;
+			return;
+		}
+		float[] uPlane = u[k * s];
+		float[] uLower = u[lower(k, g.d) * s];
+		float[] uUpper = u[upper(k, g.d) * s];
+		int jLower = g.index(i, lower(j, g.h));
+		int jUpper = g.index(i, upper(j, g.h));
+		int iLower = g.index(lower(i, g.w), j);
+		int iUpper = g.index(upper(i, g.w), j);
+		for (int c = 0; c < 3; c++) {
+			float accum = uLower[3 * index + c]
+				+ uPlane[3 * jLower + c] + uPlane[3 * iLower + c]
+				+ uUpper[3 * index + c]
+				+ uPlane[3 * jUpper + c] + uPlane[3 * iUpper + c];
+			result[c] = accum / 6 - uPlane[3 * index + c];
+			if (g.f != null)
+				result[c] += g.f[k * s][3 * index + c];
+		}
+	}
+
+	static void addResidual(Grid g, float[][] u, int i, int j, int k,
+			float weight, float[] r, float[] sum) {
+		residual(g, u, i, j, k, r);
+		for (int c = 0; c < 3; c++)
+			sum[c] += weight * r[c];
+	}
+
+	/*
+	 * Sets the right hand side of the coarse grid to the restricted
+	 * residual of the fine one (half weighting), and its values to 0.
+	 * The factor 4 accounts for the doubled grid spacing.
+	 */
+	static void restrictResidual(final Grid fine, final Grid coarse) {
+		Parallel.forEach(coarse.d, new Parallel.Loop() {
+			public void run(int k) {
+				float[] r = new float[3], sum = new float[3];
+				float[] f = coarse.f[k];
+				Arrays.fill(coarse.u[k].array(), 0);
+
+				// the fine tiles around plane 2k
+				float[][] u = new float[fine.u.length][];
+				int slot = 0;
+				for (int dk = -1; dk <= 1; dk++) {
+					int fk = dk < 0 ? lower(2 * k, fine.d) :
+						dk > 0 ? upper(2 * k, fine.d) : 2 * k;
+					int[] planes = { lower(fk, fine.d), fk,
+						upper(fk, fine.d) };
+					for (int n = 0; n < 3; n++) {
+						int p = planes[n] * fine.stride;
+						if (u[p] == null)
+							u[p] = load(fine, p, slot++);
+					}
+				}
+
+				for (int j = 0; j < coarse.h; j++)
+					for (int i = 0; i < coarse.w; i++) {
+						int index = 3 * (j * coarse.w + i);
+						if (coarse.fixed[k][j * coarse.w + i]
+								!= 0) {
+							f[index] = f[index + 1] =
+								f[index + 2] = 0;
+							continue;
+						}
+						int fi = 2 * i, fj = 2 * j, fk = 2 * k;
+						Arrays.fill(sum, 0);
+						addResidual(fine, u, fi, fj, fk, 6, r, sum);
+						addResidual(fine, u, lower(fi, fine.w), fj, fk, 1, r, sum);
+						addResidual(fine, u, upper(fi, fine.w), fj, fk, 1, r, sum);
+						addResidual(fine, u, fi, lower(fj, fine.h), fk, 1, r, sum);
+						addResidual(fine, u, fi, upper(fj, fine.h), fk, 1, r, sum);
+						addResidual(fine, u, fi, fj, lower(fk, fine.d), 1, r, sum);
+						addResidual(fine, u, fi, fj, upper(fk, fine.d), 1, r, sum);
+						// weights 1/2 and 1/12, times 4
+						f[index] = sum[0] / 3;
+						f[index + 1] = sum[1] / 3;
+						f[index + 2] = sum[2] / 3;
+					}
+			}
+		});
+	}
+
+	/* adds the trilinearly interpolated correction to the free nodes */
+	static void prolongate(final Grid coarse, final Grid fine) {
+		Parallel.forEach(fine.d, new Parallel.Loop() {
+			public void run(int k) {
+				int s = fine.stride;
+				float[] u = load(fine, k * s, 0);
+				byte[] fixed = fine.fixed[k * s];
+				int k0 = k / 2;
+				int k1 = Math.min(k0 + (k & 1), coarse.d - 1);
+				// coarse grids are compact, and on the heap
+				float[] u0 = coarse.u[k0].array();
+				float[] u1 = coarse.u[k1].array();
+				for (int j = 0; j < fine.h; j++) {
+					int j0 = j / 2;
+					int j1 = Math.min(j0 + (j & 1),
+						coarse.h - 1);
+					for (int i = 0; i < fine.w; i++) {
+						int index = fine.index(i, j);
+						if (fixed[index] != 0)
+							continue;
+						int i0 = i / 2;
+						int i1 = Math.min(i0 + (i & 1),
+							coarse.w - 1);
+						for (int c = 0; c < 3; c++)
+							u[3 * index + c] += (
+								u0[3 * (j0 * coarse.w + i0) + c] +
+								u0[3 * (j0 * coarse.w + i1) + c] +
+								u0[3 * (j1 * coarse.w + i0) + c] +
+								u0[3 * (j1 * coarse.w + i1) + c] +
+								u1[3 * (j0 * coarse.w + i0) + c] +
+								u1[3 * (j0 * coarse.w + i1) + c] +
+								u1[3 * (j1 * coarse.w + i0) + c] +
+								u1[3 * (j1 * coarse.w + i1) + c]) / 8;
+					}
+				}
+				store(fine, k * s, u);
+			}
+		});
+	}
+
 	final float MAGIC = (float)40711.22;
 
 	void propagateInitial() {
@@ -174,20 +684,20 @@ public class DiffusionInterpol2 {
 			IJ.showProgress(k, template.d * 2);
 			for (int j = 0; j < template.h; j++)
 				for (int i = 0; i < template.w; i++)
-					if (displace[k][3 * (j * template.w + i)] == MAGIC) {
-						if (k > 0 && displace[k - 1][3 * (j * template.w + i)] != MAGIC)
+					if (displace.get(k, 3 * (j * template.w + i)) == MAGIC) {
+						if (k > 0 && displace.get(k - 1, 3 * (j * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j, k - 1);
-						else if (j > 0 && displace[k][3 * ((j - 1) * template.w + i)] != MAGIC)
+						else if (j > 0 && displace.get(k, 3 * ((j - 1) * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j - 1, k);
-						else if (i > 0 && displace[k][3 * (j * template.w + i - 1)] != MAGIC)
+						else if (i > 0 && displace.get(k, 3 * (j * template.w + i - 1)) != MAGIC)
 							copyDisplace(i, j, k, i - 1, j, k);
-						else if (i > 0 && j > 0 && displace[k][3 * ((j - 1) * template.w + i - 1)] != MAGIC)
+						else if (i > 0 && j > 0 && displace.get(k, 3 * ((j - 1) * template.w + i - 1)) != MAGIC)
 							copyDisplace(i, j, k, i - 1, j - 1, k);
-						else if (i > 0 && k > 0 && displace[k - 1][3 * (j * template.w + i - 1)] != MAGIC)
+						else if (i > 0 && k > 0 && displace.get(k - 1, 3 * (j * template.w + i - 1)) != MAGIC)
 							copyDisplace(i, j, k, i - 1, j, k - 1);
-						else if (j > 0 && k > 0 && displace[k - 1][3 * ((j - 1) * template.w + i)] != MAGIC)
+						else if (j > 0 && k > 0 && displace.get(k - 1, 3 * ((j - 1) * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j - 1, k - 1);
-						else if (i > 0 && j > 0 && k > 0 && displace[k - 1][3 * ((j - 1) * template.w + i - 1)] != MAGIC)
+						else if (i > 0 && j > 0 && k > 0 && displace.get(k - 1, 3 * ((j - 1) * template.w + i - 1)) != MAGIC)
 							copyDisplace(i, j, k, i - 1, j - 1, k - 1);
 					}
 		}
@@ -198,20 +708,20 @@ public class DiffusionInterpol2 {
 			IJ.showProgress(2 * template.d - k, 2 * template.d);
 			for (int j = template.h - 1; j >= 0; j--)
 				for (int i = template.w - 1; i >= 0; i--)
-					if (displace[k][3 * (j * template.w + i)] == MAGIC) {
-						if (k < template.d - 1 && displace[k + 1][3 * (j * template.w + i)] != MAGIC)
+					if (displace.get(k, 3 * (j * template.w + i)) == MAGIC) {
+						if (k < template.d - 1 && displace.get(k + 1, 3 * (j * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j, k + 1);
-						else if (j < template.h - 1  && displace[k][3 * ((j + 1) * template.w + i)] != MAGIC)
+						else if (j < template.h - 1  && displace.get(k, 3 * ((j + 1) * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j + 1, k);
-						else if (i < template.w - 1  && displace[k][3 * (j * template.w + i + 1)] != MAGIC)
+						else if (i < template.w - 1  && displace.get(k, 3 * (j * template.w + i + 1)) != MAGIC)
 							copyDisplace(i, j, k, i + 1, j, k);
-						else if (i < template.w - 1  && j < template.h - 1 && displace[k][3 * ((j + 1) * template.w + i + 1)] != MAGIC)
+						else if (i < template.w - 1  && j < template.h - 1 && displace.get(k, 3 * ((j + 1) * template.w + i + 1)) != MAGIC)
 							copyDisplace(i, j, k, i + 1, j + 1, k);
-						else if (i < template.w - 1  && k < template.d - 1 && displace[k + 1][3 * (j * template.w + i + 1)] != MAGIC)
+						else if (i < template.w - 1  && k < template.d - 1 && displace.get(k + 1, 3 * (j * template.w + i + 1)) != MAGIC)
 							copyDisplace(i, j, k, i + 1, j, k + 1);
-						else if (k < template.d - 1  && j < template.h - 1 && displace[k + 1][3 * ((j + 1) * template.w + i)] != MAGIC)
+						else if (k < template.d - 1  && j < template.h - 1 && displace.get(k + 1, 3 * ((j + 1) * template.w + i)) != MAGIC)
 							copyDisplace(i, j, k, i, j + 1, k + 1);
-						else if (i < template.w - 1  && j < template.h - 1 && k < template.d - 1 && displace[k + 1][3 * ((j + 1) * template.w + i + 1)] != MAGIC)
+						else if (i < template.w - 1  && j < template.h - 1 && k < template.d - 1 && displace.get(k + 1, 3 * ((j + 1) * template.w + i + 1)) != MAGIC)
 							copyDisplace(i, j, k, i + 1, j + 1, k + 1);
 					}
 		}
@@ -221,16 +731,18 @@ public class DiffusionInterpol2 {
 		for (int k = 0; k < template.d; k++)
 			for (int j = 0; j < template.h; j++)
 				for (int i = 0; i < template.w; i++)
-					if (displace[k][3 * (j * template.w + i)] == MAGIC)
+					if (displace.get(k, 3 * (j * template.w + i)) == MAGIC)
 						throw new RuntimeException("Nonono: "+i+", "+j+", "+k);
 
 
 	}
 
 	void copyDisplace(int di, int dj, int dk, int i, int j, int k) {
-		displace[dk][3 * (dj * template.w + di) + 0] = displace[k][3 * (j * template.w + i) + 0];
-		displace[dk][3 * (dj * template.w + di) + 1] = displace[k][3 * (j * template.w + i) + 1];
-		displace[dk][3 * (dj * template.w + di) + 2] = displace[k][3 * (j * template.w + i) + 2];
+		int from = 3 * (j * template.w + i);
+		int to = 3 * (dj * template.w + di);
+		displace.set(dk, to + 0, displace.get(k, from + 0));
+		displace.set(dk, to + 1, displace.get(k, from + 1));
+		displace.set(dk, to + 2, displace.get(k, from + 2));
 	}
 
 	void iterate(float tolerance, boolean fine) {
@@ -239,12 +751,24 @@ public class DiffusionInterpol2 {
 		level = fine ? 1 : 16;
 
 		for ( ; level>=1 ; level /= 2) {
+			Grid[] grids = solver == MULTIGRID ? getGrids() : null;
 			for (int i = 1; true; i++) {
 				float tol = tolerance / level;
 
 				VIB.showStatus("Level " + level + ", Iteration " + i + " (delta was "+mdelta+")");
 
-				if (iterateNormal() < tol)
+				float delta;
+				switch (solver) {
+				case RED_BLACK:
+					delta = iterateRedBlack();
+					break;
+				case MULTIGRID:
+					delta = iterateMultigrid(grids);
+					break;
+				default:
+					delta = iterateNormal();
+				}
+				if (delta < tol)
 					break;
 
 			}
@@ -277,9 +801,9 @@ public class DiffusionInterpol2 {
 				for(int i = 0; i < template.w; i++) {
 					globalTransformation.apply(i, j, k);
 					template.set(i, j, k,
-						(byte)(int)model.interpol.get(displace[k][3 * (j * template.w + i) + 0] + globalTransformation.x,
-						displace[k][3 * (j * template.w + i) + 1] + globalTransformation.y,
-						displace[k][3 * (j * template.w + i) + 2] + globalTransformation.z));
+						(byte)(int)model.interpol.get(displace.get(k, 3 * (j * template.w + i) + 0) + globalTransformation.x,
+						displace.get(k, 3 * (j * template.w + i) + 1) + globalTransformation.y,
+						displace.get(k, 3 * (j * template.w + i) + 2) + globalTransformation.z));
 				}
 			IJ.showProgress(k + 1, template.d);
 		}
@@ -300,13 +824,13 @@ public class DiffusionInterpol2 {
 							&& labelTransformations[material] != null) {
 						labelTransformations[material].apply(i, j, k);
 						globalTransformation.apply(i, j, k);
-						displace[k][3 * (j * template.w + i) + 0] = labelTransformations[material].x - globalTransformation.x;
-						displace[k][3 * (j * template.w + i) + 1] = labelTransformations[material].y - globalTransformation.y;
-						displace[k][3 * (j * template.w + i) + 2] = labelTransformations[material].z - globalTransformation.z;
+						displace.set(k, 3 * (j * template.w + i) + 0, labelTransformations[material].x - globalTransformation.x);
+						displace.set(k, 3 * (j * template.w + i) + 1, labelTransformations[material].y - globalTransformation.y);
+						displace.set(k, 3 * (j * template.w + i) + 2, labelTransformations[material].z - globalTransformation.z);
 					} else {
-						displace[k][3 * (j * template.w + i) + 0] = 0;
-						displace[k][3 * (j * template.w + i) + 1] = 0;
-						displace[k][3 * (j * template.w + i) + 2] = 0;
+						displace.set(k, 3 * (j * template.w + i) + 0, 0);
+						displace.set(k, 3 * (j * template.w + i) + 1, 0);
+						displace.set(k, 3 * (j * template.w + i) + 2, 0);
 					}
 				}
 		}
@@ -328,7 +852,7 @@ public class DiffusionInterpol2 {
 			for (int j = 0; j < template.w * template.h; j++)
 //if (getLabel(j % w, j / w, k) != 0)
 				for (int i = 0; i < 3; i++)
-					slice[i][j] = displace[k][3 * j + i];
+					slice[i][j] = displace.get(k, 3 * j + i);
 			for (int i = 0; i < 3; i++)
 				stack[i].addSlice("", slice[i]);
 		}
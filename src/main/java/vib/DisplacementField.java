@@ -0,0 +1,207 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A field of three floats per voxel (the displacement of
+ * DiffusionInterpol2), stored in tiles of one plane each; the value c
+ * of voxel (i, j, k) is at index 3 * (j * w + i) + c of tile k.
+ *
+ * The tiles live either on the Java heap (HEAP), in direct buffers
+ * outside of it (DIRECT), or in a scratch file which is mapped into
+ * memory (MAPPED), so that large fields do not have to fit into the
+ * heap, and the operating system can page them out.
+ *
+ * Fields can also be stored in half precision (IEEE 754 binary16),
+ * which halves their size; the values are then only precise up to
+ * about 1/2048 of their magnitude, which is plenty for applying a
+ * displacement, but not enough to solve for it.
+ */
+public class DisplacementField {
+	public final static int HEAP = 0;
+	public final static int DIRECT = 1;
+	public final static int MAPPED = 2;
+
+	public final int w, h, d, storage;
+	private float[][] arrays; // only for HEAP, in single precision
+	private FloatBuffer[] floats;
+	private ShortBuffer[] halves;
+
+	public DisplacementField(int w, int h, int d, int storage) {
+		this(w, h, d, storage, false);
+	}
+
+	public DisplacementField(int w, int h, int d, int storage,
+			boolean halfPrecision) {
+		this.w = w;
+		this.h = h;
+		this.d = d;
+		this.storage = storage;
+		int planeSize = 3 * w * h;
+		if (halfPrecision)
+			halves = new ShortBuffer[d];
+		else
+			floats = new FloatBuffer[d];
+		if (storage == HEAP) {
+			if (!halfPrecision)
+				arrays = new float[d][];
+			for (int k = 0; k < d; k++)
+				if (halfPrecision)
+					halves[k] = ShortBuffer.wrap(
+						new short[planeSize]);
+				else {
+					arrays[k] = new float[planeSize];
+					floats[k] = FloatBuffer.wrap(arrays[k]);
+				}
+			return;
+		}
+		ByteBuffer[] tiles = storage == MAPPED ?
+			map(d, planeSize * (halfPrecision ? 2 : 4)) :
+			allocateDirect(d, planeSize * (halfPrecision ? 2 : 4));
+		if (tiles == null)
+			throw new RuntimeException("Invalid storage: " + storage);
+		for (int k = 0; k < d; k++) {
+			tiles[k].order(ByteOrder.nativeOrder());
+			if (halfPrecision)
+				halves[k] = tiles[k].asShortBuffer();
+			else
+				floats[k] = tiles[k].asFloatBuffer();
+		}
+	}
+
+	private static ByteBuffer[] allocateDirect(int d, int planeBytes) {
+		ByteBuffer[] result = new ByteBuffer[d];
+		for (int k = 0; k < d; k++)
+			result[k] = ByteBuffer.allocateDirect(planeBytes);
+		return result;
+	}
+
+	/*
+	 * The scratch file is deleted right away (the mapping stays valid
+	 * on POSIX systems); where that is not possible, it is deleted when
+	 * the JVM exits.
+	 */
+	private static ByteBuffer[] map(int d, int planeBytes) {
+		ByteBuffer[] result = new ByteBuffer[d];
+		File file = null;
+		RandomAccessFile raf = null;
+		try {
+			file = File.createTempFile("displacement", ".raw");
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength((long)d * planeBytes);
+			FileChannel channel = raf.getChannel();
+			for (int k = 0; k < d; k++)
+				result[k] = channel.map(
+					FileChannel.MapMode.READ_WRITE,
+					(long)k * planeBytes, planeBytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map a scratch "
+				+ "file for the displacement field", e);
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) { /* ignore */ }
+			if (file != null && !file.delete())
+				file.deleteOnExit();
+		}
+		return result;
+	}
+
+	public boolean isHalfPrecision() {
+		return halves != null;
+	}
+
+	public long getSizeInBytes() {
+		return 3L * w * h * d * (halves != null ? 2 : 4);
+	}
+
+	public final float get(int k, int index) {
+		if (arrays != null)
+			return arrays[k][index];
+		if (floats != null)
+			return floats[k].get(index);
+		return halfToFloat(halves[k].get(index));
+	}
+
+	public final void set(int k, int index, float value) {
+		if (arrays != null)
+			arrays[k][index] = value;
+		else if (floats != null)
+			floats[k].put(index, value);
+		else
+			halves[k].put(index, floatToHalf(value));
+	}
+
+	/* the tiles of a field in single precision, for the solvers */
+	FloatBuffer[] getTiles() {
+		if (floats == null)
+			throw new RuntimeException("The displacement field is "
+				+ "stored in half precision");
+		return floats;
+	}
+
+	/* returns a copy with the given storage and precision */
+	public DisplacementField copy(int storage, boolean halfPrecision) {
+		DisplacementField result = new DisplacementField(w, h, d,
+			storage, halfPrecision);
+		int planeSize = 3 * w * h;
+		for (int k = 0; k < d; k++)
+			for (int i = 0; i < planeSize; i++)
+				result.set(k, i, get(k, i));
+		return result;
+	}
+
+	/* rounds to the nearest half precision value (ties to even) */
+	public static short floatToHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff) // infinity or NaN
+			return (short)(sign | 0x7c00
+				| (mantissa != 0 ? 0x200 : 0));
+		exponent -= 127 - 15;
+		if (exponent >= 0x1f) // overflow
+			return (short)(sign | 0x7c00);
+		int shift = 13;
+		if (exponent <= 0) { // subnormal (or zero)
+			if (exponent < -10)
+				return (short)sign;
+			mantissa |= 0x800000;
+			shift += 1 - exponent;
+			exponent = 0;
+		}
+		int result = (exponent << 10) | (mantissa >> shift);
+		int rest = mantissa & ((1 << shift) - 1);
+		int half = 1 << (shift - 1);
+		// a carry into the exponent is still correct
+		if (rest > half || (rest == half && (result & 1) != 0))
+			result++;
+		return (short)(sign | result);
+	}
+
+	public static float halfToFloat(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		if (exponent == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000
+				| (mantissa << 13));
+		if (exponent == 0) {
+			float result = mantissa / (float)(1 << 24);
+			return sign != 0 ? -result : result;
+		}
+		return Float.intBitsToFloat(sign
+			| ((exponent + 127 - 15) << 23) | (mantissa << 13));
+	}
+}
@@ -0,0 +1,93 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Keeps the displacement fields of recent DiffusionInterpol2 runs, so
+ * that they can be applied to further channels of the same image.
+ *
+ * The cache is bounded by the total size of its fields on the heap;
+ * when a new field does not fit, the least recently used ones are
+ * dropped.  The most recent field is always kept, even if it is larger
+ * than the bound on its own.  Fields outside the heap (DIRECT or
+ * MAPPED) do not count against the bound, but only the most recent of
+ * them is kept, as they are typically large.
+ *
+ * Entries whose key is a cleared WeakKey are dropped, too.
+ */
+public class DisplacementFieldCache {
+	/* a key which only weakly references (some of) its parts */
+	public interface WeakKey {
+		public boolean isCleared();
+	}
+
+	private long maxBytes, bytes;
+	private LinkedHashMap<Object, DisplacementField> fields =
+		new LinkedHashMap<Object, DisplacementField>(16, 0.75f, true);
+
+	public DisplacementFieldCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized DisplacementField get(Object key) {
+		return fields.get(key);
+	}
+
+	public synchronized void put(Object key, DisplacementField field) {
+		remove(key);
+		fields.put(key, field);
+		bytes += getHeapBytes(field);
+		evict(field);
+	}
+
+	public synchronized void remove(Object key) {
+		DisplacementField field = fields.remove(key);
+		if (field != null)
+			bytes -= getHeapBytes(field);
+	}
+
+	public synchronized void clear() {
+		fields.clear();
+		bytes = 0;
+	}
+
+	/* the size of the cached fields on the heap */
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		DisplacementField mostRecent = null;
+		for (DisplacementField field : fields.values())
+			mostRecent = field;
+		evict(mostRecent);
+	}
+
+	/* must be called with the lock held */
+	private void evict(DisplacementField keep) {
+		Iterator<Map.Entry<Object, DisplacementField>> iter =
+			fields.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Object, DisplacementField> pair = iter.next();
+			DisplacementField field = pair.getValue();
+			Object key = pair.getKey();
+			if (field == keep || ((!(key instanceof WeakKey) ||
+					!((WeakKey)key).isCleared()) &&
+					field.storage == DisplacementField.HEAP
+					&& bytes <= maxBytes))
+				continue;
+			iter.remove();
+			bytes -= getHeapBytes(field);
+		}
+	}
+
+	static long getHeapBytes(DisplacementField field) {
+		return field.storage == DisplacementField.HEAP ?
+			field.getSizeInBytes() : 0;
+	}
+}
@@ -591,6 +591,59 @@ public class FastMatrix {
 		return r;
 	}
 	
+	/*
+	 * The derivative of rotateEulerAt() by the angle a1 (angle == 0),
+	 * a2 (angle == 1) or a3 (angle == 2).  The result is not a
+	 * transformation, but it can be composed with one by times().
+	 */
+	public static FastMatrix rotateEulerAtDerivative(double a1, double a2,
+			double a3, double cx, double cy, double cz, int angle) {
+		FastMatrix r = new FastMatrix();
+		double c1 = Math.cos(a1), s1 = Math.sin(a1);
+		double c2 = Math.cos(a2), s2 = Math.sin(a2);
+		double c3 = Math.cos(a3), s3 = Math.sin(a3);
+
+		switch (angle) {
+		case 0:
+			r.a00 = -c3*s1-c2*c1*s3;
+			r.a01 = s3*s1-c2*c1*c3;
+			r.a02 = s2*c1;
+			r.a10 = c3*c1-c2*s1*s3;
+			r.a11 = -s3*c1-c2*s1*c3;
+			r.a12 = s2*s1;
+			break;
+		case 1:
+			r.a00 = s2*s1*s3;
+			r.a01 = s2*s1*c3;
+			r.a02 = c2*s1;
+			r.a10 = -s2*c1*s3;
+			r.a11 = -s2*c1*c3;
+			r.a12 = -c2*c1;
+			r.a20 = c2*s3;
+			r.a21 = c2*c3;
+			r.a22 = -s2;
+			break;
+		case 2:
+			r.a00 = -s3*c1-c2*s1*c3;
+			r.a01 = -c3*c1+c2*s1*s3;
+			r.a10 = -s3*s1+c2*c1*c3;
+			r.a11 = -c3*s1-c2*c1*s3;
+			r.a20 = s2*c3;
+			r.a21 = -s2*s3;
+			break;
+		default:
+			throw new IllegalArgumentException("No angle: " + angle);
+		}
+
+		// the translation is c - R c, so its derivative is -dR c
+		r.applyWithoutTranslation(cx, cy, cz);
+		r.a03 = -r.x;
+		r.a13 = -r.y;
+		r.a23 = -r.z;
+
+		return r;
+	}
+
 	/*
 	 * Calculate the parameters needed to generate this matrix by
 	 * rotateEulerAt()
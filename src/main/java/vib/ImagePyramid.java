@@ -0,0 +1,170 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A cache of downsampled images, shared by all registrations.
+ *
+ * When many images are registered against the same template, the
+ * template's resampled levels are computed only once.  The entries are
+ * keyed by the identity of the source image's stack and its dimensions,
+ * the factor and the resampling method, so that replacing the stack
+ * (e.g. by setStack()) or adding slices gives new levels.  Changing the
+ * pixels in place cannot be detected, though: call invalidate() after
+ * such edits.  As the cached results are ImagePlus objects again,
+ * resampling them once more hits the cache, too, so that a whole
+ * pyramid is reused.
+ *
+ * The cache is bounded by the number of bytes of the cached pixels;
+ * the least recently used entries are evicted first.
+ */
+public class ImagePyramid {
+	private static long maxBytes = Runtime.getRuntime().maxMemory() / 4;
+	private static long bytes;
+
+	private static LinkedHashMap<Key, Entry> cache =
+		new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	public static ImagePlus resample(ImagePlus image, int factor) {
+		return get(image, factor, false);
+	}
+
+	public static ImagePlus resampleMinEnt(ImagePlus image, int factor) {
+		return get(image, factor, true);
+	}
+
+	public static synchronized void setMaxBytes(long maxBytes) {
+		ImagePyramid.maxBytes = maxBytes;
+		evict(null);
+	}
+
+	public static synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	/* Forget the levels of an image whose pixels were changed */
+	public static synchronized void invalidate(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		Iterator<Map.Entry<Key, Entry>> iter =
+			cache.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Entry> pair = iter.next();
+			if (pair.getKey().stack.get() != stack)
+				continue;
+			iter.remove();
+			bytes -= pair.getValue().bytes;
+		}
+	}
+
+	static ImagePlus get(ImagePlus image, int factor, boolean minEnt) {
+		Key key = new Key(image.getStack(), factor, minEnt);
+		Entry entry;
+		synchronized (ImagePyramid.class) {
+			entry = cache.get(key);
+			if (entry == null) {
+				entry = new Entry();
+				cache.put(key, entry);
+			}
+		}
+		/*
+		 * Compute outside the global lock, so that different
+		 * images can be resampled concurrently; threads asking
+		 * for the same level wait for the first one.
+		 */
+		ImagePlus result;
+		synchronized (entry) {
+			if (entry.image == null) {
+				entry.image = minEnt ?
+					NaiveResampler.resampleMinEnt(image,
+							factor) :
+					NaiveResampler.resample(image, factor);
+				entry.bytes = getBytes(entry.image);
+				synchronized (ImagePyramid.class) {
+					if (cache.get(key) == entry)
+						bytes += entry.bytes;
+					evict(entry);
+				}
+			}
+			result = entry.image;
+		}
+		return result;
+	}
+
+	/* must be called with the class lock held */
+	private static void evict(Entry keep) {
+		Iterator<Map.Entry<Key, Entry>> iter =
+			cache.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Entry> pair = iter.next();
+			if (pair.getValue() == keep ||
+					(pair.getKey().stack.get() != null &&
+					 bytes <= maxBytes))
+				continue;
+			iter.remove();
+			bytes -= pair.getValue().bytes;
+		}
+	}
+
+	static long getBytes(ImagePlus image) {
+		int bytesPerPixel;
+		switch (image.getType()) {
+		case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+		case ImagePlus.GRAY32: case ImagePlus.COLOR_RGB:
+			bytesPerPixel = 4; break;
+		default: bytesPerPixel = 1;
+		}
+		ImageStack stack = image.getStack();
+		return (long)stack.getWidth() * stack.getHeight()
+			* stack.getSize() * bytesPerPixel;
+	}
+
+	private static class Entry {
+		ImagePlus image;
+		long bytes;
+	}
+
+	/* the source stack is only weakly referenced */
+	private static class Key {
+		WeakReference<ImageStack> stack;
+		int width, height, depth;
+		int hashCode, factor;
+		boolean minEnt;
+
+		Key(ImageStack stack, int factor, boolean minEnt) {
+			this.stack = new WeakReference<ImageStack>(stack);
+			width = stack.getWidth();
+			height = stack.getHeight();
+			depth = stack.getSize();
+			this.factor = factor;
+			this.minEnt = minEnt;
+			hashCode = System.identityHashCode(stack) * 31
+				+ factor * 2 + (minEnt ? 1 : 0);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			ImageStack stack = this.stack.get();
+			return stack != null && stack == other.stack.get() &&
+				width == other.width &&
+				height == other.height &&
+				depth == other.depth &&
+				factor == other.factor &&
+				minEnt == other.minEnt;
+		}
+	}
+}
@@ -71,10 +71,43 @@ public class InterpolatedImage {
 		return image;
 	}
 
+	/* the pixels of the plane z: a byte[], short[], float[] or int[] */
+	public Object getPixels(int z) {
+		if (pixels != null)
+			return pixels[z];
+		if (pixelsShort != null)
+			return pixelsShort[z];
+		if (pixelsFloat != null)
+			return pixelsFloat[z];
+		return pixelsInt[z];
+	}
+
 	public interface Interpolate {
 		double get(double x, double y, double z);
 	}
 
+	/*
+	 * Interpolators which can sample a whole row at once, avoiding
+	 * the virtual call per voxel: result[n] is set to
+	 * (float)get(x[n], y[n], z[n]) for n < length.
+	 */
+	public interface RowInterpolate extends Interpolate {
+		void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result);
+	}
+
+	/* Samples a row of points with the interpolator of this image */
+	public void getRow(double[] x, double[] y, double[] z,
+			int length, float[] result) {
+		if (interpol instanceof RowInterpolate) {
+			((RowInterpolate)interpol).getRow(x, y, z,
+					length, result);
+			return;
+		}
+		for (int n = 0; n < length; n++)
+			result[n] = (float)interpol.get(x[n], y[n], z[n]);
+	}
+
 	Point3d getCenter() {
 		Calibration calib = image.getCalibration();
 		return new Point3d(
@@ -178,7 +211,17 @@ public class InterpolatedImage {
 				calib.zOrigin + calib.pixelDepth * z / total);
 	}
 
-	class AverageByte implements Interpolate {
+	/*
+	 * The trilinear interpolators check the bounds once per sample:
+	 * if all 8 neighbours are inside, they are read directly from the
+	 * slices, otherwise the neighbours outside count as 0.
+	 */
+	final boolean isInterior(int x1, int y1, int z1) {
+		return x1 >= 0 && y1 >= 0 && z1 >= 0 &&
+			x1 + 1 < w && y1 + 1 < h && z1 + 1 < d;
+	}
+
+	class AverageByte implements RowInterpolate {
 		final public double get(double x, double y, double z) {
 			int x1 = (int)Math.floor(x);
 			int y1 = (int)Math.floor(y);
@@ -187,6 +230,22 @@ public class InterpolatedImage {
 			double yR = y1 + 1 - y;
 			double zR = z1 + 1 - z;
 
+			if (isInterior(x1, y1, z1)) {
+				byte[] p0 = pixels[z1], p1 = pixels[z1 + 1];
+				int i = x1 + w * y1;
+				int v000 = p0[i] & 0xff, v001 = p1[i] & 0xff,
+					v100 = p0[i + 1] & 0xff,
+					v101 = p1[i + 1] & 0xff;
+				i += w;
+				int v010 = p0[i] & 0xff, v011 = p1[i] & 0xff,
+					v110 = p0[i + 1] & 0xff,
+					v111 = p1[i + 1] & 0xff;
+				return xR * (yR * (zR * v000 + (1 - zR) * v001)
+					+ (1 - yR) * (zR * v010 + (1 - zR) * v011))
+					+ (1 - xR) * (yR * (zR * v100 + (1 - zR) * v101)
+					+ (1 - yR) * (zR * v110 + (1 - zR) * v111));
+			}
+
 			double v000 = getNoInterpol(x1, y1, z1),
 			v001 = getNoInterpol(x1, y1, z1 + 1),
 			v010 = getNoInterpol(x1, y1 + 1, z1),
@@ -203,6 +262,12 @@ public class InterpolatedImage {
 
 			return ret;
 		}
+
+		public void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result) {
+			for (int n = 0; n < length; n++)
+				result[n] = (float)get(x[n], y[n], z[n]);
+		}
 	}
 
 	/*
@@ -263,6 +328,97 @@ public class InterpolatedImage {
 		}
 	}
 
+	/* Interpolates with cubic B-splines (see BSplineCoefficients) */
+	public void setBSplineInterpolation() {
+		interpol = new BSpline();
+	}
+
+	/*
+	 * The cubic B-spline through the voxel values; the coefficients
+	 * are computed once per image, and each sample is a separable sum
+	 * over the 4x4x4 neighbouring coefficients.  The image is mirrored
+	 * at its borders; samples more than half a voxel outside the image
+	 * are 0.
+	 */
+	public class BSpline implements RowInterpolate {
+		final BSplineCoefficients coefficients;
+
+		// the interpolator is shared by threads, so is its scratch
+		// space: one per thread
+		private final ThreadLocal<Scratch> scratch =
+				new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+
+		public BSpline() {
+			coefficients = BSplineCoefficients.get(image);
+		}
+
+		final public double get(double x, double y, double z) {
+			Scratch s = scratch.get();
+			return get(x, y, z, s.weights, s.indices);
+		}
+
+		final double get(double x, double y, double z,
+				double[] weights, int[] indices) {
+			if (x < -0.5 || y < -0.5 || z < -0.5 ||
+					x > w - 0.5 || y > h - 0.5 ||
+					z > d - 0.5)
+				return 0;
+			int x1 = (int)Math.floor(x);
+			int y1 = (int)Math.floor(y);
+			int z1 = (int)Math.floor(z);
+			BSplineCoefficients.weights(x - x1, weights, 0);
+			BSplineCoefficients.weights(y - y1, weights, 4);
+			BSplineCoefficients.weights(z - z1, weights, 8);
+			for (int n = 0; n < 4; n++) {
+				indices[n] = BSplineCoefficients.mirror(
+						x1 - 1 + n, w);
+				indices[4 + n] = w * BSplineCoefficients.mirror(
+						y1 - 1 + n, h);
+				indices[8 + n] = BSplineCoefficients.mirror(
+						z1 - 1 + n, d);
+			}
+
+			double result = 0;
+			for (int k = 0; k < 4; k++) {
+				float[] plane = coefficients
+					.coefficients[indices[8 + k]];
+				double sumY = 0;
+				for (int j = 0; j < 4; j++) {
+					int offset = indices[4 + j];
+					sumY += weights[4 + j] * (
+						weights[0] * plane[offset
+							+ indices[0]] +
+						weights[1] * plane[offset
+							+ indices[1]] +
+						weights[2] * plane[offset
+							+ indices[2]] +
+						weights[3] * plane[offset
+							+ indices[3]]);
+				}
+				result += weights[8 + k] * sumY;
+			}
+			return result;
+		}
+
+		public void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result) {
+			Scratch s = scratch.get();
+			for (int n = 0; n < length; n++)
+				result[n] = (float)get(x[n], y[n], z[n],
+						s.weights, s.indices);
+		}
+	}
+
+	/* the weights and indices along x, y and z of a B-spline sample */
+	private static class Scratch {
+		final double[] weights = new double[12];
+		final int[] indices = new int[12];
+	}
+
 	public class NearestNeighbourByte implements Interpolate {
 		final public double get(double x, double y, double z) {
 			return getInt(x, y, z);
@@ -379,8 +535,8 @@ public class InterpolatedImage {
 	}
 
 	/* float */
-	class AverageFloat implements Interpolate {
-		public double get(double x, double y, double z) {
+	class AverageFloat implements RowInterpolate {
+		final public double get(double x, double y, double z) {
 			int x1 = (int)Math.floor(x);
 			int y1 = (int)Math.floor(y);
 			int z1 = (int)Math.floor(z);
@@ -388,6 +544,21 @@ public class InterpolatedImage {
 			double yR = y1 + 1 - y;
 			double zR = z1 + 1 - z;
 
+			if (isInterior(x1, y1, z1)) {
+				float[] p0 = pixelsFloat[z1];
+				float[] p1 = pixelsFloat[z1 + 1];
+				int i = x1 + w * y1;
+				double v000 = p0[i], v001 = p1[i],
+					v100 = p0[i + 1], v101 = p1[i + 1];
+				i += w;
+				double v010 = p0[i], v011 = p1[i],
+					v110 = p0[i + 1], v111 = p1[i + 1];
+				return xR * (yR * (zR * v000 + (1 - zR) * v001)
+					+ (1 - yR) * (zR * v010 + (1 - zR) * v011))
+					+ (1 - xR) * (yR * (zR * v100 + (1 - zR) * v101)
+					+ (1 - yR) * (zR * v110 + (1 - zR) * v111));
+			}
+
 			double v000 = getNoInterpolFloat(x1, y1, z1),
 			v001 = getNoInterpolFloat(x1, y1, z1 + 1),
 			v010 = getNoInterpolFloat(x1, y1 + 1, z1),
@@ -404,6 +575,12 @@ public class InterpolatedImage {
 
 			return ret;
 		}
+
+		public void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result) {
+			for (int n = 0; n < length; n++)
+				result[n] = (float)get(x[n], y[n], z[n]);
+		}
 	}
 
 	public float getNoCheckFloat(int x, int y, int z) {
@@ -424,8 +601,8 @@ public class InterpolatedImage {
 	}
 
 	/* int */
-	class AverageInt implements Interpolate {
-		public double get(double x, double y, double z) {
+	class AverageInt implements RowInterpolate {
+		final public double get(double x, double y, double z) {
 			int x1 = (int)Math.floor(x);
 			int y1 = (int)Math.floor(y);
 			int z1 = (int)Math.floor(z);
@@ -433,14 +610,25 @@ public class InterpolatedImage {
 			double yR = y1 + 1 - y;
 			double zR = z1 + 1 - z;
 
-			int v000 = getNoInterpolInt(x1, y1, z1),
-				v001 = getNoInterpolInt(x1, y1, z1 + 1),
-				v010 = getNoInterpolInt(x1, y1 + 1, z1),
-				v011 = getNoInterpolInt(x1, y1 + 1, z1 + 1),
-				v100 = getNoInterpolInt(x1 + 1, y1, z1),
-				v101 = getNoInterpolInt(x1 + 1, y1, z1 + 1),
-				v110 = getNoInterpolInt(x1 + 1, y1 + 1, z1),
+			int v000, v001, v010, v011, v100, v101, v110, v111;
+			if (isInterior(x1, y1, z1)) {
+				int[] p0 = pixelsInt[z1], p1 = pixelsInt[z1 + 1];
+				int i = x1 + w * y1;
+				v000 = p0[i]; v001 = p1[i];
+				v100 = p0[i + 1]; v101 = p1[i + 1];
+				i += w;
+				v010 = p0[i]; v011 = p1[i];
+				v110 = p0[i + 1]; v111 = p1[i + 1];
+			} else {
+				v000 = getNoInterpolInt(x1, y1, z1);
+				v001 = getNoInterpolInt(x1, y1, z1 + 1);
+				v010 = getNoInterpolInt(x1, y1 + 1, z1);
+				v011 = getNoInterpolInt(x1, y1 + 1, z1 + 1);
+				v100 = getNoInterpolInt(x1 + 1, y1, z1);
+				v101 = getNoInterpolInt(x1 + 1, y1, z1 + 1);
+				v110 = getNoInterpolInt(x1 + 1, y1 + 1, z1);
 				v111 = getNoInterpolInt(x1 + 1, y1 + 1, z1 + 1);
+			}
 
 			int red = (int)Math.round(xR * (yR * (zR * r(v000) + (1 - zR) * r(v001))
 				+ (1 - yR) * (zR * r(v010) + (1 - zR) * r(v011)))
@@ -460,6 +648,12 @@ public class InterpolatedImage {
 			return (red << 16) + (green << 8) + blue;
 		}
 
+		public void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result) {
+			for (int n = 0; n < length; n++)
+				result[n] = (float)get(x[n], y[n], z[n]);
+		}
+
 		private double r(int v) {
 			return (double)((v & 0xff0000) >> 16);
 		}
@@ -491,8 +685,8 @@ public class InterpolatedImage {
 	}
 	
 	/* short */
-	class AverageShort implements Interpolate {
-		public double get(double x, double y, double z) {
+	class AverageShort implements RowInterpolate {
+		final public double get(double x, double y, double z) {
 			int x1 = (int)Math.floor(x);
 			int y1 = (int)Math.floor(y);
 			int z1 = (int)Math.floor(z);
@@ -500,6 +694,21 @@ public class InterpolatedImage {
 			double yR = y1 + 1 - y;
 			double zR = z1 + 1 - z;
 
+			if (isInterior(x1, y1, z1)) {
+				short[] p0 = pixelsShort[z1];
+				short[] p1 = pixelsShort[z1 + 1];
+				int i = x1 + w * y1;
+				double v000 = p0[i], v001 = p1[i],
+					v100 = p0[i + 1], v101 = p1[i + 1];
+				i += w;
+				double v010 = p0[i], v011 = p1[i],
+					v110 = p0[i + 1], v111 = p1[i + 1];
+				return xR * (yR * (zR * v000 + (1 - zR) * v001)
+					+ (1 - yR) * (zR * v010 + (1 - zR) * v011))
+					+ (1 - xR) * (yR * (zR * v100 + (1 - zR) * v101)
+					+ (1 - yR) * (zR * v110 + (1 - zR) * v111));
+			}
+
 			double v000 = getNoInterpolShort(x1, y1, z1),
 				v001 = getNoInterpolShort(x1, y1, z1 + 1),
 				v010 = getNoInterpolShort(x1, y1 + 1, z1),
@@ -516,6 +725,12 @@ public class InterpolatedImage {
 			
 			return ret;
 		}
+
+		public void getRow(double[] x, double[] y, double[] z,
+				int length, float[] result) {
+			for (int n = 0; n < length; n++)
+				result[n] = (float)get(x[n], y[n], z[n]);
+		}
 	}
 	
 	public short getNoCheckShort(int x, int y, int z) {
@@ -535,6 +750,60 @@ public class InterpolatedImage {
 		pixelsShort[z][x + w * y] = value;
 	}
 	
+	/* the value at an integer position, whatever the type (not RGB) */
+	public double getNoInterpolValue(int x, int y, int z) {
+		switch (type) {
+		case ImagePlus.GRAY16:
+			return getNoInterpolShort(x, y, z);
+		case ImagePlus.GRAY32:
+			return getNoInterpolFloat(x, y, z);
+		case ImagePlus.COLOR_RGB:
+			throw new RuntimeException("RGB has no scalar value");
+		default:
+			return getNoInterpol(x, y, z);
+		}
+	}
+
+	/*
+	 * The gradient of the trilinear interpolation (as done by the
+	 * Average* classes) at (x, y, z); returns the interpolated value.
+	 */
+	public double getGradient(double x, double y, double z,
+			double[] gradient) {
+		int x1 = (int)Math.floor(x);
+		int y1 = (int)Math.floor(y);
+		int z1 = (int)Math.floor(z);
+		double xR = x1 + 1 - x;
+		double yR = y1 + 1 - y;
+		double zR = z1 + 1 - z;
+
+		double v000 = getNoInterpolValue(x1, y1, z1),
+			v001 = getNoInterpolValue(x1, y1, z1 + 1),
+			v010 = getNoInterpolValue(x1, y1 + 1, z1),
+			v011 = getNoInterpolValue(x1, y1 + 1, z1 + 1),
+			v100 = getNoInterpolValue(x1 + 1, y1, z1),
+			v101 = getNoInterpolValue(x1 + 1, y1, z1 + 1),
+			v110 = getNoInterpolValue(x1 + 1, y1 + 1, z1),
+			v111 = getNoInterpolValue(x1 + 1, y1 + 1, z1 + 1);
+
+		// interpolate along z first
+		double v00 = zR * v000 + (1 - zR) * v001,
+			v01 = zR * v010 + (1 - zR) * v011,
+			v10 = zR * v100 + (1 - zR) * v101,
+			v11 = zR * v110 + (1 - zR) * v111;
+		// then along y
+		double v0 = yR * v00 + (1 - yR) * v01,
+			v1 = yR * v10 + (1 - yR) * v11;
+
+		gradient[0] = v1 - v0;
+		gradient[1] = xR * (v01 - v00) + (1 - xR) * (v11 - v10);
+		gradient[2] = xR * (yR * (v001 - v000)
+				+ (1 - yR) * (v011 - v010))
+			+ (1 - xR) * (yR * (v101 - v100)
+				+ (1 - yR) * (v111 - v110));
+		return xR * v0 + (1 - xR) * v1;
+	}
+
 	public InterpolatedImage cloneDimensionsOnly() {
 		return cloneDimensionsOnly(image, type);
 	}
@@ -0,0 +1,165 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/*
+ * A run-length index of the voxels of a label image which belong to a
+ * given set of materials.  For each plane, the runs are stored as pairs
+ * (offset, length), where offset = i + w * j is the index of the first
+ * voxel in the plane's pixel array; the runs are sorted, and they never
+ * span more than one row.
+ *
+ * Metrics restricted to a thin material only need to visit these runs
+ * instead of the whole bounding box.  The index is built in a single
+ * pass, and cached per label image (which must not be changed after
+ * the index was built).
+ */
+public class MaterialRuns {
+	public final int w, h, d;
+	private int[][] runs;
+	private long voxelCount;
+
+	private static WeakHashMap<ImagePlus, HashMap<String, MaterialRuns>>
+		cache = new WeakHashMap<ImagePlus,
+			HashMap<String, MaterialRuns>>();
+
+	public static MaterialRuns get(ImagePlus image, int[] materials) {
+		int[] sorted = (int[])materials.clone();
+		Arrays.sort(sorted);
+		String key = Arrays.toString(sorted);
+		HashMap<String, MaterialRuns> perImage;
+		synchronized (cache) {
+			perImage = cache.get(image);
+			if (perImage == null) {
+				perImage = new HashMap<String, MaterialRuns>();
+				cache.put(image, perImage);
+			}
+		}
+		synchronized (perImage) {
+			MaterialRuns result = perImage.get(key);
+			if (result == null) {
+				result = new MaterialRuns(image, sorted);
+				perImage.put(key, result);
+			}
+			return result;
+		}
+	}
+
+	public MaterialRuns(ImagePlus image, int[] materials) {
+		ImageStack stack = image.getStack();
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		int type = image.getType();
+		if (type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256 &&
+				type != ImagePlus.GRAY16)
+			throw new RuntimeException("Material runs need an 8-bit "
+				+ "or 16-bit image");
+		boolean[] isMaterial = new boolean[type == ImagePlus.GRAY16 ?
+			65536 : 256];
+		for (int i = 0; i < materials.length; i++)
+			if (materials[i] >= 0 &&
+					materials[i] < isMaterial.length)
+				isMaterial[materials[i]] = true;
+
+		runs = new int[d][];
+		int[] buffer = new int[16];
+		for (int k = 0; k < d; k++) {
+			Object pixels = stack.getPixels(k + 1);
+			byte[] bytes = pixels instanceof byte[] ?
+				(byte[])pixels : null;
+			short[] shorts = pixels instanceof short[] ?
+				(short[])pixels : null;
+			int n = 0;
+			for (int j = 0; j < h; j++) {
+				int start = -1;
+				for (int i = 0, index = j * w; i <= w;
+						i++, index++) {
+					boolean inside = i < w &&
+						isMaterial[bytes != null ?
+						bytes[index] & 0xff :
+						shorts[index] & 0xffff];
+					if (inside && start < 0)
+						start = index;
+					else if (!inside && start >= 0) {
+						if (n + 2 > buffer.length)
+							buffer = Arrays.copyOf(
+								buffer, 2 * n);
+						buffer[n++] = start;
+						buffer[n++] = index - start;
+						voxelCount += index - start;
+						start = -1;
+					}
+				}
+			}
+			runs[k] = Arrays.copyOf(buffer, n);
+		}
+	}
+
+	/* the (offset, length) pairs of the plane k */
+	public int[] getRuns(int k) {
+		return runs[k];
+	}
+
+	public long getVoxelCount() {
+		return voxelCount;
+	}
+
+	public boolean contains(int i, int j, int k) {
+		if (k < 0 || k >= d || i < 0 || i >= w)
+			return false;
+		int[] plane = runs[k];
+		int offset = i + w * j;
+		// find the last run starting at or before offset
+		int low = 0, high = plane.length / 2 - 1;
+		while (low <= high) {
+			int middle = (low + high) / 2;
+			if (plane[2 * middle] <= offset)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high >= 0 &&
+			offset < plane[2 * high] + plane[2 * high + 1];
+	}
+
+	/*
+	 * Stores the runs of the row j in the plane k, clipped to
+	 * x0 <= i <= x1, as pairs (first i, last i) into spans; returns
+	 * the number of pairs.  The array spans needs at most w + 1
+	 * entries.
+	 */
+	public int getSpans(int j, int k, int x0, int x1, int[] spans) {
+		int[] plane = runs[k];
+		int rowStart = w * j, rowEnd = rowStart + w;
+		// find the first run ending after the start of the row
+		int low = 0, high = plane.length / 2 - 1;
+		while (low <= high) {
+			int middle = (low + high) / 2;
+			if (plane[2 * middle] + plane[2 * middle + 1]
+					<= rowStart)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		int count = 0;
+		for (int n = 2 * low; n < plane.length &&
+				plane[n] < rowEnd; n += 2) {
+			int first = Math.max(x0, plane[n] - rowStart);
+			int last = Math.min(x1,
+				plane[n] + plane[n + 1] - 1 - rowStart);
+			if (first > last)
+				continue;
+			spans[count++] = first;
+			spans[count++] = last;
+		}
+		return count / 2;
+	}
+}
@@ -4,13 +4,17 @@ package vib;
 
 import ij.IJ;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedList;
 
 import math3d.Point3d;
 import pal.math.ConjugateDirectionSearch;
+import pal.math.ConjugateGradientSearch;
+import pal.math.MFWithGradient;
+import pal.math.MultivariateMinimum;
 import pal.math.MultivariateFunction;
+import util.CMAESearch;
+import util.Parallel;
 import util.StupidLog;
 
 public abstract class RegistrationOptimizer {
@@ -40,24 +44,114 @@ public abstract class RegistrationOptimizer {
 	 */
 	public abstract double calculateBadness(FastMatrix matrix);
 
+	/*
+	 * Implemented by the optimizers whose badness has an analytic
+	 * gradient: like calculateBadness(matrix), but also calculate the
+	 * gradient.  derivatives[i] is the derivative of the matrix by the
+	 * i-th parameter, and gradient[i] receives the derivative of the
+	 * badness by the same parameter.
+	 */
+	public interface WithGradient {
+		public double calculateBadness(FastMatrix matrix,
+				FastMatrix[] derivatives, double[] gradient);
+	}
+
+	/*
+	 * The number of principal orientations which are optimized at
+	 * the same time.
+	 */
+	public int threads = Parallel.getNumThreads();
+
+	/*
+	 * Returns an optimizer with the same images and parameters, but
+	 * with its own scratch state, so that its calculateBadness() can
+	 * be called concurrently with this one's.  The copy may use
+	 * metricThreads threads per evaluation.  Optimizers which cannot
+	 * be copied return null; they search the orientations serially.
+	 */
+	protected RegistrationOptimizer duplicate(int metricThreads) {
+		return null;
+	}
+
+	/*
+	 * copy the parameters a Refinement depends on, and the initial
+	 * guesses (if they were searched already)
+	 */
+	protected void copyParameters(RegistrationOptimizer other) {
+		verbose = other.verbose;
+		optimizer = other.optimizer;
+		cachedInitialGuesses = other.cachedInitialGuesses;
+		samplings = other.samplings;
+		origC = other.origC;
+		transC = other.transC;
+		angleMax = other.angleMax;
+		translateMax = other.translateMax;
+	}
+
+	/*
+	 * The voxel sampling to use on each level; the index is the level
+	 * in the numbering of RigidRegistration, where level n works on the
+	 * images scaled by 2^(1-n).  Levels without an entry (or a null
+	 * entry) use all voxels.  This way, the coarse levels can sample
+	 * sparsely while the finest level still looks at every voxel.
+	 */
+	public TransformedImage.Sampling[] samplings;
+
+	public TransformedImage.Sampling getSampling(int level) {
+		if (samplings == null || level < 0 ||
+				level >= samplings.length ||
+				samplings[level] == null)
+			return TransformedImage.Sampling.all();
+		return samplings[level];
+	}
+
+	/*
+	 * The minimizer doRegister() uses: the serial conjugate direction
+	 * search, CMA-ES, which evaluates a population of candidates
+	 * concurrently (see util.CMAESearch), or a conjugate gradient
+	 * search, which needs the analytic gradient (see WithGradient)
+	 * and falls back to the conjugate direction search without it.
+	 */
+	public static final int CONJUGATE_DIRECTION_SEARCH = 0;
+	public static final int CMA_ES = 1;
+	public static final int CONJUGATE_GRADIENT_SEARCH = 2;
+	public int optimizer = CONJUGATE_DIRECTION_SEARCH;
+
+	/*
+	 * The badness of the matrix returned by the last call to
+	 * doRegister(), as computed by the refinement itself.
+	 */
+	double lastBadness;
+
 	/*
 	 * refines the given registration (or tries extensively when
 	 * matrix == null)
 	 */
 	public FastMatrix doRegister(double tol) {
 		if(verbose) VIB.println("tol: " + tol);
-		//ConjugateGradientSearch CG = new ConjugateGradientSearch();
-		ConjugateDirectionSearch CG = new ConjugateDirectionSearch();
-		//DifferentialEvolution CG = new DifferentialEvolution(6);
-		//OrthogonalSearch CG = new OrthogonalSearch();
-		//StochasticOSearch CG = new StochasticOSearch();
-		//GridSearch CG = new GridSearch();
-		//CG.conjugateGradientStyle = 1;
-		if (IJ.getInstance() != null && verbose)
-			CG.prin = 1; // debug
+		MultivariateMinimum CG;
+		if (optimizer == CONJUGATE_GRADIENT_SEARCH &&
+				this instanceof WithGradient)
+			CG = new ConjugateGradientSearch();
+		else {
+			ConjugateDirectionSearch search =
+				new ConjugateDirectionSearch();
+			//DifferentialEvolution CG = new DifferentialEvolution(6);
+			//OrthogonalSearch CG = new OrthogonalSearch();
+			//StochasticOSearch CG = new StochasticOSearch();
+			//GridSearch CG = new GridSearch();
+			if (IJ.getInstance() != null && verbose)
+				search.prin = 1; // debug
+			CG = search;
+		}
 		//CG.step = 1;
 		//CG.step = 0.1;
 		//CG.defaultStep = 0.001;
+		CMAESearch population = null;
+		if (optimizer == CMA_ES) {
+			population = new CMAESearch();
+			population.sigma = Math.max(1, tol);
+		}
 
 
 		if (eulerParameters == null) {
@@ -84,7 +178,10 @@ public abstract class RegistrationOptimizer {
 		double[] x = new double[6];
 		do {
 			//CG.step = 8.1;
-			CG.optimize(refinement, x, tol,  tol);
+			if (population != null)
+				population.optimize(refinement, x, tol, tol);
+			else
+				CG.optimize(refinement, x, tol,  tol);
 			x = refinement.best;
 			/* MHL added ... */
 			if( Arrays.equals(x, lastx) ) {
@@ -115,8 +212,10 @@ public abstract class RegistrationOptimizer {
 			Refinement originalRefinement = new Refinement(originalEulerParameters);
 			for( int i = 0; i < x.length; ++i )
 				x[i] = 0;
+			lastBadness = originalRefinement.min;
 			return originalRefinement.getMatrix(x);
 		} else {
+			lastBadness = refinement.min;
 			return refinement.getMatrix(x);
 		}
 	}
@@ -127,14 +226,11 @@ public abstract class RegistrationOptimizer {
 	protected double[][] searchInitialEulerParams() {
 		if (cachedInitialGuesses != null)
 			return cachedInitialGuesses;
-		double[][] p = new double[24][9];
+		final double[][] p = new double[24][9];
 
 		angleMax = Math.PI / 4 ;
 		translateMax = 20.0 ;
 
-		ConjugateDirectionSearch CG = new ConjugateDirectionSearch();
-		CG.step = 10;
-
 		double [][] orderedEulerParams = new double[24][9];
 
 		getInitialCenters();
@@ -169,23 +265,65 @@ public abstract class RegistrationOptimizer {
 			}
 		}
 
-		ArrayList refinements = new ArrayList();
-		double[][] x = new double[24][6];
-		for (int i = 0; i < 24; i++) {
-			if(verbose) 
-			VIB.showStatus("Trying orientation " + 
-						(i + 1) + " of 24...");
-			Refinement refinement = new Refinement(p[i]);
-			CG.optimize(refinement, x[i], 5, 5);
-			refinements.add(refinement);
-
-			if(verbose) VIB.showProgress(i + 1, 24);
+		/*
+		 * The orientations are independent, so they are optimized
+		 * concurrently, each on its own copy of this optimizer (at
+		 * most one copy per thread).  Each one gets its own
+		 * ConjugateDirectionSearch, and the refinements are stored
+		 * by index, so the order (and the result) does not depend
+		 * on the scheduling.
+		 */
+		final Refinement[] refinements = new Refinement[24];
+		final double[][] x = new double[24][6];
+		final LinkedList<RegistrationOptimizer> idle =
+			new LinkedList<RegistrationOptimizer>();
+		final int[] finished = { 0 };
+		int nThreads = Math.min(threads, 24);
+		if (nThreads > 1) {
+			int metricThreads = Math.max(1,
+				Parallel.getNumThreads() / nThreads);
+			RegistrationOptimizer copy = duplicate(metricThreads);
+			if (copy == null)
+				nThreads = 1;
+			else {
+				idle.add(copy);
+				for (int i = 1; i < nThreads; i++)
+					idle.add(duplicate(metricThreads));
+			}
 		}
+		if (nThreads < 2)
+			idle.add(this);
+
+		Parallel.forEach(24, nThreads, new Parallel.Loop() {
+			public void run(int i) {
+				RegistrationOptimizer optimizer;
+				synchronized (idle) {
+					optimizer = idle.removeFirst();
+				}
+				if(verbose) 
+				VIB.showStatus("Trying orientation " + 
+							(i + 1) + " of 24...");
+				ConjugateDirectionSearch CG =
+					new ConjugateDirectionSearch();
+				CG.step = 10;
+				Refinement refinement =
+					optimizer.new Refinement(p[i]);
+				CG.optimize(refinement, x[i], 5, 5);
+				refinements[i] = refinement;
+				synchronized (idle) {
+					idle.add(optimizer);
+					finished[0]++;
+					if(verbose)
+						VIB.showProgress(finished[0], 24);
+				}
+			}
+		});
 
-		Collections.sort(refinements);
+		// stable, so ties keep the order of the orientations
+		Arrays.sort(refinements);
 
-		for (int i = 0; i < refinements.size(); i++) {
-			Refinement refinement = (Refinement)refinements.get(i);
+		for (int i = 0; i < refinements.length; i++) {
+			Refinement refinement = refinements[i];
 			x[i] = refinement.best;
 			orderedEulerParams[i] = refinement.adjustInitial(x[i]);
 			if(verbose) 
@@ -211,10 +349,29 @@ public abstract class RegistrationOptimizer {
 		return trans.times(rot);
 	}
 
+	/*
+	 * The derivatives of getEulerMatrix() by the 3 angles and the 3
+	 * translations (the center of rotation is not a parameter).
+	 */
+	public final static FastMatrix[] getEulerMatrixDerivatives(
+			double[] x) {
+		FastMatrix[] result = new FastMatrix[6];
+		// translate(t) does not change the derivative of the rotation
+		for (int i = 0; i < 3; i++)
+			result[i] = FastMatrix.rotateEulerAtDerivative(
+					x[0], x[1], x[2], x[6], x[7], x[8], i);
+		for (int i = 3; i < 6; i++)
+			result[i] = new FastMatrix();
+		result[3].a03 = 1;
+		result[4].a13 = 1;
+		result[5].a23 = 1;
+		return result;
+	}
+
 	double translateMax, angleMax;
 
-	class Refinement implements MultivariateFunction, Comparable {
-		// TODO: static class Refinement implements MFWithGradient {
+	class Refinement implements MFWithGradient, CMAESearch.Duplicable,
+			Comparable {
 		public boolean showStatus = false;
 		double min;
 		double[] best;
@@ -232,6 +389,20 @@ public abstract class RegistrationOptimizer {
 			angleFactor = angleMax / translateMax;
 		}
 
+		/* a copy for another thread, see duplicate() */
+		Refinement(Refinement other) {
+			min = Double.MAX_VALUE;
+			initial = other.initial;
+			angleFactor = other.angleFactor;
+		}
+
+		/* evaluates on a duplicate of the optimizer (or returns null) */
+		public MultivariateFunction duplicate() {
+			RegistrationOptimizer copy =
+				RegistrationOptimizer.this.duplicate(1);
+			return copy == null ? null : copy.new Refinement(this);
+		}
+
 		/*
 		 * The vector x contains 6 parameters: (x,y,z) -- the
 		 * translation -- and angleX, angleY, angleZ -- the rotations
@@ -257,8 +428,25 @@ public abstract class RegistrationOptimizer {
 					initial[8]);
 		}
 
+		/* the derivatives of getMatrix() by the 6 parameters */
+		public FastMatrix[] getMatrixDerivatives(double[] x) {
+			double[] p = new double[9];
+			for (int i = 0; i < 6; i++)
+				p[i] = (i < 3 ? x[i] * angleFactor : x[i])
+					+ initial[i];
+			System.arraycopy(initial, 6, p, 6, 3);
+			FastMatrix[] result = getEulerMatrixDerivatives(p);
+			for (int i = 0; i < 3; i++)
+				result[i] = result[i].scale(angleFactor,
+						angleFactor, angleFactor);
+			return result;
+		}
+
 		public double evaluate(double[] x) {
-			double result = calculateBadness(getMatrix(x));
+			return remember(x, calculateBadness(getMatrix(x)));
+		}
+
+		private double remember(double[] x, double result) {
 			if (result < min) {
 				best = (double[])x.clone();
 				min = result;
@@ -281,12 +469,25 @@ public abstract class RegistrationOptimizer {
 		}
 
 		public double evaluate(double[] x, double[] gradient) {
+			if (RegistrationOptimizer.this instanceof WithGradient)
+				return remember(x, ((WithGradient)
+					RegistrationOptimizer.this)
+					.calculateBadness(getMatrix(x),
+					getMatrixDerivatives(x), gradient));
 			double result = evaluate(x);
 			computeGradient(x, gradient);
 			return result;
 		}
 
+		/*
+		 * Without an analytic gradient, this costs 12 evaluations
+		 * of the badness.
+		 */
 		public void computeGradient(double[] x, double[] gradient) {
+			if (RegistrationOptimizer.this instanceof WithGradient) {
+				evaluate(x, gradient);
+				return;
+			}
 			for (int i = 0; i < 6; i++) {
 				double bup = x[i];
 				x[i] = bup + 1;
@@ -28,19 +28,33 @@ package vib;
 	20 pixels.
  */
 
-import distance.PixelPairs;
 import ij.ImagePlus;
 import ij.measure.Calibration;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.StringTokenizer;
 
 import math3d.Point3d;
+import util.Parallel;
 
 public class RigidRegistration {
 	String[] materials1, materials2;
 	protected boolean verbose = false;
+
+	/*
+	 * The voxel sampling per level (see RegistrationOptimizer.samplings);
+	 * null means that all voxels are used on every level.
+	 */
+	public TransformedImage.Sampling[] samplings;
+
+	/*
+	 * The minimizer used by the optimizers, e.g.
+	 * RegistrationOptimizer.CMA_ES to evaluate a population of
+	 * candidates concurrently, or
+	 * RegistrationOptimizer.CONJUGATE_GRADIENT_SEARCH to use the
+	 * analytic gradient of the measure.
+	 */
+	public int optimizer = RegistrationOptimizer.CONJUGATE_DIRECTION_SEARCH;
         
 	public static int guessLevelFromWidth( int width ) {
 		int level = 0;
@@ -146,23 +160,44 @@ public class RigidRegistration {
 		if (!noOptimization) {
 			Optimizer opt = fastButInaccurate 
 				? new FastOptimizer(trans, level, stopLevel, tolerance, verbose)
+				: trans.measure instanceof distance.PixelPairsWithGradient
+				? new GradientOptimizer(trans, level, stopLevel, tolerance, verbose)
 				: new Optimizer(trans, level, stopLevel, tolerance, verbose);
 			opt.eulerParameters = params;
+			opt.samplings = samplings;
+			opt.optimizer = optimizer;
 
 			if(opt.eulerParameters == null){
-				FastMatrix [] results = 
+				final FastMatrix [] results = 
 					new FastMatrix[nInitialPositions];
-				double badnees[] = 
+				final double badnees[] = 
 					new double[nInitialPositions];
 
-				for(int i = 0; i < nInitialPositions; i++){
-					opt.eulerParameters = null;
-					results[i] = opt.doRegister(
-							level - stopLevel, i);
-					//todo probably recalculated wastefully	
-					badnees[i] = opt.calculateBadness(
-							results[i]);   
-				}
+				/*
+				 * All starts share the initial guesses, so search
+				 * them only once.  Then refine the starts
+				 * concurrently, each on its own copy of the
+				 * optimizer.  The badness of each result is the
+				 * one its final refinement computed already.
+				 */
+				final int levels = level - stopLevel;
+				opt.searchInitialEulerParams(levels);
+				final int nThreads =
+					Math.min(opt.threads, nInitialPositions);
+				final int metricThreads = Math.max(1,
+					Parallel.getNumThreads() / nThreads);
+				final Optimizer first = opt;
+				Parallel.forEach(nInitialPositions, nThreads,
+						new Parallel.Loop() {
+					public void run(int i) {
+						Optimizer o = nThreads < 2 ? first :
+							(Optimizer)first.duplicate(
+								metricThreads);
+						o.eulerParameters = null;
+						results[i] = o.doRegister(levels, i);
+						badnees[i] = o.lastBadness;
+					}
+				});
 
 				//now select the best
 				double best = Double.MAX_VALUE;
@@ -214,34 +249,30 @@ public class RigidRegistration {
 			trans.getDifferenceImage().show();
 
                 ImagePlus template=trans.getTemplate();
-                PixelPairs measure = trans.measure;
                 
 		// give the garbage collector a chance:
 		trans = null;
 		System.gc();
 		System.gc();
                 
-                if(alsoTransform!=null) {
-                    for(Iterator<ImagePlus> i=alsoTransform.iterator();
-                        i.hasNext(); ) {
-                        
-                        ImagePlus toTransform=i.next();
+                if(alsoTransform!=null && alsoTransform.size() > 0) {
+                        // render all channels in a single pass
+                        ImagePlus[] channels = alsoTransform.toArray(
+                                new ImagePlus[alsoTransform.size()]);
                         TransformedImage transOther=new TransformedImage(
                                 template,
-                                toTransform);
-                        transOther.measure = measure;
-                        transOther.measure.reset();
+                                channels[0]);
                         transOther.setTransformation(matrix);
 
-                        ImagePlus result=transOther.getTransformed();
+                        ImagePlus[] results =
+                                transOther.getTransformed(channels);
 
                         transOther = null;
                         System.gc();
                         System.gc();
-                        
-                        result.setTitle("Transformed "+toTransform.getTitle());
-                        result.show();
-                    }
+
+                        for (int i = 0; i < results.length; i++)
+                                results[i].show();
                 }
                 
 		return matrix;
@@ -310,6 +341,25 @@ public class RigidRegistration {
 			tolerance = tol;
 		}
 
+		/* a copy for concurrent use, see duplicate() */
+		Optimizer(Optimizer other, TransformedImage t,
+				int metricThreads) {
+			copyParameters(other);
+			this.t = t;
+			t.threads = metricThreads;
+			start = other.start;
+			stop = other.stop;
+			tolerance = other.tolerance;
+			threads = other.threads;
+		}
+
+		protected RegistrationOptimizer duplicate(int metricThreads) {
+			// null if the measure cannot be copied
+			TransformedImage copy = t.duplicate();
+			return copy == null ? null :
+				new Optimizer(this, copy, metricThreads);
+		}
+
 		public FastMatrix doRegister(int level) {
 			return doRegister(level, 0);
 		}
@@ -325,7 +375,8 @@ public class RigidRegistration {
 			if (level > 0) {
 				TransformedImage backup = t;
 				t = t.resample(2);
-				t.setTransformation(doRegister(level - 1));
+				t.setTransformation(doRegister(level - 1,
+							initialGuessPlace));
 				//t.getTransformed().show();
 				//t.getDifferenceImage().show();
 				t = backup;
@@ -334,6 +385,7 @@ public class RigidRegistration {
 			}
 			if(verbose)
 				VIB.println("level is " + (start - level));
+			t.setSampling(getSampling(start - level));
 
 			double factor = (1 << (start - level));
 			int minFactor = (1 << start);
@@ -346,6 +398,20 @@ public class RigidRegistration {
 			return doRegister(tolerance / factor);
 		}
 
+		/*
+		 * Search the initial orientations on the coarsest level, just
+		 * like doRegister(level, initialGuessPlace) would.
+		 */
+		double[][] searchInitialEulerParams(int level) {
+			TransformedImage backup = t;
+			for (int i = 0; i < level; i++)
+				t = t.resample(2);
+			t.setSampling(getSampling(start));
+			double[][] result = searchInitialEulerParams();
+			t = backup;
+			return result;
+		}
+
 		public void getInitialCenters() {
 			if (t.measure instanceof distance.TwoValues) {
 				distance.TwoValues d = (distance.TwoValues)
@@ -364,6 +430,35 @@ public class RigidRegistration {
 			t.setTransformation(matrix);
 			return t.getDistance();
 		}
+
+	}
+
+	/* for the measures with an analytic gradient */
+	static class GradientOptimizer extends Optimizer
+			implements RegistrationOptimizer.WithGradient {
+		public GradientOptimizer(TransformedImage trans,
+				int startLevel, int stopLevel,
+				double tol, boolean verbose) {
+			super(trans, startLevel, stopLevel, tol, verbose);
+		}
+
+		GradientOptimizer(GradientOptimizer other,
+				TransformedImage t, int metricThreads) {
+			super(other, t, metricThreads);
+		}
+
+		@Override
+		protected RegistrationOptimizer duplicate(int metricThreads) {
+			TransformedImage copy = t.duplicate();
+			return copy == null ? null :
+				new GradientOptimizer(this, copy, metricThreads);
+		}
+
+		public double calculateBadness(FastMatrix matrix,
+				FastMatrix[] derivatives, double[] gradient) {
+			t.setTransformation(matrix);
+			return t.getDistanceAndGradient(derivatives, gradient);
+		}
 	}
 	
 	static class FastOptimizer extends Optimizer {
@@ -376,6 +471,22 @@ public class RigidRegistration {
 			current = new Point3d();
 		}
 
+		FastOptimizer(FastOptimizer other, TransformedImage t,
+				int metricThreads) {
+			super(other, t, metricThreads);
+			centerX = other.centerX;
+			centerY = other.centerY;
+			centerZ = other.centerZ;
+			current = new Point3d();
+		}
+
+		@Override
+		protected RegistrationOptimizer duplicate(int metricThreads) {
+			TransformedImage copy = t.duplicate();
+			return copy == null ? null :
+				new FastOptimizer(this, copy, metricThreads);
+		}
+
 		@Override
 		public void getInitialCenters(){
 			super.getInitialCenters();
@@ -405,6 +516,7 @@ public class RigidRegistration {
 			current.z = start.z + i * stop.z / total;
 		}
 			
+		/* the badness only looks at three planes */
 		@Override
 		public double calculateBadness(FastMatrix matrix) {
 			t.setTransformation(matrix);
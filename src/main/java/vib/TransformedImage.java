@@ -2,11 +2,18 @@
 
 package vib;
 
+import distance.MutualInformation;
 import distance.PixelPairs;
+import distance.PixelPairsWithGradient;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.measure.Calibration;
+import java.util.Arrays;
+import java.util.Random;
+
 import math3d.Point3d;
+import util.Parallel;
 
 public class TransformedImage {
 	public InterpolatedImage orig, transform;
@@ -50,6 +57,49 @@ public class TransformedImage {
 		}
 	}
         int imageType = -1;
+
+	private TransformedImage() {
+	}
+
+	/*
+	 * A copy sharing the images with this one, but with its own
+	 * transformation and measure, so that both can be evaluated at
+	 * the same time.  Returns null if the measure cannot be copied
+	 * (see PixelPairs.duplicate()).
+	 */
+	public TransformedImage duplicate() {
+		PixelPairs measure = null;
+		if (this.measure != null) {
+			measure = this.measure.duplicate();
+			if (measure == null)
+				return null;
+		}
+		// let the copies share the quantized template
+		quantizeOrig();
+		TransformedImage res = new TransformedImage();
+		res.orig = orig;
+		res.transform = transform;
+		// FastMatrix.times() writes the scratch fields x, y, z
+		res.fromOrig = new FastMatrix(fromOrig);
+		res.toTransform = new FastMatrix(toTransform);
+		if (transformation != null)
+			res.transformation = new FastMatrix(transformation);
+		if (matrix != null)
+			res.matrix = new FastMatrix(matrix);
+		res.measure = measure;
+		res.imageType = imageType;
+		res.threads = threads;
+		res.sampling = sampling;
+		res.samples = samples;
+		res.materials = materials;
+		res.runs = runs;
+		res.quantizedFor = quantizedFor;
+		res.origBins8 = origBins8;
+		res.origBins16 = origBins16;
+		res.x0 = x0; res.y0 = y0; res.z0 = z0;
+		res.x1 = x1; res.y1 = y1; res.z1 = z1;
+		return res;
+	}
         
         public ImagePlus getTemplate() {
 		return orig.getImage();
@@ -129,26 +179,36 @@ public class TransformedImage {
 		this.matrix = toTransform.times(transformation.times(fromOrig));
 	}
 
+	/*
+	 * The resampled images are cached by ImagePyramid, so that
+	 * registering many images to the same template downsamples
+	 * the template only once per level.
+	 */
 	public TransformedImage resample(int factor) {
 		ImagePlus resOrig, resTran;
 		
 		if (measure instanceof distance.MutualInformation) {
-			resOrig = NaiveResampler.resampleMinEnt(orig.image, factor);
-			resTran = NaiveResampler.resampleMinEnt(transform.image,
+			resOrig = ImagePyramid.resampleMinEnt(orig.image, factor);
+			resTran = ImagePyramid.resampleMinEnt(transform.image,
 							   factor);
 		} else {
-			resOrig = NaiveResampler.resample(orig.image, factor);
-			resTran = NaiveResampler.resample(transform.image, factor);
+			resOrig = ImagePyramid.resample(orig.image, factor);
+			resTran = ImagePyramid.resample(transform.image, factor);
 		}
 		TransformedImage res = new TransformedImage(resOrig, resTran);
 		res.transformation = transformation;
 		res.measure = measure;
+		res.threads = threads;
 		res.x0 = x0 / factor;
 		res.y0 = y0 / factor;
 		res.z0 = z0 / factor;
 		res.x1 = (x1 + factor - 1) / factor;
 		res.y1 = (y1 + factor - 1) / factor;
 		res.z1 = (z1 + factor - 1) / factor;
+		if (materials != null)
+			res.restrictToMaterials(materials);
+		if (transform.interpol instanceof InterpolatedImage.BSpline)
+			res.transform.setBSplineInterpolation();
 		return res;
 	}
 
@@ -161,6 +221,8 @@ public class TransformedImage {
 		public boolean showProgress;
 		public int x0, y0, z0, x1, y1, z1, xd, zd;
 		protected boolean isIdentity;
+		// a private copy, so that several iterators can run in parallel
+		protected FastMatrix m;
 
 		public Iterator(boolean showProgress, int x0, int y0, int z0,
 				int x1, int y1, int z1) {
@@ -169,7 +231,8 @@ public class TransformedImage {
 			this.x1 = x1; this.y1 = y1; this.z1 = z1;
 			xd = x1 - x0; zd = z1 - z0;
 			i = x1; j = y0 - 1; k = z0;
-			isIdentity = matrix.isIdentity();
+			m = new FastMatrix(matrix);
+			isIdentity = m.isIdentity();
 		}
 
                 public boolean hasNext() {
@@ -198,10 +261,10 @@ public class TransformedImage {
                                                 IJ.showProgress(k - z0 + 1, zd);
                                 }
 				if (!isIdentity) {
-					matrix.apply(0, j, k);
-					start = matrix.getResult();
-					matrix.apply(x1, j, k);
-					stop = matrix.getResult().minus(start);
+					m.apply(0, j, k);
+					start = m.getResult();
+					m.apply(x1, j, k);
+					stop = m.getResult().minus(start);
 				}
 			}
 			if (isIdentity) {
@@ -223,6 +286,166 @@ public class TransformedImage {
                 return iterator(false);
         }
 
+	/*
+	 * For the hot loops, the Iterator is too slow: it tests several
+	 * conditions per voxel, and its fields are public.  Instead, a
+	 * RowVisitor gets one row of the template at a time:  the voxels
+	 * (i0 + n, j, k) for 0 <= n < length, whose values are
+	 * pixels[offset + n] (pixels is the plane k of the template, i.e.
+	 * a byte[] or short[]), and which map to the model coordinates
+	 * (x[n], y[n], z[n]).  The coordinates are bit-identical to those
+	 * of an Iterator over the same box (see RowCoordinates).
+	 */
+	public interface RowVisitor {
+		public void row(int i0, int j, int k, int length,
+				Object pixels, int offset,
+				double[] x, double[] y, double[] z);
+	}
+
+	/*
+	 * The model coordinates of the template voxels, calculated exactly
+	 * like the Iterator does: per row, the voxels 0 and x1 (the end of
+	 * the box) are mapped, and the others are interpolated between
+	 * them.  Adding multiples of a column of the matrix instead would
+	 * differ in the last bits, which can change the interpolated
+	 * values, or the voxel a coordinate is truncated to.  Each thread
+	 * needs its own instance.
+	 */
+	class RowCoordinates {
+		private FastMatrix m;
+		private boolean isIdentity;
+		private int x1, j = -1, k = -1;
+		private double startX, startY, startZ, stopX, stopY, stopZ;
+
+		RowCoordinates(int x1) {
+			this(matrix, x1);
+		}
+
+		RowCoordinates(FastMatrix matrix, int x1) {
+			// a private copy, as apply() writes to the matrix
+			m = new FastMatrix(matrix);
+			isIdentity = m.isIdentity();
+			this.x1 = x1;
+		}
+
+		void setRow(int j, int k) {
+			if (j == this.j && k == this.k)
+				return;
+			this.j = j;
+			this.k = k;
+			if (isIdentity)
+				return;
+			m.apply(0, j, k);
+			startX = m.x; startY = m.y; startZ = m.z;
+			m.apply(x1, j, k);
+			stopX = m.x - startX;
+			stopY = m.y - startY;
+			stopZ = m.z - startZ;
+		}
+
+		double x(int i) {
+			return isIdentity ? i : startX + stopX * i / x1;
+		}
+
+		double y(int i) {
+			return isIdentity ? j : startY + stopY * i / x1;
+		}
+
+		double z(int i) {
+			return isIdentity ? k : startZ + stopZ * i / x1;
+		}
+
+		/* the coordinates of (i0 + n, j, k) for n < length */
+		void getRow(int i0, int j, int k, int length,
+				double[] x, double[] y, double[] z) {
+			setRow(j, k);
+			for (int n = 0; n < length; n++) {
+				x[n] = x(i0 + n);
+				y[n] = y(i0 + n);
+				z[n] = z(i0 + n);
+			}
+		}
+	}
+
+	public void scanRows(RowVisitor visitor) {
+		scanRows(visitor, 0, 0, 0, orig.w, orig.h, orig.d);
+	}
+
+	/*
+	 * The material restriction: only the template voxels labeled with
+	 * one of these materials are looked at by getDistance().
+	 */
+	private int[] materials;
+	private MaterialRuns runs;
+
+	/*
+	 * Unlike narrowSearchToMaterial(), which only shrinks the bounding
+	 * box, this skips the other voxels inside the bounding box, too.
+	 * The run-length index is cached per template (see MaterialRuns).
+	 * Pass null to look at all voxels again.
+	 */
+	public void restrictToMaterials(int[] materials) {
+		this.materials = materials;
+		runs = materials == null ? null :
+			MaterialRuns.get(orig.image, materials);
+		samples = null;
+	}
+
+	public int[] getMaterials() {
+		return materials;
+	}
+
+	/* Like scanRows(), but only the runs of the material restriction */
+	void scanMaterial(RowVisitor visitor,
+			int x0, int y0, int z0, int x1, int y1, int z1) {
+		RowCoordinates coordinates = new RowCoordinates(x1);
+		double[] x = new double[orig.w], y = new double[orig.w],
+			z = new double[orig.w];
+		int[] spans = new int[orig.w + 1];
+		for (int k = z0; k < z1; k++) {
+			Object pixels = orig.getPixels(k);
+			for (int j = y0; j < y1; j++) {
+				int count = runs.getSpans(j, k, x0, x1 - 1,
+						spans);
+				for (int n = 0; n < 2 * count; n += 2) {
+					int i0 = spans[n];
+					int length = spans[n + 1] + 1 - i0;
+					coordinates.getRow(i0, j, k, length,
+						x, y, z);
+					visitor.row(i0, j, k, length,
+						pixels, i0 + orig.w * j,
+						x, y, z);
+				}
+			}
+		}
+	}
+
+	/* This method may be called by several threads at the same time. */
+	public void scanRows(RowVisitor visitor,
+			int x0, int y0, int z0, int x1, int y1, int z1) {
+		scanRows(matrix, visitor, x0, y0, z0, x1, y1, z1);
+	}
+
+	/* Like scanRows(), but with another matrix (e.g. another model) */
+	private void scanRows(FastMatrix matrix, RowVisitor visitor,
+			int x0, int y0, int z0, int x1, int y1, int z1) {
+		if (x1 <= x0)
+			return;
+		RowCoordinates coordinates = new RowCoordinates(matrix, x1);
+		int length = x1 - x0;
+		double[] x = new double[length], y = new double[length],
+			z = new double[length];
+		for (int k = z0; k < z1; k++) {
+			Object pixels = orig.getPixels(k);
+			for (int j = y0; j < y1; j++) {
+				coordinates.getRow(x0, j, k, length, x, y, z);
+				visitor.row(x0, j, k, length,
+					pixels, x0 + orig.w * j,
+					x, y, z);
+			}
+		}
+	}
+
         public Iterator iterator(boolean showProgress) {
                 return iterator(showProgress, 0, 0, 0, orig.w, orig.h, orig.d);
         }
@@ -235,48 +458,647 @@ public class TransformedImage {
 	// the bounding box for the distance calculation
 	int x0, y0, z0, x1, y1, z1;
 
+	/*
+	 * The number of threads getDistance() may use.  The planes of the
+	 * bounding box are split into slabs which are evaluated in parallel;
+	 * the result is bit-identical to the serial evaluation.
+	 */
+	public int threads = Parallel.getNumThreads();
+
+	/*
+	 * Which voxels of the bounding box getDistance() looks at: all of
+	 * them, every n-th voxel along each axis, or a fixed random subset
+	 * (Mattes et al. 2003).  The sampled voxels are chosen once, when
+	 * the distance is calculated the first time.
+	 */
+	public static class Sampling {
+		public static final int ALL = 0;
+		public static final int STRIDE = 1;
+		public static final int RANDOM = 2;
+
+		public final int type;
+		public final int stride;
+		public final double fraction;
+		public final long seed;
+
+		private Sampling(int type, int stride, double fraction,
+				long seed) {
+			this.type = type;
+			this.stride = stride;
+			this.fraction = fraction;
+			this.seed = seed;
+		}
+
+		public static Sampling all() {
+			return new Sampling(ALL, 1, 1, 0);
+		}
+
+		public static Sampling stride(int stride) {
+			if (stride < 1)
+				throw new RuntimeException("Invalid stride: "
+						+ stride);
+			return new Sampling(stride == 1 ? ALL : STRIDE,
+					stride, 1.0 / stride / stride / stride,
+					0);
+		}
+
+		public static Sampling random(double fraction, long seed) {
+			if (fraction <= 0 || fraction > 1)
+				throw new RuntimeException("Invalid fraction: "
+						+ fraction);
+			return new Sampling(fraction == 1 ? ALL : RANDOM,
+					1, fraction, seed);
+		}
+
+		public String toString() {
+			switch (type) {
+			case STRIDE:
+				return "every " + stride + ". voxel";
+			case RANDOM:
+				return fraction + " of the voxels (seed "
+					+ seed + ")";
+			default:
+				return "all voxels";
+			}
+		}
+	}
+
+	Sampling sampling = Sampling.all();
+
+	/*
+	 * The sampled voxels, for each plane of the bounding box, as
+	 * sorted pixel indices i + w * j (null when sampling all voxels)
+	 */
+	private int[][] samples;
+
+	public void setSampling(Sampling sampling) {
+		if (sampling == null)
+			sampling = Sampling.all();
+		this.sampling = sampling;
+		samples = null;
+	}
+
+	public Sampling getSampling() {
+		return sampling;
+	}
+
+	private void chooseSamples() {
+		int[][] result = new int[z1 - z0][];
+		int[] plane = new int[(x1 - x0) * (y1 - y0)];
+		int stride = sampling.stride;
+		boolean random = sampling.type == Sampling.RANDOM;
+		Random generator = new Random(sampling.seed);
+		for (int k = z0; k < z1; k++) {
+			int n = 0;
+			for (int j = y0; j < y1 &&
+					(k - z0) % stride == 0; j += stride)
+				for (int i = x0; i < x1; i += stride) {
+					if (runs != null &&
+							!runs.contains(i, j, k))
+						continue;
+					if (!random || generator.nextDouble()
+							< sampling.fraction)
+						plane[n++] = i + orig.w * j;
+				}
+			result[k - z0] = Arrays.copyOf(plane, n);
+		}
+		samples = result;
+	}
+
+	/*
+	 * For the MutualInformation measure, the template is quantized to
+	 * bin indices once, so that only the model's values need to be
+	 * binned for each pair.
+	 */
+	private MutualInformation quantizedFor;
+	private byte[][] origBins8;
+	private short[][] origBins16;
+
+	synchronized void quantizeOrig() {
+		if (!(measure instanceof MutualInformation))
+			return;
+		MutualInformation mi = (MutualInformation)measure;
+		if (quantizedFor != null && quantizedFor.sameBinning(mi))
+			return;
+		quantizedFor = mi;
+		origBins8 = null;
+		origBins16 = null;
+		int bins = mi.getBins();
+		byte[][] bins8 = bins <= 256 ? new byte[orig.d][] : null;
+		short[][] bins16 = bins8 == null && bins <= 65536 ?
+			new short[orig.d][] : null;
+		if (bins8 == null && bins16 == null)
+			return;
+		for (int k = 0; k < orig.d; k++) {
+			if (bins8 != null)
+				bins8[k] = new byte[orig.w * orig.h];
+			else
+				bins16[k] = new short[orig.w * orig.h];
+			for (int j = 0; j < orig.h; j++)
+				for (int i = 0; i < orig.w; i++) {
+					int bin = mi.bin(imageType ==
+						ImagePlus.GRAY16 ?
+						orig.getNoCheckShort(i, j, k) :
+						orig.getNoCheck(i, j, k));
+					// let add() complain about it
+					if (bin < 0 || bin >= bins)
+						return;
+					if (bins8 != null)
+						bins8[k][i + orig.w * j] =
+							(byte)bin;
+					else
+						bins16[k][i + orig.w * j] =
+							(short)bin;
+				}
+		}
+		origBins8 = bins8;
+		origBins16 = bins16;
+	}
+
+	/* the measure, if the pairs can be added as bins */
+	private MutualInformation binned(PixelPairs measure) {
+		if ((origBins8 == null && origBins16 == null) ||
+				!(measure instanceof MutualInformation))
+			return null;
+		return (MutualInformation)measure;
+	}
+
+	private int origBin(int i, int j, int k) {
+		if (origBins8 != null)
+			return origBins8[k][i + orig.w * j] & 0xff;
+		return origBins16[k][i + orig.w * j] & 0xffff;
+	}
+
 	public float getDistance() {
+		if (sampling.type != Sampling.ALL && samples == null)
+			chooseSamples();
+		quantizeOrig();
 		measure.reset();
-		Iterator iter = new Iterator(false, x0, y0, z0, x1, y1, z1);
-		while (iter.next() != null) {
-			float v1 = -1;
-			switch(imageType) {
-			case ImagePlus.GRAY8:
-                        case ImagePlus.COLOR_256:
-				v1 = orig.getNoInterpol(iter.i, iter.j, iter.k);
-                                break;
-			case ImagePlus.GRAY16:
-				v1 = orig.getNoInterpolShort(iter.i, iter.j, iter.k);
-                                break;
-                        }
-			float v2 = (float)transform.interpol.get(iter.x,
-								 iter.y, iter.z);
-			measure.add(v1, v2);
+		int planes = z1 - z0;
+		if (threads < 2 || planes < 2)
+			addPairs(measure, z0, z1);
+		else if (mergesExactly(measure))
+			addPairsMerged(planes);
+		else
+			addPairsInOrder(planes);
+		return measure.distance();
+	}
+
+	/* where addPairs() puts the pairs: a measure, or a Recorder */
+	private interface PairSink {
+		void add(float v1, float v2);
+	}
+
+	/* add the pairs of the planes z0 <= k < z1 inside the bounding box */
+	void addPairs(final PixelPairs measure, int z0, int z1) {
+		addPairs(binned(measure), new PairSink() {
+			public void add(float v1, float v2) {
+				measure.add(v1, v2);
+			}
+		}, z0, z1);
+	}
+
+	/* the pairs go to binned if it is not null, otherwise to pairs */
+	private void addPairs(final MutualInformation binned,
+			final PairSink pairs, int z0, int z1) {
+		if (samples != null) {
+			addSamples(binned, pairs, z0, z1);
+			return;
+		}
+		// the model's values of one row
+		final float[] values = new float[x1 - x0];
+		RowVisitor visitor = new RowVisitor() {
+			public void row(int i0, int j, int k, int length,
+					Object pixels, int offset,
+					double[] x, double[] y, double[] z) {
+				transform.getRow(x, y, z, length, values);
+				if (binned != null) {
+					for (int n = 0; n < length; n++)
+						binned.addBins(origBin(i0 + n,
+								j, k),
+							binned.bin(values[n]));
+					return;
+				}
+				switch (imageType) {
+				case ImagePlus.GRAY8:
+				case ImagePlus.COLOR_256:
+					byte[] bytes = (byte[])pixels;
+					for (int n = 0; n < length; n++)
+						pairs.add(bytes[offset + n]
+								& 0xff,
+							values[n]);
+					break;
+				case ImagePlus.GRAY16:
+					short[] shorts = (short[])pixels;
+					for (int n = 0; n < length; n++)
+						pairs.add(shorts[offset + n],
+							values[n]);
+					break;
+				default:
+					for (int n = 0; n < length; n++)
+						pairs.add(-1, values[n]);
+				}
+			}
+		};
+		if (runs != null)
+			scanMaterial(visitor, x0, y0, z0, x1, y1, z1);
+		else
+			scanRows(visitor, x0, y0, z0, x1, y1, z1);
+	}
+
+	/*
+	 * Like addPairs(), but only for the sampled voxels
+	 */
+	private void addSamples(MutualInformation binned, PairSink pairs,
+			int z0, int z1) {
+		RowCoordinates coordinates = new RowCoordinates(x1);
+		for (int k = z0; k < z1; k++) {
+			int[] plane = samples[k - this.z0];
+			for (int n = 0; n < plane.length; n++) {
+				int i = plane[n] % orig.w;
+				int j = plane[n] / orig.w;
+				coordinates.setRow(j, k);
+				float v2 = (float)transform.interpol.get(
+						coordinates.x(i),
+						coordinates.y(i),
+						coordinates.z(i));
+				if (binned != null) {
+					binned.addBins(origBin(i, j, k),
+							binned.bin(v2));
+					continue;
+				}
+				float v1 = imageType == ImagePlus.GRAY16 ?
+					orig.getNoInterpolShort(i, j, k) :
+					orig.getNoInterpol(i, j, k);
+				pairs.add(v1, v2);
+			}
 		}
+	}
+
+	/*
+	 * Like getDistance(), but also calculates the gradient of the
+	 * distance: derivatives[i] is the derivative of the matrix passed
+	 * to setTransformation() by the i-th parameter (for example, see
+	 * RegistrationOptimizer.getEulerMatrixDerivatives()).  The measure
+	 * needs to implement PixelPairsWithGradient; the model's values
+	 * are differentiated as trilinearly interpolated.
+	 */
+	public float getDistanceAndGradient(FastMatrix[] derivatives,
+			double[] gradient) {
+		if (!(measure instanceof PixelPairsWithGradient))
+			throw new RuntimeException("The measure "
+				+ measure.getClass().getName()
+				+ " does not provide a gradient");
+		if (sampling.type != Sampling.ALL && samples == null)
+			chooseSamples();
+		PixelPairsWithGradient measure =
+			(PixelPairsWithGradient)this.measure;
+		final FastMatrix[] d = getCoordinateDerivatives(derivatives);
+		measure.reset(d.length);
+		final int planes = z1 - z0;
+		final int n = Math.max(1, Math.min(threads, planes));
+		final PixelPairsWithGradient[] partial =
+			new PixelPairsWithGradient[n];
+		for (int slab = 0; n > 1 && slab < n; slab++)
+			partial[slab] = (PixelPairsWithGradient)
+				measure.duplicate();
+		if (n < 2 || partial[0] == null)
+			addPairsWithGradient(measure, d, z0, z1);
+		else {
+			Parallel.forEach(n, threads, new Parallel.Loop() {
+				public void run(int slab) {
+					addPairsWithGradient(partial[slab], d,
+						z0 + planes * slab / n,
+						z0 + planes * (slab + 1) / n);
+				}
+			});
+			for (int slab = 0; slab < n; slab++)
+				measure.merge(partial[slab]);
+		}
+		measure.getGradient(gradient);
 		return measure.distance();
 	}
 
+	/*
+	 * The transformation is E^-1, so the model coordinates are
+	 * p' = A E^-1 B p with the calibration matrices A and B.  Since
+	 * d(E^-1) = -E^-1 dE E^-1, the derivative of the model coordinates
+	 * is -A E^-1 dE E^-1 B p, which is again linear in p.
+	 */
+	FastMatrix[] getCoordinateDerivatives(FastMatrix[] derivatives) {
+		FastMatrix c = toTransform.times(transformation)
+			.scale(-1, -1, -1);
+		c.a03 = c.a13 = c.a23 = 0;
+		FastMatrix g = transformation.times(fromOrig);
+		FastMatrix[] result = new FastMatrix[derivatives.length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = c.times(derivatives[i].times(g));
+		return result;
+	}
+
+	private void addPairsWithGradient(PixelPairsWithGradient measure,
+			FastMatrix[] derivatives, int z0, int z1) {
+		RowCoordinates coordinates = new RowCoordinates(x1);
+		FastMatrix[] d = new FastMatrix[derivatives.length];
+		for (int i = 0; i < d.length; i++)
+			d[i] = new FastMatrix(derivatives[i]);
+		double[] imageGradient = new double[3];
+		double[] derivatives2 = new double[d.length];
+		int w = x1 - x0;
+		for (int k = z0; k < z1; k++) {
+			int[] plane = samples == null ? null :
+				samples[k - this.z0];
+			int count = plane == null ? w * (y1 - y0) :
+				plane.length;
+			for (int n = 0; n < count; n++) {
+				int i, j;
+				if (plane == null) {
+					i = x0 + n % w;
+					j = y0 + n / w;
+					if (runs != null &&
+							!runs.contains(i, j, k))
+						continue;
+				} else {
+					i = plane[n] % orig.w;
+					j = plane[n] / orig.w;
+				}
+				coordinates.setRow(j, k);
+				float v1 = imageType == ImagePlus.GRAY16 ?
+					orig.getNoInterpolShort(i, j, k) :
+					orig.getNoInterpol(i, j, k);
+				// the value, too, from the same 8 neighbours
+				float v2 = (float)transform.getGradient(
+						coordinates.x(i),
+						coordinates.y(i),
+						coordinates.z(i), imageGradient);
+				for (int l = 0; l < d.length; l++) {
+					d[l].apply(i, j, k);
+					derivatives2[l] =
+						imageGradient[0] * d[l].x +
+						imageGradient[1] * d[l].y +
+						imageGradient[2] * d[l].z;
+				}
+				measure.add(v1, v2, derivatives2);
+			}
+		}
+	}
+
+	/*
+	 * The measures which only count pairs can be evaluated on one slab
+	 * per thread, merging the partial results afterwards.
+	 */
+	static boolean mergesExactly(PixelPairs measure) {
+		return measure instanceof distance.MutualInformation ||
+			measure instanceof distance.Thresholded ||
+			measure instanceof distance.TwoValues;
+	}
+
+	private void addPairsMerged(final int planes) {
+		final int n = Math.min(threads, planes);
+		final PixelPairs[] partial = new PixelPairs[n];
+		for (int slab = 0; slab < n; slab++) {
+			partial[slab] = measure.duplicate();
+			if (partial[slab] == null) {
+				addPairsInOrder(planes);
+				return;
+			}
+		}
+		Parallel.forEach(n, threads, new Parallel.Loop() {
+			public void run(int slab) {
+				addPairs(partial[slab],
+					z0 + planes * slab / n,
+					z0 + planes * (slab + 1) / n);
+			}
+		});
+		for (int slab = 0; slab < n; slab++)
+			measure.merge(partial[slab]);
+	}
+
+	/*
+	 * Floating point sums depend on the order of the summands, so the
+	 * other measures get the pairs in the serial order: the planes
+	 * are sampled in parallel, then fed to the measure one by one.
+	 */
+	private Recorder[] recorders;
+
+	private void addPairsInOrder(int planes) {
+		int n = Math.min(threads, planes);
+		int capacity = (x1 - x0) * (y1 - y0);
+		if (recorders == null || recorders.length < n ||
+				recorders[0].values1.length < capacity) {
+			recorders = new Recorder[n];
+			for (int i = 0; i < n; i++)
+				recorders[i] = new Recorder(capacity);
+		}
+		for (int k = z0; k < z1; k += n) {
+			final int first = k;
+			final int count = Math.min(n, z1 - k);
+			Parallel.forEach(count, threads, new Parallel.Loop() {
+				public void run(int i) {
+					recorders[i].reset();
+					addPairs(null, recorders[i],
+						first + i, first + i + 1);
+				}
+			});
+			for (int i = 0; i < count; i++)
+				recorders[i].replay(measure);
+		}
+	}
+
+	/* remembers the pairs, to feed them to the measure later */
+	private static class Recorder implements PairSink {
+		float[] values1, values2;
+		int count;
+
+		Recorder(int capacity) {
+			values1 = new float[capacity];
+			values2 = new float[capacity];
+		}
+
+		public void reset() {
+			count = 0;
+		}
+
+		public void add(float v1, float v2) {
+			values1[count] = v1;
+			values2[count++] = v2;
+		}
+
+		void replay(PixelPairs measure) {
+			for (int i = 0; i < count; i++)
+				measure.add(values1[i], values2[i]);
+		}
+	}
+
+	/*
+	 * Runs scanRows() on z-slabs, one per thread; each slab gets its
+	 * own copy of the matrix, but the visitor is shared, so it must be
+	 * thread-safe.
+	 */
+	void scanSlabs(RowVisitor visitor, int x0, int y0, int z0,
+			int x1, int y1, int z1) {
+		scanSlabs(matrix, visitor, x0, y0, z0, x1, y1, z1);
+	}
+
+	private void scanSlabs(final FastMatrix matrix,
+			final RowVisitor visitor, final int x0, final int y0,
+			final int z0, final int x1, final int y1,
+			final int z1) {
+		final int planes = z1 - z0;
+		if (threads < 2 || planes < 2) {
+			scanRows(matrix, visitor, x0, y0, z0, x1, y1, z1);
+			return;
+		}
+		final int n = Math.min(threads, planes);
+		Parallel.forEach(n, threads, new Parallel.Loop() {
+			public void run(int slab) {
+				scanRows(matrix, visitor, x0, y0,
+					z0 + planes * slab / n, x1, y1,
+					z0 + planes * (slab + 1) / n);
+			}
+		});
+	}
+
 	public ImagePlus getTransformed() {
-		InterpolatedImage result = orig.cloneDimensionsOnly();
+		final InterpolatedImage result = orig.cloneDimensionsOnly();
 
-		Iterator iter = iterator();
-		switch(imageType) {
+		scanSlabs(new RowVisitor() {
+			public void row(int i0, int j, int k, int length,
+					Object pixels, int offset,
+					double[] x, double[] y, double[] z) {
+				Object target = result.getPixels(k);
+				switch (imageType) {
+				case ImagePlus.GRAY8:
+				case ImagePlus.COLOR_256:
+					byte[] bytes = (byte[])target;
+					for (int n = 0; n < length; n++)
+						bytes[offset + n] = (byte)
+							transform.getNoInterpol(
+							(int)x[n], (int)y[n],
+							(int)z[n]);
+					break;
+				case ImagePlus.GRAY16:
+					short[] shorts = (short[])target;
+					for (int n = 0; n < length; n++)
+						shorts[offset + n] =
+						transform.getNoInterpolShort(
+							(int)x[n], (int)y[n],
+							(int)z[n]);
+					break;
+				}
+			}
+		}, 0, 0, 0, orig.w, orig.h, orig.d);
+		result.image.setTitle("transformed");
+		return result.image;
+	}
+
+	/*
+	 * Renders several images in the space of the model (e.g. the
+	 * channels of a multi-channel model) in a single pass:  the model
+	 * coordinates of each template voxel are computed once and then
+	 * looked up in every channel.  Channels with a different
+	 * calibration map to different coordinates; they get one pass per
+	 * calibration.  The results have the dimensions and calibration of
+	 * the template and the types of the channels.
+	 */
+	public ImagePlus[] getTransformed(ImagePlus[] channels) {
+		ImagePlus[] images = new ImagePlus[channels.length];
+		for (int c = 0; c < channels.length; c++) {
+			if (images[c] != null)
+				continue;
+			Calibration calibration = channels[c].getCalibration();
+			int count = 0;
+			int[] indices = new int[channels.length];
+			for (int c2 = c; c2 < channels.length; c2++)
+				if (images[c2] == null && sameCalibration(
+						calibration, channels[c2]
+						.getCalibration()))
+					indices[count++] = c2;
+			ImagePlus[] sameCalibration = new ImagePlus[count];
+			for (int i = 0; i < count; i++)
+				sameCalibration[i] = channels[indices[i]];
+			ImagePlus[] results = getTransformed(sameCalibration,
+				FastMatrix.fromCalibration(channels[c]).inverse()
+				.times(transformation.times(fromOrig)));
+			for (int i = 0; i < count; i++)
+				images[indices[i]] = results[i];
+		}
+		return images;
+	}
+
+	/* the model coordinates only depend on these */
+	private static boolean sameCalibration(Calibration a, Calibration b) {
+		return Math.abs(a.pixelWidth) == Math.abs(b.pixelWidth) &&
+			Math.abs(a.pixelHeight) == Math.abs(b.pixelHeight) &&
+			Math.abs(a.pixelDepth) == Math.abs(b.pixelDepth) &&
+			a.xOrigin == b.xOrigin && a.yOrigin == b.yOrigin &&
+			a.zOrigin == b.zOrigin;
+	}
+
+	/* renders channels which share the matrix */
+	private ImagePlus[] getTransformed(ImagePlus[] channels,
+			FastMatrix matrix) {
+		final InterpolatedImage[] sources =
+			new InterpolatedImage[channels.length];
+		final InterpolatedImage[] results =
+			new InterpolatedImage[channels.length];
+		final int[] types = new int[channels.length];
+		for (int c = 0; c < channels.length; c++) {
+			sources[c] = new InterpolatedImage(channels[c]);
+			types[c] = channels[c].getType();
+			results[c] = InterpolatedImage.cloneDimensionsOnly(
+					orig.image, types[c]);
+		}
+
+		scanSlabs(matrix, new RowVisitor() {
+			public void row(int i0, int j, int k, int length,
+					Object pixels, int offset,
+					double[] x, double[] y, double[] z) {
+				for (int n = 0; n < length; n++) {
+					int i = (int)x[n];
+					int jj = (int)y[n];
+					int kk = (int)z[n];
+					for (int c = 0; c < sources.length;
+							c++)
+						copyVoxel(sources[c], i, jj,
+							kk, results[c]
+							.getPixels(k),
+							offset + n, types[c]);
+				}
+			}
+		}, 0, 0, 0, orig.w, orig.h, orig.d);
+
+		ImagePlus[] images = new ImagePlus[channels.length];
+		for (int c = 0; c < channels.length; c++) {
+			images[c] = results[c].image;
+			images[c].setTitle("Transformed " +
+					channels[c].getTitle());
+		}
+		return images;
+	}
+
+	private static void copyVoxel(InterpolatedImage source,
+			int i, int j, int k, Object target, int index,
+			int type) {
+		switch (type) {
 		case ImagePlus.GRAY8:
 		case ImagePlus.COLOR_256:
-			while (iter.next() != null)
-				result.set(iter.i, iter.j, iter.k,
-					   transform.getNoInterpol((int)iter.x,
-								   (int)iter.y, (int)iter.z));
-                        break;
+			((byte[])target)[index] =
+				(byte)source.getNoInterpol(i, j, k);
+			break;
 		case ImagePlus.GRAY16:
-			while (iter.next() != null)
-				result.setShort(iter.i, iter.j, iter.k,
-					   transform.getNoInterpolShort((int)iter.x,
-									(int)iter.y, (int)iter.z));
-                        break;
-                }
-		result.image.setTitle("transformed");
-		return result.image;
+			((short[])target)[index] =
+				source.getNoInterpolShort(i, j, k);
+			break;
+		case ImagePlus.GRAY32:
+			((float[])target)[index] =
+				source.getNoInterpolFloat(i, j, k);
+			break;
+		case ImagePlus.COLOR_RGB:
+			((int[])target)[index] =
+				source.getNoInterpolInt(i, j, k);
+			break;
+		}
 	}
 
 	public ImagePlus getDifferenceImage() {
@@ -296,51 +1118,84 @@ public class TransformedImage {
 		// used as well as (possibly) the source image's bit
 		// depth.
 
-		InterpolatedImage result =
+		final InterpolatedImage result =
 			InterpolatedImage.cloneDimensionsOnly(orig.image,
 							      typeToCreate);
 
-		PixelPairs differenceMeasure = null;
+		final PixelPairs differenceMeasure;
 
 		if( measure instanceof distance.MutualInformation ||
+			measure instanceof distance.ParzenMutualInformation ||
 			measure instanceof distance.Correlation ) {
-			/* Using the MutualInformation metric for
-			   difference images is impossibly slow, and
-			   the correlation between two points is
-			   always NaN. */
+			/* Using the mutual information metrics for
+			   difference images is impossibly slow (and
+			   meaningless for a single pair), and the
+			   correlation between two points is always
+			   NaN. */
 			differenceMeasure = new distance.Euclidean();
 		} else {
 			differenceMeasure = measure;
 		}
 
-		Iterator iter = iterator(false, x0, y0, z0, x1, y1, z1);
-		while (iter.next() != null) {
-			differenceMeasure.reset();
-			switch(imageType) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				differenceMeasure.add(orig.getNoInterpol(iter.i, iter.j, iter.k),
-					    transform.getNoInterpol((int)iter.x,
-								    (int)iter.y, (int)iter.z));
-				break;
-			case ImagePlus.GRAY16:
-				differenceMeasure.add(orig.getNoInterpolShort(iter.i, iter.j, iter.k),
-					    transform.getNoInterpolShort((int)iter.x,
-									 (int)iter.y, (int)iter.z));
-				break;
+		final int resultType = typeToCreate;
+		/* the rows are rendered concurrently, with a measure per
+		   worker, unless the measure cannot be copied */
+		final boolean concurrent =
+			differenceMeasure.duplicate() != null;
+		final ThreadLocal<PixelPairs> voxelMeasures =
+				new ThreadLocal<PixelPairs>() {
+			protected PixelPairs initialValue() {
+				return concurrent ? differenceMeasure.duplicate()
+					: differenceMeasure;
 			}
-			switch(typeToCreate) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				result.set(iter.i, iter.j, iter.k,
-					   (byte)(int)differenceMeasure.distance());
-				break;
-			case ImagePlus.GRAY16:
-				result.setShort(iter.i, iter.j, iter.k,
-						(short)differenceMeasure.distance());
-				break;
+		};
+		RowVisitor visitor = new RowVisitor() {
+			public void row(int i0, int j, int k, int length,
+					Object pixels, int offset,
+					double[] x, double[] y, double[] z) {
+				Object target = result.getPixels(k);
+				PixelPairs voxelMeasure = voxelMeasures.get();
+				for (int n = 0; n < length; n++) {
+					int i = (int)x[n];
+					int jj = (int)y[n];
+					int kk = (int)z[n];
+					voxelMeasure.reset();
+					switch (imageType) {
+					case ImagePlus.GRAY8:
+					case ImagePlus.COLOR_256:
+						voxelMeasure.add(
+							((byte[])pixels)
+							[offset + n] & 0xff,
+							transform.getNoInterpol(
+								i, jj, kk));
+						break;
+					case ImagePlus.GRAY16:
+						voxelMeasure.add(
+							((short[])pixels)
+							[offset + n],
+							transform.getNoInterpolShort(
+								i, jj, kk));
+						break;
+					}
+					switch (resultType) {
+					case ImagePlus.GRAY8:
+						((byte[])target)[offset + n] =
+							(byte)(int)voxelMeasure
+							.distance();
+						break;
+					case ImagePlus.GRAY16:
+						((short[])target)[offset + n] =
+							(short)voxelMeasure
+							.distance();
+						break;
+					}
+				}
 			}
-		}
+		};
+		if (concurrent)
+			scanSlabs(visitor, x0, y0, z0, x1, y1, z1);
+		else
+			scanRows(visitor, x0, y0, z0, x1, y1, z1);
 
 		result.image.setTitle("difference");
 		return result.image;
@@ -378,6 +1233,7 @@ public class TransformedImage {
 		this.y1 = y1;
 		this.z0 = z0;
 		this.z1 = z1;
+		samples = null;
 	}
 
 	public void narrowSearchToMaterial(int value, int border) {
@@ -404,6 +1260,7 @@ public class TransformedImage {
 		if (x1 > orig.w) x1 = orig.w;
 		if (y1 > orig.h) y1 = orig.h;
 		if (z1 > orig.d) z1 = orig.d;
+		samples = null;
 	}
 
 	/* package methods */
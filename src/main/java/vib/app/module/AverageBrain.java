@@ -97,7 +97,7 @@ public class AverageBrain extends Module {
 		d = ii.d;
 		cumul = new int[ii.d][ii.w * ii.h];
 		boolean isGray = !image.getProcessor().isColorLut();
-		Method method = isGray ?
+		final Method method = isGray ?
 			(Method)new AverageGray() : (Method)new AverageLabels();
 		method.cumul = cumul;
 		if (!isGray) {
@@ -115,20 +115,25 @@ public class AverageBrain extends Module {
 			method.t = new TransformedImage(image, img);
 			method.t.setTransformation(matrices[m]);
 			method.isIdentity = method.t.matrix.isIdentity();
-			TransformedImage.Iterator iter = method.t.iterator();
-			while (iter.next() != null) {
-				method.accumulate(iter.i, iter.j, iter.k,
-						iter.x, iter.y, iter.z);
-			}
+			method.t.scanRows(new TransformedImage.RowVisitor() {
+				public void row(int i0, int j, int k,
+						int length,
+						Object pixels, int offset,
+						double[] x, double[] y,
+						double[] z) {
+					for (int n = 0; n < length; n++)
+						method.accumulate(i0 + n, j, k,
+							x[n], y[n], z[n]);
+				}
+			});
 			method.t = null;
 			img.close();
 		}
 		method.count = (realCount < 1 ? 1 : realCount);
-		InterpolatedImage.Iterator iter = ii.iterator();
-		while (iter.next() != null) {
-			ii.set(iter.i, iter.j, iter.k,
-					method.get(iter.i, iter.j, iter.k));
-		}
+		for (int k = 0; k < d; k++)
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++)
+					ii.set(i, j, k, method.get(i, j, k));
 	}
 
 	abstract class Method {
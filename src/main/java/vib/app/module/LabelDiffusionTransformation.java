@@ -21,6 +21,7 @@ public class LabelDiffusionTransformation extends Module {
 		ImagePlus templateLabels = null;
 
 		DiffusionInterpol2 interpol = new DiffusionInterpol2();
+		interpol.solver = DiffusionInterpol2.MULTIGRID;
 		boolean rememberDistortion = true;
 		boolean reuseDistortion = false;
 		float tolerance = 0.5f;
@@ -58,4 +58,17 @@ public class BooksteinTransform extends Bookstein implements Transform {
 		apply(new Point3d(x,y,z));
 	}
 	
+	/* the landmarks and the coefficients, for CompiledTransformations */
+	Point3d[] getPoints() {
+		return points;
+	}
+	
+	double[] getAffine(int coordinate) {
+		return getAffinePart(coordinate);
+	}
+	
+	double[] getWeights(int coordinate) {
+		return (coordinate == 0 ? bx : coordinate == 1 ? by : bz).w;
+	}
+	
 }
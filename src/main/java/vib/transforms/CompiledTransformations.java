@@ -0,0 +1,221 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * A flattened version of an OrderedTransformations, for transforming
+ * many points.
+ */
+
+package vib.transforms;
+
+import java.util.ArrayList;
+
+import math3d.Bookstein;
+import math3d.Point3d;
+
+/*
+ * OrderedTransformations.apply() makes a virtual call per point and
+ * transformation, and the Bookstein transforms allocate a Point3d per
+ * point.  This class copies the coefficients of the chain into plain
+ * arrays, so that apply() only needs to loop over them.
+ *
+ * The results are bit-identical to OrderedTransformations.apply(): the
+ * callers truncate the coordinates to voxels, where a difference in the
+ * last bit can pick another voxel.  That is why adjacent affine
+ * transforms are not multiplied into one, and (almost) identities are
+ * not dropped.
+ *
+ * The batched apply() transforms whole scanlines: each stage is applied
+ * to all points before the next one, so that e.g. the landmarks of a
+ * Bookstein transform are read once per line instead of once per
+ * point.
+ *
+ * Transformations of other types are called through the Transform
+ * interface.  The result does not change when the chain is modified
+ * afterwards, and it may be used by several threads at the same time.
+ */
+public class CompiledTransformations {
+	final static int AFFINE = 0;
+	final static int BOOKSTEIN = 1;
+	final static int OTHER = 2;
+
+	private int[] types;
+	// AFFINE: the coefficients a00, a01, a02, a03, a10, ..., a23
+	private double[][] affines;
+	// BOOKSTEIN: the landmarks and the weights
+	private double[][] px, py, pz, wx, wy, wz;
+	// BOOKSTEIN: the affine parts a1, ax, ay, az per coordinate
+	private double[][] initX, initY, initZ;
+	private Transform[] others;
+
+	// the scratch space of the batched apply(), per thread
+	private final ThreadLocal<double[][]> scratch =
+			new ThreadLocal<double[][]>() {
+		protected double[][] initialValue() {
+			return new double[4][0];
+		}
+	};
+
+	public CompiledTransformations(ArrayList<Transform> list) {
+		int n = list.size();
+		types = new int[n];
+		affines = new double[n][];
+		px = new double[n][]; py = new double[n][]; pz = new double[n][];
+		wx = new double[n][]; wy = new double[n][]; wz = new double[n][];
+		initX = new double[n][]; initY = new double[n][];
+		initZ = new double[n][];
+		others = new Transform[n];
+		for (int s = 0; s < n; s++) {
+			Transform t = list.get(s);
+			if (t instanceof FastMatrixTransform) {
+				types[s] = AFFINE;
+				// the first 12 entries are the 3x4 part
+				affines[s] = ((FastMatrixTransform)t)
+					.rowwise16();
+			} else if (t instanceof BooksteinTransform) {
+				BooksteinTransform b = (BooksteinTransform)t;
+				types[s] = BOOKSTEIN;
+				Point3d[] points = b.getPoints();
+				int count = points.length;
+				px[s] = new double[count];
+				py[s] = new double[count];
+				pz[s] = new double[count];
+				for (int i = 0; i < count; i++) {
+					px[s][i] = points[i].x;
+					py[s][i] = points[i].y;
+					pz[s][i] = points[i].z;
+				}
+				wx[s] = (double[])b.getWeights(0).clone();
+				wy[s] = (double[])b.getWeights(1).clone();
+				wz[s] = (double[])b.getWeights(2).clone();
+				initX[s] = b.getAffine(0);
+				initY[s] = b.getAffine(1);
+				initZ[s] = b.getAffine(2);
+			} else {
+				types[s] = OTHER;
+				others[s] = t;
+			}
+		}
+	}
+
+	public void apply(double x, double y, double z, double[] result) {
+		for (int s = 0; s < types.length; s++) {
+			switch (types[s]) {
+			case AFFINE: {
+				double[] a = affines[s];
+				double x1 = x * a[0] + y * a[1] + z * a[2] + a[3];
+				double y1 = x * a[4] + y * a[5] + z * a[6] + a[7];
+				z = x * a[8] + y * a[9] + z * a[10] + a[11];
+				x = x1;
+				y = y1;
+				break;
+			}
+			case BOOKSTEIN: {
+				double[] ix = initX[s], iy = initY[s],
+					iz = initZ[s];
+				double rx = ix[0] + ix[1] * x + ix[2] * y
+					+ ix[3] * z;
+				double ry = iy[0] + iy[1] * x + iy[2] * y
+					+ iy[3] * z;
+				double rz = iz[0] + iz[1] * x + iz[2] * y
+					+ iz[3] * z;
+				double[] lx = px[s], ly = py[s], lz = pz[s];
+				double[] cx = wx[s], cy = wy[s], cz = wz[s];
+				for (int i = 0; i < lx.length; i++) {
+					double dx = x - lx[i];
+					double dy = y - ly[i];
+					double dz = z - lz[i];
+					double u = Bookstein.U(Math.sqrt(dx * dx
+							+ dy * dy + dz * dz));
+					rx += cx[i] * u;
+					ry += cy[i] * u;
+					rz += cz[i] * u;
+				}
+				x = rx;
+				y = ry;
+				z = rz;
+				break;
+			}
+			default:
+				others[s].apply(x, y, z, result);
+				x = result[0];
+				y = result[1];
+				z = result[2];
+			}
+		}
+		result[0] = x;
+		result[1] = y;
+		result[2] = z;
+	}
+
+	/* Transforms the first n points (xs[i], ys[i], zs[i]) in place */
+	public void apply(double[] xs, double[] ys, double[] zs, int n) {
+		double[][] buffers = scratch.get();
+		if (buffers[0].length < n)
+			for (int i = 0; i < 3; i++)
+				buffers[i] = new double[n];
+		if (buffers[3].length < 3)
+			buffers[3] = new double[3];
+		double[] rx = buffers[0], ry = buffers[1], rz = buffers[2];
+		double[] result = buffers[3];
+		for (int s = 0; s < types.length; s++) {
+			switch (types[s]) {
+			case AFFINE: {
+				double[] a = affines[s];
+				for (int i = 0; i < n; i++) {
+					double x = xs[i], y = ys[i], z = zs[i];
+					xs[i] = x * a[0] + y * a[1] + z * a[2]
+						+ a[3];
+					ys[i] = x * a[4] + y * a[5] + z * a[6]
+						+ a[7];
+					zs[i] = x * a[8] + y * a[9] + z * a[10]
+						+ a[11];
+				}
+				break;
+			}
+			case BOOKSTEIN: {
+				double[] ix = initX[s], iy = initY[s],
+					iz = initZ[s];
+				for (int i = 0; i < n; i++) {
+					double x = xs[i], y = ys[i], z = zs[i];
+					rx[i] = ix[0] + ix[1] * x + ix[2] * y
+						+ ix[3] * z;
+					ry[i] = iy[0] + iy[1] * x + iy[2] * y
+						+ iy[3] * z;
+					rz[i] = iz[0] + iz[1] * x + iz[2] * y
+						+ iz[3] * z;
+				}
+				// the landmarks are the outer loop
+				double[] lx = px[s], ly = py[s], lz = pz[s];
+				double[] cx = wx[s], cy = wy[s], cz = wz[s];
+				for (int l = 0; l < lx.length; l++) {
+					double x0 = lx[l], y0 = ly[l], z0 = lz[l];
+					double c0 = cx[l], c1 = cy[l], c2 = cz[l];
+					for (int i = 0; i < n; i++) {
+						double dx = xs[i] - x0;
+						double dy = ys[i] - y0;
+						double dz = zs[i] - z0;
+						double u = Bookstein.U(Math.sqrt(
+							dx * dx + dy * dy
+							+ dz * dz));
+						rx[i] += c0 * u;
+						ry[i] += c1 * u;
+						rz[i] += c2 * u;
+					}
+				}
+				System.arraycopy(rx, 0, xs, 0, n);
+				System.arraycopy(ry, 0, ys, 0, n);
+				System.arraycopy(rz, 0, zs, 0, n);
+				break;
+			}
+			default:
+				for (int i = 0; i < n; i++) {
+					others[s].apply(xs[i], ys[i], zs[i],
+							result);
+					xs[i] = result[0];
+					ys[i] = result[1];
+					zs[i] = result[2];
+				}
+			}
+		}
+	}
+}
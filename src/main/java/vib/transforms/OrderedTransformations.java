@@ -19,6 +19,8 @@ import java.util.Iterator;
 import java.util.ListIterator;
 
 import math3d.Point3d;
+import util.Parallel;
+import vib.MaterialRuns;
 
 /* This class contains a sequence of transformations... */
 
@@ -26,12 +28,16 @@ public class OrderedTransformations {
 	
 	private ArrayList<Transform> listOfTransforms;
 	
+	/* The number of threads createNewImagesReal() may use. */
+	public int threads = Parallel.getNumThreads();
+	
 	public Object clone() {
 		OrderedTransformations result=new OrderedTransformations();
 		
 		ArrayList<Transform> clonedList=(ArrayList<Transform>)this.listOfTransforms.clone();
 		
 		result.listOfTransforms=clonedList;
+		result.threads=threads;
 		return result;
 	}
 	
@@ -214,6 +220,13 @@ public class OrderedTransformations {
 		return result;
 	}
 	
+	/* A copy of the chain for transforming many points quickly;
+	   see CompiledTransformations. */
+	
+	public CompiledTransformations compile( ) {
+		return new CompiledTransformations( listOfTransforms );
+	}
+	
 	public void apply( double x, double y, double z, double [] result ) {
 		
 		for( Transform f : listOfTransforms ) {
@@ -296,8 +309,19 @@ public class OrderedTransformations {
 					       ImagePlus image1,
 					       int skipPixelsInTemplate,
 					       BoundsInclusive boundsInclusive ) {
+		return scoreTransformationReal( image0, image1, skipPixelsInTemplate, boundsInclusive, null );
+	}
+	
+	/* If mask is not null, only the template pixels in its runs
+	   are considered (see vib.MaterialRuns). */
+	
+	public double scoreTransformationReal( ImagePlus image0,
+					       ImagePlus image1,
+					       int skipPixelsInTemplate,
+					       BoundsInclusive boundsInclusive,
+					       MaterialRuns mask ) {
 		
-		OrderedTransformations invertedTransform = inverse();
+		CompiledTransformations invertedTransform = inverse().compile();
 		
 		ImageStack stack0 = image0.getStack();
 		ImageStack stack1 = image1.getStack();
@@ -327,7 +351,10 @@ public class OrderedTransformations {
 			zmax = boundsInclusive.zmax;
 		}
 		
-		double [] transformedPoint = new double[3];
+		double [] xs = new double[ w0 ];
+		double [] ys = new double[ w0 ];
+		double [] zs = new double[ w0 ];
+		int [] spans = new int[ w0 + 1 ];
 		
 		long numberOfPixelsConsidered = 0;
 		long sumSquaredDifferences = 0;
@@ -346,31 +373,55 @@ public class OrderedTransformations {
 			     y <= ymax;
 			     y += (1 + skipPixelsInTemplate) ) {
 				
-				for( int x = xmin;
-				     x <= xmax;
-				     x += (1 + skipPixelsInTemplate) ) {
+				int spanCount = 1;
+				if( mask == null ) {
+					spans[0] = xmin;
+					spans[1] = xmax;
+				} else
+					spanCount = mask.getSpans( y, z, xmin, xmax, spans );
+				
+				for( int s = 0; s < 2 * spanCount; s += 2 ) {
+				
+					// Stay on the grid of the skipped pixels:
+					int xfirst = xmin + ( ( spans[s] - xmin + skipPixelsInTemplate ) /
+							      ( 1 + skipPixelsInTemplate ) ) * ( 1 + skipPixelsInTemplate );
+				
+					// Transform the whole span at once:
+					int count = 0;
+					for( int x = xfirst;
+					     x <= spans[s+1];
+					     x += (1 + skipPixelsInTemplate) ) {
+						xs[count] = x;
+						ys[count] = y;
+						zs[count] = z;
+						++count;
+					}
+					invertedTransform.apply( xs, ys, zs, count );
+				
+					for( int n = 0; n < count; ++n ) {
 					
-					invertedTransform.apply( x, y, z, transformedPoint );
+						int x = xfirst + n * (1 + skipPixelsInTemplate);
 					
-					x_in_domain = ((int)transformedPoint[0]);
-					y_in_domain = ((int)transformedPoint[1]);
-					z_in_domain = ((int)transformedPoint[2]);
+						x_in_domain = ((int)xs[n]);
+						y_in_domain = ((int)ys[n]);
+						z_in_domain = ((int)zs[n]);
 					
-					int value_in_template = (int)( 0xFF & templatePixels[ x + y * w0 ] );
-					int value_in_domain;
+						int value_in_template = (int)( 0xFF & templatePixels[ x + y * w0 ] );
+						int value_in_domain;
 					
-					if( ( x_in_domain >= 0 ) && ( x_in_domain < w1 ) &&
-					    ( y_in_domain >= 0 ) && ( y_in_domain < h1 ) &&
-					    ( z_in_domain >= 0 ) && ( z_in_domain < d1 ) ) {
+						if( ( x_in_domain >= 0 ) && ( x_in_domain < w1 ) &&
+						    ( y_in_domain >= 0 ) && ( y_in_domain < h1 ) &&
+						    ( z_in_domain >= 0 ) && ( z_in_domain < d1 ) ) {
 						
-						byte [] domainPixels = (byte[])stack1.getPixels( z_in_domain + 1 );
+							byte [] domainPixels = (byte[])stack1.getPixels( z_in_domain + 1 );
 						
-						value_in_domain = (int)( 0xFF & domainPixels[ x_in_domain + y_in_domain * w1 ] );
+							value_in_domain = (int)( 0xFF & domainPixels[ x_in_domain + y_in_domain * w1 ] );
 						
-						int difference = value_in_domain - value_in_template;
-						sumSquaredDifferences += (long)( difference * difference );
-						numberOfPixelsConsidered += 1;
+							int difference = value_in_domain - value_in_template;
+							sumSquaredDifferences += (long)( difference * difference );
+							numberOfPixelsConsidered += 1;
 						
+						}
 					}
 				}
 			}
@@ -389,8 +440,18 @@ public class OrderedTransformations {
 							  Threshold threshold1,
 							  int skipPixelsInTemplate,
 							  BoundsInclusive boundsInclusive ) {
+		return scoreTransformationThresholdedReal( image0, image1, threshold0, threshold1, skipPixelsInTemplate, boundsInclusive, null );
+	}
+	
+	public double scoreTransformationThresholdedReal( ImagePlus image0,
+							  ImagePlus image1,
+							  Threshold threshold0,
+							  Threshold threshold1,
+							  int skipPixelsInTemplate,
+							  BoundsInclusive boundsInclusive,
+							  MaterialRuns mask ) {
 		
-		OrderedTransformations invertedTransform = inverse();
+		CompiledTransformations invertedTransform = inverse().compile();
 		
 		ImageStack stack0 = image0.getStack();
 		ImageStack stack1 = image1.getStack();
@@ -420,7 +481,10 @@ public class OrderedTransformations {
 			zmax = boundsInclusive.zmax;
 		}
 		
-		double [] transformedPoint = new double[3];
+		double [] xs = new double[ w0 ];
+		double [] ys = new double[ w0 ];
+		double [] zs = new double[ w0 ];
+		int [] spans = new int[ w0 + 1 ];
 		
 		long numberOfPixelsConsidered = 0;
 		long sumSquaredDifferences = 0;
@@ -439,43 +503,67 @@ public class OrderedTransformations {
 			     y <= ymax;
 			     y += (1 + skipPixelsInTemplate) ) {
 				
-				for( int x = xmin;
-				     x <= xmax;
-				     x += (1 + skipPixelsInTemplate) ) {
+				int spanCount = 1;
+				if( mask == null ) {
+					spans[0] = xmin;
+					spans[1] = xmax;
+				} else
+					spanCount = mask.getSpans( y, z, xmin, xmax, spans );
+				
+				for( int s = 0; s < 2 * spanCount; s += 2 ) {
+				
+					// Stay on the grid of the skipped pixels:
+					int xfirst = xmin + ( ( spans[s] - xmin + skipPixelsInTemplate ) /
+							      ( 1 + skipPixelsInTemplate ) ) * ( 1 + skipPixelsInTemplate );
+				
+					// Transform the whole span at once:
+					int count = 0;
+					for( int x = xfirst;
+					     x <= spans[s+1];
+					     x += (1 + skipPixelsInTemplate) ) {
+						xs[count] = x;
+						ys[count] = y;
+						zs[count] = z;
+						++count;
+					}
+					invertedTransform.apply( xs, ys, zs, count );
+				
+					for( int n = 0; n < count; ++n ) {
 					
-					invertedTransform.apply( x, y, z, transformedPoint );
+						int x = xfirst + n * (1 + skipPixelsInTemplate);
 					
-					x_in_domain = ((int)transformedPoint[0]);
-					y_in_domain = ((int)transformedPoint[1]);
-					z_in_domain = ((int)transformedPoint[2]);
+						x_in_domain = ((int)xs[n]);
+						y_in_domain = ((int)ys[n]);
+						z_in_domain = ((int)zs[n]);
 					
-					int value_in_template = (int)( 0xFF & templatePixels[ x + y * w0 ] );
-					if( value_in_template < threshold0.value )
-						value_in_template = 0;
+						int value_in_template = (int)( 0xFF & templatePixels[ x + y * w0 ] );
+						if( value_in_template < threshold0.value )
+							value_in_template = 0;
 					
-					int value_in_domain;
+						int value_in_domain;
 					
-					if( ( x_in_domain >= 0 ) && ( x_in_domain < w1 ) &&
-					    ( y_in_domain >= 0 ) && ( y_in_domain < h1 ) &&
-					    ( z_in_domain >= 0 ) && ( z_in_domain < d1 ) ) {
+						if( ( x_in_domain >= 0 ) && ( x_in_domain < w1 ) &&
+						    ( y_in_domain >= 0 ) && ( y_in_domain < h1 ) &&
+						    ( z_in_domain >= 0 ) && ( z_in_domain < d1 ) ) {
 						
-						byte [] domainPixels = (byte[])stack1.getPixels( z_in_domain + 1 );
+							byte [] domainPixels = (byte[])stack1.getPixels( z_in_domain + 1 );
 						
-						value_in_domain = (int)( 0xFF & domainPixels[ x_in_domain + y_in_domain * w1 ] );
+							value_in_domain = (int)( 0xFF & domainPixels[ x_in_domain + y_in_domain * w1 ] );
 						
-						if( value_in_domain < threshold1.value )
-							value_in_domain = 0;
+							if( value_in_domain < threshold1.value )
+								value_in_domain = 0;
 						
-					} else {
+						} else {
 						
-						value_in_domain = 0;
+							value_in_domain = 0;
 						
-					}
+						}
 					
-					int difference = value_in_domain - value_in_template;
-					sumSquaredDifferences += (long)( difference * difference );
-					numberOfPixelsConsidered += 1;
+						int difference = value_in_domain - value_in_template;
+						sumSquaredDifferences += (long)( difference * difference );
+						numberOfPixelsConsidered += 1;
 					
+					}
 				}
 			}
 		}
@@ -523,25 +611,42 @@ public class OrderedTransformations {
 					     int zmax,
 					     boolean overlay ) {
 		
-		System.out.println("      createNewImageReal called with overlay: "+overlay);
-		System.out.println("                                      image0: "+image0);
-		System.out.println("                                      image1: "+image1);
-		System.out.println("                                        xmin: "+xmin);
-		System.out.println("                                        xmax: "+xmax);
-		System.out.println("                                        ymin: "+ymin);
-		System.out.println("                                        ymax: "+ymax);
-		System.out.println("                                        zmin: "+zmin);
-		System.out.println("                                        zmax: "+zmax);
-		
-		int widthNew = (xmax - xmin) + 1;
-		int heightNew = (ymax - ymin) + 1;
-		int depthNew = (zmax - zmin) + 1;
+		ImagePlus [] result = createNewImagesReal( image0,
+							   new ImagePlus[] { image1 },
+							   xmin, xmax,
+							   ymin, ymax,
+							   zmin, zmax,
+							   overlay );
+		return result == null ? null : result[0];
+	}
+	
+	/* Like createNewImageReal(), but for several "domain" images
+	   at once (e.g. the channels of one brain), which must all
+	   have the same dimensions: the transformation of each voxel
+	   is only calculated once.  The slices are created
+	   concurrently. */
+	
+	public ImagePlus [] createNewImagesReal( ImagePlus image0, // the "template", may be null
+						 ImagePlus [] images1, // the "domains", must be supplied
+						 // The parameters below refer
+						 // to ranges in the template...
+						 final int xmin,
+						 int xmax, // inclusive (the last value)
+						 final int ymin,
+						 int ymax, // inclusive (the last value)
+						 final int zmin,
+						 int zmax,
+						 final boolean overlay ) {
+		
+		final int widthNew = (xmax - xmin) + 1;
+		final int heightNew = (ymax - ymin) + 1;
+		final int depthNew = (zmax - zmin) + 1;
 		
 		assert( xmax >= xmin );
 		assert( ymax >= ymin );
 		assert( zmax >= zmin );
 		
-		assert( image1 != null );
+		assert( images1 != null && images1.length > 0 );
 		
 		int width0 = -1;
 		int height0 = -1;
@@ -554,11 +659,11 @@ public class OrderedTransformations {
 			stack0=image0.getStack();
 			depth0 = stack0.getSize();
 		}
-		ImageStack stack1=image1.getStack();
+		final ImageStack stack1=images1[0].getStack();
 		
-		int width1=stack1.getWidth();
-		int height1=stack1.getHeight();
-		int depth1=stack1.getSize();
+		final int width1=stack1.getWidth();
+		final int height1=stack1.getHeight();
+		final int depth1=stack1.getSize();
 		
 		assert( (image0 != null) || (!overlay) );
 		
@@ -568,133 +673,175 @@ public class OrderedTransformations {
 			return null;
 		}
 		
-		if( image1.getType() != ImagePlus.GRAY8 ) {
-			IJ.error("OrderedTransformations.createNewImageReal() can only"+
-				 "be used on 8 bit image, at the moment.");
-			return null;
-		}
-		
-		ImageStack newStack=new ImageStack(widthNew,heightNew);
-		
-		int x, y, z;
+		final int channels = images1.length;
 		
-		int x_in_domain;
-		int y_in_domain;
-		int z_in_domain;
+		for( int c = 0; c < channels; ++c ) {
+			if( images1[c].getType() != ImagePlus.GRAY8 ) {
+				IJ.error("OrderedTransformations.createNewImageReal() can only"+
+					 "be used on 8 bit image, at the moment.");
+				return null;
+			}
+			ImageStack stack = images1[c].getStack();
+			if( stack.getWidth() != width1 ||
+			    stack.getHeight() != height1 ||
+			    stack.getSize() != depth1 )
+				throw new RuntimeException( "The images to transform must all have the same dimensions" );
+		}
 		
-		int x_in_template;
-		int y_in_template;
-		int z_in_template;
+		final byte [][][] image1_data = new byte[channels][depth1][];
+		for( int c = 0; c < channels; ++c ) {
+			ImageStack stack = images1[c].getStack();
+			for( int z = 0; z < depth1; ++z )
+				image1_data[c][z] = (byte[])stack.getPixels( z + 1 );
+		}
+		// System.out.println("      Finished caching source data...");
 		
-		boolean cacheImage=true;
+		final CompiledTransformations invertedTransform = inverse().compile();
 		
-		byte [][] image1_data=null;
-		if (cacheImage) {
-			image1_data=new byte[depth1][];
-			for( z = 0; z < depth1; ++z )
-				image1_data[z] = (byte[])stack1.getPixels( z + 1 );
-			// System.out.println("      Finished caching source data...");
-		}
+		final ImageStack templateStack = stack0;
+		final int templateWidth = width0;
+		final int templateHeight = height0;
+		final int templateDepth = depth0;
+		final ImagePlus template = image0;
 		
-		OrderedTransformations invertedTransform = inverse();
+		final byte [][][] greenSlices = new byte[channels][depthNew][];
+		final byte [][] magentaSlices = new byte[depthNew][];
+		final int [] slicesDone = new int[1];
 		
-		for( z = 0; z < depthNew; ++z ) {
-			
-			// System.out.println("      Creating slice: "+z);
-			
-			z_in_template = z + zmin;
-			
-			byte [] greenPixels = new byte[ widthNew * heightNew ];
-			byte [] magentaPixels = null;
-			byte [] magentaPixelsExpanded = null;
-			if( overlay ) {
-				magentaPixelsExpanded = new byte[ widthNew * heightNew ];
-				if( (z_in_template >= 0) && (z_in_template < stack0.getSize()) )
-					magentaPixels=(byte [])stack0.getPixels( z_in_template + 1 );
-				else
-					magentaPixels=new byte[image0.getWidth()*image0.getHeight()];
-			}
-			
-			double [] transformedPoint = new double[3];
-			
-			for( y = 0; y < heightNew; ++y )
-				for( x = 0; x < widthNew; ++x ) {
-					
-					y_in_template = y + ymin;
-					x_in_template = x + xmin;
+		Parallel.forEach( depthNew, threads, new Parallel.Loop() {
+			public void run( int z ) {
+				
+				// System.out.println("      Creating slice: "+z);
+				
+				int z_in_template = z + zmin;
+				
+				byte [][] greenPixels = new byte[channels][];
+				for( int c = 0; c < channels; ++c )
+					greenPixels[c] = new byte[ widthNew * heightNew ];
+				byte [] magentaPixels = null;
+				byte [] magentaPixelsExpanded = null;
+				if( overlay ) {
+					magentaPixelsExpanded = new byte[ widthNew * heightNew ];
+					if( (z_in_template >= 0) && (z_in_template < templateStack.getSize()) )
+						magentaPixels=(byte [])templateStack.getPixels( z_in_template + 1 );
+					else
+						magentaPixels=new byte[template.getWidth()*template.getHeight()];
+				}
+				
+				double [] xs = new double[ widthNew ];
+				double [] ys = new double[ widthNew ];
+				double [] zs = new double[ widthNew ];
+				
+				for( int y = 0; y < heightNew; ++y ) {
 					
-					invertedTransform.apply( x_in_template,
-								 y_in_template,
-								 z_in_template,
-								 transformedPoint );
+					int y_in_template = y + ymin;
 					
-					x_in_domain = ((int)transformedPoint[0]);
-					y_in_domain = ((int)transformedPoint[1]);
-					z_in_domain = ((int)transformedPoint[2]);
+					// Transform the whole scanline at once:
+					for( int x = 0; x < widthNew; ++x ) {
+						xs[x] = x + xmin;
+						ys[x] = y_in_template;
+						zs[x] = z_in_template;
+					}
+					invertedTransform.apply( xs, ys, zs, widthNew );
 					
-					if( ( x_in_domain >= 0 ) && ( x_in_domain < width1 ) &&
-					    ( y_in_domain >= 0 ) && ( y_in_domain < height1 ) &&
-					    ( z_in_domain >= 0 ) && ( z_in_domain < depth1 ) ) {
+					for( int x = 0; x < widthNew; ++x ) {
 						
+						int x_in_template = x + xmin;
 						
-						if (cacheImage) {
-							greenPixels[ x + y * widthNew ]=
-								image1_data[z_in_domain][ x_in_domain + y_in_domain * width1 ];
-						} else {
-							byte[] pixels=(byte[])stack1.getPixels( z_in_domain + 1 );
-							greenPixels[ x + y * widthNew ] =
-								pixels[ x_in_domain + y_in_domain * width1 ];
-						}
-						
-					}
-					
-					if( ( z_in_template >= 0 ) && ( z_in_template < depth0 ) &&
-					    ( x_in_template >= 0 ) && ( x_in_template < width0 ) &&
-					    ( y_in_template >= 0 ) && ( y_in_template < height0 ) ) {
+						int x_in_domain = ((int)xs[x]);
+						int y_in_domain = ((int)ys[x]);
+						int z_in_domain = ((int)zs[x]);
 						
-						magentaPixelsExpanded[ x + y * widthNew ] =
-							magentaPixels[ x_in_template + y_in_template * width0 ];
+						if( ( x_in_domain >= 0 ) && ( x_in_domain < width1 ) &&
+						    ( y_in_domain >= 0 ) && ( y_in_domain < height1 ) &&
+						    ( z_in_domain >= 0 ) && ( z_in_domain < depth1 ) ) {
+							
+							// Sample every channel at the same point:
+							int index = x_in_domain + y_in_domain * width1;
+							for( int c = 0; c < channels; ++c )
+								greenPixels[c][ x + y * widthNew ] =
+									image1_data[c][z_in_domain][index];
+							
+						}
 						
+						if( overlay &&
+						    ( z_in_template >= 0 ) && ( z_in_template < templateDepth ) &&
+						    ( x_in_template >= 0 ) && ( x_in_template < templateWidth ) &&
+						    ( y_in_template >= 0 ) && ( y_in_template < templateHeight ) ) {
+							
+							magentaPixelsExpanded[ x + y * widthNew ] =
+								magentaPixels[ x_in_template + y_in_template * templateWidth ];
+							
+						}
 					}
-					
-					
-					IJ.showProgress( (double) (z + 1) / depthNew );
 				}
-			
-			if( overlay ) {
-				ColorProcessor cp = new ColorProcessor( widthNew, heightNew );
-				cp.setRGB( magentaPixelsExpanded, greenPixels, magentaPixelsExpanded );
-				newStack.addSlice( null, cp );
-			} else {
-				ByteProcessor bp = new ByteProcessor( widthNew, heightNew );
-				bp.setPixels( greenPixels );
-				newStack.addSlice( null, bp );
+				
+				for( int c = 0; c < channels; ++c )
+					greenSlices[c][z] = greenPixels[c];
+				magentaSlices[z] = magentaPixelsExpanded;
+				
+				synchronized( slicesDone ) {
+					IJ.showProgress( (double) (++slicesDone[0]) / depthNew );
+				}
 			}
-			
-		}
+		} );
 		
 		IJ.showProgress( 1.0 );
 		
-		ImagePlus impNew;
-		
-		if( overlay ) {
-			impNew=new ImagePlus("overlay of "+image0.getShortTitle()+
-					     " and transformed "+image1.getShortTitle(),newStack);
-		} else {
-			impNew=new ImagePlus("transformation of "+image1.getShortTitle(),newStack);
-		}
+		ImagePlus [] result = new ImagePlus[channels];
 		
-		// FIXME: more generally, should transform the calibration from image1
-		if( image0 != null ) {
-			impNew.setCalibration(image0.getCalibration());
+		for( int c = 0; c < channels; ++c ) {
+			
+			ImageStack newStack=new ImageStack(widthNew,heightNew);
+			
+			for( int z = 0; z < depthNew; ++z ) {
+				if( overlay ) {
+					ColorProcessor cp = new ColorProcessor( widthNew, heightNew );
+					cp.setRGB( magentaSlices[z], greenSlices[c][z], magentaSlices[z] );
+					newStack.addSlice( null, cp );
+				} else {
+					ByteProcessor bp = new ByteProcessor( widthNew, heightNew );
+					bp.setPixels( greenSlices[c][z] );
+					newStack.addSlice( null, bp );
+				}
+			}
+			
+			ImagePlus impNew;
+			
+			if( overlay ) {
+				impNew=new ImagePlus("overlay of "+image0.getShortTitle()+
+						     " and transformed "+images1[c].getShortTitle(),newStack);
+			} else {
+				impNew=new ImagePlus("transformation of "+images1[c].getShortTitle(),newStack);
+			}
+			
+			// FIXME: more generally, should transform the calibration from image1
+			if( image0 != null ) {
+				impNew.setCalibration(image0.getCalibration());
+			}
+			
+			result[c] = impNew;
 		}
 		
-		return impNew;
+		return result;
 		
 	}
 	
 	public ImagePlus createNewImage( ImagePlus image0, ImagePlus image1, boolean cropToTemplate ) {
 		
+		ImagePlus [] result = createNewImages( image0,
+						       new ImagePlus[] { image1 },
+						       cropToTemplate );
+		return result == null ? null : result[0];
+	}
+	
+	/* Like createNewImage(), but for several images with the same
+	   dimensions (see createNewImagesReal()). */
+	
+	public ImagePlus [] createNewImages( ImagePlus image0, ImagePlus [] images1, boolean cropToTemplate ) {
+		
+		ImagePlus image1 = images1[0];
+		
 		int width0 = image0.getWidth();
 		int width1 = image1.getWidth();
 		int height0 = image0.getHeight();
@@ -704,14 +851,14 @@ public class OrderedTransformations {
 		
 		if( cropToTemplate ) {
 			
-			return createNewImageReal( image0, image1,
-						   0,
-						   width0 - 1,
-						   0,
-						   height0 - 1,
-						   0,
-						   depth0 - 1,
-						   true );
+			return createNewImagesReal( image0, images1,
+						    0,
+						    width0 - 1,
+						    0,
+						    height0 - 1,
+						    0,
+						    depth0 - 1,
+						    true );
 			
 		} else {
 			
@@ -842,17 +989,17 @@ public class OrderedTransformations {
 			int heightNew = Math.max( height0, new_max_y_1 + 1 ) - Math.min( 0, new_min_y_1 );
 			int depthNew = Math.max( depth0, new_max_z_1 + 1 ) - Math.min( 0, new_min_z_1 );
 			
-			return createNewImageReal( image0, // the "template", may be null
-						   image1, // the "domain", must be supplied
-						   // The parameters below refer
-						   // to ranges in the template...
-						   -target_offset_x,
-						   widthNew-target_offset_x, // inclusive (the last value)
-						   -target_offset_y,
-						   heightNew-target_offset_y, // inclusive (the last value)
-						   -target_offset_z,
-						   depthNew-target_offset_z,
-						   true );
+			return createNewImagesReal( image0, // the "template", may be null
+						    images1, // the "domains", must be supplied
+						    // The parameters below refer
+						    // to ranges in the template...
+						    -target_offset_x,
+						    widthNew-target_offset_x, // inclusive (the last value)
+						    -target_offset_y,
+						    heightNew-target_offset_y, // inclusive (the last value)
+						    -target_offset_z,
+						    depthNew-target_offset_z,
+						    true );
 		}
 	}
 	
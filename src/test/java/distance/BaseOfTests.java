@@ -88,6 +88,44 @@ public class BaseOfTests {
 			for(int j=0;j<256;++j)
 				measure.add(i,j);
 	}
+
+	/* Pairs whose second value depends linearly on two parameters */
+
+	public void addLinearPairs(PixelPairsWithGradient measure,
+			double[] parameters) {
+		measure.reset(2);
+		double[] derivatives = new double[2];
+		for(int i=0;i<400;++i) {
+			float v1 = (i * 37) % 101;
+			derivatives[0] = (i % 13) - 6;
+			derivatives[1] = 0.5 * v1 - 20;
+			float v2 = (float)(0.8 * v1 + (i * 53) % 29
+				+ parameters[0] * derivatives[0]
+				+ parameters[1] * derivatives[1]);
+			measure.add(v1, v2, derivatives);
+		}
+	}
+
+	/* Compare the gradient with central differences */
+
+	public void checkGradient(PixelPairsWithGradient measure,
+			double[] parameters, double delta) {
+		double[] gradient = new double[2];
+		addLinearPairs(measure, parameters);
+		measure.getGradient(gradient);
+		for(int i=0;i<2;++i) {
+			double h = 0.01;
+			double[] p = (double[])parameters.clone();
+			p[i] += h;
+			addLinearPairs(measure, p);
+			double plus = measure.distance();
+			p[i] -= 2 * h;
+			addLinearPairs(measure, p);
+			double minus = measure.distance();
+			org.junit.Assert.assertEquals((plus - minus) / (2 * h),
+				gradient[i], delta);
+		}
+	}
 }
 
 
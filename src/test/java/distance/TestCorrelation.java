@@ -45,4 +45,10 @@ public class TestCorrelation extends BaseOfTests {
 
 	}
 
+	@Test
+	public void testGradient() {
+		checkGradient(new Correlation(), new double[] { 0.3, -0.2 },
+			0.0001);
+	}
+
 }
@@ -21,4 +21,10 @@ public class TestEuclidean extends BaseOfTests {
 		float distance = e.distance();
 		assertEquals(1.82002747232013,distance,0.0000001);
 	}
+
+	@Test
+	public void testGradient() {
+		checkGradient(new Euclidean(), new double[] { 0.3, -0.2 },
+			0.001);
+	}
 }
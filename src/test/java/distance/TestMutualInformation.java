@@ -76,4 +76,57 @@ public class TestMutualInformation extends BaseOfTests {
 
 		assertEquals( 0, mi, 0.0000001 );
 	}
+
+	@Test
+	public void testMerge() {
+
+		/* Adding half of the pairs to a duplicate and merging
+		   must give exactly the same joint histogram. */
+
+		exampleMeasure = new MutualInformation( 1, 4, 4 );
+		exampleMeasure.reset();
+		addMacKayExample(exampleMeasure);
+		float expected = exampleMeasure.mutualInformation();
+
+		MutualInformation first = new MutualInformation( 1, 4, 4 );
+		first.reset();
+		MutualInformation second =
+			(MutualInformation)first.duplicate();
+		addMacKayExample(first);
+		addMacKayExample(second);
+		first.merge(second);
+
+		for( int i = 0; i < 4 * 4; ++i )
+			assertEquals( 2 * exampleMeasure.joint[i],
+				      first.joint[i] );
+
+		assertEquals( expected, first.mutualInformation(), 0 );
+	}
+
+	@Test
+	public void testBinLookup() {
+
+		/* The bins looked up in the tables must be exactly
+		   those computed with the division, also for the
+		   values right at the bin boundaries. */
+
+		float[][] ranges = { { 0, 255, 256 }, { 1, 4, 4 },
+				     { -300, 4095, 64 }, { 0.5f, 99.25f, 37 } };
+		for( float[] range : ranges ) {
+			MutualInformation m = new MutualInformation(
+				range[0], range[1], (int)range[2] );
+			float step = (range[1] - range[0]) / 5000;
+			for( float v = range[0]; v <= range[1] + 10; v += step ) {
+				assertEquals( m.binExact(v), m.bin(v) );
+				float up = Math.nextUp(v);
+				assertEquals( m.binExact(up), m.bin(up) );
+			}
+			for( int b = 0; b <= range[2]; ++b ) {
+				float v = range[0] + b * (range[1] - range[0]) / range[2];
+				for( float w : new float[] { Math.nextDown(v), v, Math.nextUp(v) } )
+					if( w >= range[0] )
+						assertEquals( m.binExact(w), m.bin(w) );
+			}
+		}
+	}
 }
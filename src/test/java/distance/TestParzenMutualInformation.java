@@ -0,0 +1,37 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Some very basic unit tests for the distance.ParzenMutualInformation class */
+
+package distance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestParzenMutualInformation extends BaseOfTests {
+
+	@Test
+	public void testIdentical() {
+		/* Identical images share more information than unrelated ones */
+		ParzenMutualInformation measure =
+			new ParzenMutualInformation(0, 255, 32);
+		measure.reset();
+		for(int i=0;i<256;++i)
+			measure.add(i, i);
+		float identical = measure.mutualInformation();
+
+		measure.reset();
+		addUniform8Bit(measure);
+		float uniform = measure.mutualInformation();
+
+		assertTrue(identical > 1);
+		assertEquals(0, uniform, 0.001);
+	}
+
+	@Test
+	public void testGradient() {
+		checkGradient(new ParzenMutualInformation(0, 150, 16),
+			new double[] { 0.3, -0.2 }, 0.001);
+	}
+}
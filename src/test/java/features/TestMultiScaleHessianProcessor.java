@@ -0,0 +1,127 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.Test;
+
+/* Check the multi-scale measure against the single-scale processor */
+
+public class TestMultiScaleHessianProcessor {
+
+	/* dark tubes of different widths along the x axis */
+	static ImagePlus tubes(int w, int h, int d) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			float[] pixels = new float[w * h];
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++) {
+					double value = 200;
+					for (int t = 0; t < 3; t++) {
+						double r = 1 + t;
+						double y = j - (t + 1) * h / 4.0;
+						double z = d == 1 ? 0 : k - d / 2.0;
+						value -= 150 * Math.exp(-(y * y
+							+ z * z) / (2 * r * r));
+					}
+					pixels[i + w * j] = (float)(value
+						+ 10 * Math.sin(i * 0.7));
+				}
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus("tubes", stack);
+	}
+
+	static float[] pixels(ImagePlus image, int z) {
+		return (float[])image.getStack().getPixels(z + 1);
+	}
+
+	static void assertSingleScale(ImagePlus image, double sigma) {
+		ImagePlus expect = new TubenessProcessor(sigma, false)
+			.generateImage(image);
+		ImagePlus actual = new MultiScaleHessianProcessor(
+			new TubenessProcessor(false), new double[] { sigma })
+			.generateImage(image);
+		assertEquals(expect.getStackSize(), actual.getStackSize());
+		for (int z = 0; z < expect.getStackSize(); z++) {
+			float[] e = pixels(expect, z), a = pixels(actual, z);
+			for (int i = 0; i < e.length; i++)
+				assertEquals("slice " + z + ", pixel " + i,
+					e[i], a[i], 0);
+		}
+	}
+
+	@Test
+	public void testSingleScale() {
+		assertSingleScale(tubes(24, 32, 1), 1.5);
+		assertSingleScale(tubes(24, 32, 12), 1.5);
+	}
+
+	/* the incremental Gaussians only differ by the truncated kernels
+	   and the mirrored edges, so compare away from the edges */
+	@Test
+	public void testMaximum() {
+		int w = 24, h = 32, d = 16, margin = 6;
+		ImagePlus image = tubes(w, h, d);
+		double[] sigmas = { 2, 1, 1.5 };
+		ImagePlus[] result = new MultiScaleHessianProcessor(
+			new TubenessProcessor(false), sigmas)
+			.generateImages(image, true);
+
+		float[][] expect = new float[d][w * h];
+		float[][] best = new float[d][w * h];
+		float max = 0;
+		// ascending, as the processor does it
+		for (double sigma : new double[] { 1, 1.5, 2 }) {
+			ImagePlus single = new TubenessProcessor(sigma, false)
+				.generateImage(image);
+			for (int z = 0; z < d; z++) {
+				float[] p = pixels(single, z);
+				for (int i = 0; i < p.length; i++) {
+					if (sigma == 1 || p[i] > expect[z][i]) {
+						expect[z][i] = p[i];
+						best[z][i] = (float)sigma;
+					}
+					max = Math.max(max, p[i]);
+				}
+			}
+		}
+		assertTrue(max > 0);
+
+		int count = 0, bestCount = 0;
+		for (int z = margin; z < d - margin; z++) {
+			float[] actual = pixels(result[0], z);
+			float[] sigma = pixels(result[1], z);
+			for (int y = margin; y < h - margin; y++)
+				for (int x = margin; x < w - margin; x++) {
+					int i = x + w * y;
+					assertEquals("voxel " + x + ", " + y
+						+ ", " + z, expect[z][i],
+						actual[i], 0.02 * max);
+					count++;
+					if (sigma[i] == best[z][i])
+						bestCount++;
+				}
+		}
+		// where the maxima are close, another sigma may win
+		assertTrue(bestCount > 0.9 * count);
+	}
+
+	@Test
+	public void testDuplicateSigmas() {
+		try {
+			new MultiScaleHessianProcessor(
+				new TubenessProcessor(false),
+				new double[] { 1, 2, 1 });
+			fail("duplicate sigmas must be rejected");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+}
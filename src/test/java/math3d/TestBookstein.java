@@ -0,0 +1,68 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package math3d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestBookstein {
+
+	@Test
+	public void testLUSolve() {
+		// larger than one panel, to exercise the blocked update
+		int n = 150;
+		Random random = new Random(7);
+		double[][] a = new double[n][n];
+		double[] x = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextDouble();
+			for (int j = 0; j < n; j++)
+				a[i][j] = random.nextDouble() - 0.5;
+		}
+		double[] b = FastMatrixN.apply(a, x);
+		int[] permutation = FastMatrixN.luDecomposition(a);
+		double[] solution = FastMatrixN.luSolve(a, permutation, b);
+		for (int i = 0; i < n; i++)
+			assertEquals(x[i], solution[i], 1e-9);
+	}
+
+	@Test
+	public void testLandmarks() {
+		Random random = new Random(3);
+		int n = 100;
+		Point3d[] orig = new Point3d[n], trans = new Point3d[n];
+		for (int i = 0; i < n; i++) {
+			orig[i] = new Point3d(random.nextDouble() * 100,
+					random.nextDouble() * 100,
+					random.nextDouble() * 50);
+			trans[i] = new Point3d(orig[i].y + random.nextDouble(),
+					orig[i].x + random.nextDouble(),
+					orig[i].z * 2 + random.nextDouble());
+		}
+
+		// the exact transform maps the landmarks onto each other
+		Bookstein bookstein = new Bookstein(orig, trans);
+		for (int i = 0; i < n; i++) {
+			bookstein.apply(orig[i]);
+			assertEquals(trans[i].x, bookstein.x, 1e-6);
+			assertEquals(trans[i].y, bookstein.y, 1e-6);
+			assertEquals(trans[i].z, bookstein.z, 1e-6);
+		}
+
+		/*
+		 * the smoothed one is close to the affine part (the
+		 * landmarks are displaced by less than 1 from it)
+		 */
+		Bookstein smoothed = new Bookstein(orig, trans, 1e6);
+		double max = 0;
+		for (int i = 0; i < n; i++) {
+			smoothed.apply(orig[i]);
+			max = Math.max(max, Math.abs(trans[i].x - smoothed.x));
+		}
+		assertTrue(max > 1e-3 && max < 1);
+	}
+}
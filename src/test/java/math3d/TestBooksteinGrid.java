@@ -0,0 +1,95 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package math3d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/* Check the interpolated Bookstein transform against the exact one */
+
+public class TestBooksteinGrid {
+
+	static Bookstein random(int count, long seed) {
+		Random random = new Random(seed);
+		Point3d[] orig = new Point3d[count];
+		Point3d[] trans = new Point3d[count];
+		for (int i = 0; i < count; i++) {
+			orig[i] = new Point3d(random.nextDouble() * 40,
+					random.nextDouble() * 30,
+					random.nextDouble() * 20);
+			trans[i] = new Point3d(orig[i].x + random.nextDouble(),
+					orig[i].y + random.nextDouble(),
+					orig[i].z + random.nextDouble());
+		}
+		return new Bookstein(orig, trans);
+	}
+
+	@Test
+	public void testGrid() {
+		Bookstein bookstein = random(12, 1);
+		double maxError = 0.2;
+		BooksteinGrid grid = new BooksteinGrid(bookstein,
+				41, 31, 11, 1, 1, 2, 4, maxError);
+		assertTrue(grid.getStep() > 1);
+		assertTrue(grid.getError() <= maxError);
+
+		double[] exact = new double[3], approx = new double[3];
+		for (int k = 0; k < 11; k++)
+			for (int j = 0; j < 31; j++)
+				for (int i = 0; i < 41; i++) {
+					bookstein.apply(i, j, 2 * k, exact);
+					grid.apply(i, j, k, approx);
+					double tolerance = i % grid.getStep()
+						== 0 && j % grid.getStep() == 0
+						&& k % grid.getStep() == 0 ?
+						1e-9 : 2 * maxError;
+					for (int c = 0; c < 3; c++)
+						assertEquals(exact[c], approx[c],
+							tolerance);
+				}
+	}
+
+	/* the error is bounded at the cell centers, face centers and edges */
+	@Test
+	public void testHalfSteps() {
+		Bookstein bookstein = random(12, 3);
+		double maxError = 0.5;
+		BooksteinGrid grid = new BooksteinGrid(bookstein,
+				41, 31, 21, 1, 1, 1, 8, maxError);
+		int half = grid.getStep() / 2;
+		assertTrue(half > 0);
+
+		double[] exact = new double[3], approx = new double[3];
+		for (int k = 0; k < 21; k += half)
+			for (int j = 0; j < 31; j += half)
+				for (int i = 0; i < 41; i += half) {
+					bookstein.apply(i, j, k, exact);
+					grid.apply(i, j, k, approx);
+					double dx = exact[0] - approx[0];
+					double dy = exact[1] - approx[1];
+					double dz = exact[2] - approx[2];
+					assertTrue(Math.sqrt(dx * dx + dy * dy
+						+ dz * dz) <= maxError);
+				}
+	}
+
+	@Test
+	public void testExact() {
+		Bookstein bookstein = random(12, 2);
+		BooksteinGrid grid = new BooksteinGrid(bookstein,
+				9, 9, 9, 1, 1, 1, 4, 0);
+		assertEquals(1, grid.getStep());
+
+		Point3d p = new Point3d(3, 5, 7);
+		double[] result = new double[3];
+		grid.apply(3, 5, 7, result);
+		bookstein.apply(p);
+		assertEquals(bookstein.x, result[0], 0);
+		assertEquals(bookstein.y, result[1], 0);
+		assertEquals(bookstein.z, result[2], 0);
+	}
+}
@@ -427,6 +427,145 @@ public class TestEigenvalueDecompositions {
 		if (printTimings) System.out.println("testRootFinding: "+(System.currentTimeMillis()-startTime)/1000.0);
 	}
 
+	/* Checks that A v = e v for the i-th batch result, and that the
+	   eigenvectors are orthonormal */
+
+	static void checkEvectors( double [][] m, double [] e, double [] vectors, int i, double delta ) {
+		for( int k = 0; k < 3; ++k ) {
+			for( int row = 0; row < 3; ++row ) {
+				double product = 0;
+				for( int c = 0; c < 3; ++c )
+					product += m[row][c] * vectors[9 * i + 3 * k + c];
+				assertEquals( e[k] * vectors[9 * i + 3 * k + row], product, delta );
+			}
+			for( int l = 0; l < 3; ++l ) {
+				double dot = 0;
+				for( int c = 0; c < 3; ++c )
+					dot += vectors[9 * i + 3 * k + c] * vectors[9 * i + 3 * l + c];
+				assertEquals( k == l ? 1 : 0, dot, delta );
+			}
+		}
+	}
+
+	@Test
+	public void test3x3BatchDouble() {
+
+		long startTime = System.currentTimeMillis();
+
+		int n = realSymmetricTestCases3x3Double.size();
+		// leave a gap in front, to test the offset
+		int offset = 3;
+		double [] xx = new double[offset + n], xy = new double[offset + n], xz = new double[offset + n];
+		double [] yy = new double[offset + n], yz = new double[offset + n], zz = new double[offset + n];
+		for( int i = 0; i < n; ++i ) {
+			double [][] m = realSymmetricTestCases3x3Double.get(i).m;
+			xx[offset + i] = m[0][0]; xy[offset + i] = m[0][1]; xz[offset + i] = m[0][2];
+			yy[offset + i] = m[1][1]; yz[offset + i] = m[1][2]; zz[offset + i] = m[2][2];
+		}
+
+		double [] e0 = new double[offset + n], e1 = new double[offset + n], e2 = new double[offset + n];
+		double [] vectors = new double[9 * (offset + n)];
+		Eigensystem3x3Double.findEvaluesBatch( xx, xy, xz, yy, yz, zz, offset, n, false,
+						       e0, e1, e2, vectors );
+
+		for( int i = 0; i < n; ++i ) {
+			TestMatrixAndResultDouble mr = realSymmetricTestCases3x3Double.get(i);
+			double [] e = { e0[offset + i], e1[offset + i], e2[offset + i] };
+			assertTrue( e[0] <= e[1] && e[1] <= e[2] );
+			mr.checkEvalues(e);
+			checkEvectors( mr.m, e, vectors, offset + i, 1e-9 );
+		}
+
+		// Without the eigenvectors, the eigenvalues must be the same
+		// (up to rounding, as repeated ones skip the fallback then)
+		double [] f0 = new double[offset + n], f1 = new double[offset + n], f2 = new double[offset + n];
+		Eigensystem3x3Double.findEvaluesBatch( xx, xy, xz, yy, yz, zz, offset, n, false,
+						       f0, f1, f2, null );
+		for( int i = offset; i < offset + n; ++i ) {
+			assertEquals( e0[i], f0[i], 1e-12 );
+			assertEquals( e1[i], f1[i], 1e-12 );
+			assertEquals( e2[i], f2[i], 1e-12 );
+		}
+
+		if (printTimings) System.out.println("testBatch: "+(System.currentTimeMillis()-startTime)/1000.0);
+	}
+
+	@Test
+	public void test3x3BatchFloat() {
+
+		long startTime = System.currentTimeMillis();
+
+		int n = realSymmetricTestCases3x3Float.size();
+		float [] xx = new float[n], xy = new float[n], xz = new float[n];
+		float [] yy = new float[n], yz = new float[n], zz = new float[n];
+		for( int i = 0; i < n; ++i ) {
+			float [][] m = realSymmetricTestCases3x3Float.get(i).m;
+			xx[i] = m[0][0]; xy[i] = m[0][1]; xz[i] = m[0][2];
+			yy[i] = m[1][1]; yz[i] = m[1][2]; zz[i] = m[2][2];
+		}
+
+		float [] e0 = new float[n], e1 = new float[n], e2 = new float[n];
+		float [] vectors = new float[9 * n];
+		Eigensystem3x3Float.findEvaluesBatch( xx, xy, xz, yy, yz, zz, 0, n, false,
+						      e0, e1, e2, vectors );
+
+		double [] dvectors = new double[9 * n];
+		for( int i = 0; i < 9 * n; ++i )
+			dvectors[i] = vectors[i];
+		for( int i = 0; i < n; ++i ) {
+			TestMatrixAndResultFloat mr = realSymmetricTestCases3x3Float.get(i);
+			mr.checkEvalues(new float [] { e0[i], e1[i], e2[i] });
+			double [][] m = new double[3][3];
+			for( int d = 0; d < 9; ++d )
+				m[d/3][d%3] = mr.m[d/3][d%3];
+			checkEvectors( m, new double [] { e0[i], e1[i], e2[i] }, dvectors, i, 1e-5 );
+		}
+
+		if (printTimings) System.out.println("testBatch: "+(System.currentTimeMillis()-startTime)/1000.0);
+	}
+
+	@Test
+	public void test3x3BatchIllConditioned() {
+
+		// a multiple of the identity, one almost like it, a repeated
+		// eigenvalue and one that needs the absolute ordering
+		double [][][] matrices = {
+			{ { 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 2 } },
+			{ { 1, 1e-9, 0 }, { 1e-9, 1, 2e-9 }, { 0, 2e-9, 1 } },
+			{ { 3, 0, 0 }, { 0, 5, 0 }, { 0, 0, 5 } },
+			{ { 4, 1, 1 }, { 1, 4, 1 }, { 1, 1, 4 } },
+			{ { -3, 0, 0 }, { 0, 1, 0 }, { 0, 0, 2 } }
+		};
+		int n = matrices.length;
+		double [] xx = new double[n], xy = new double[n], xz = new double[n];
+		double [] yy = new double[n], yz = new double[n], zz = new double[n];
+		for( int i = 0; i < n; ++i ) {
+			xx[i] = matrices[i][0][0]; xy[i] = matrices[i][0][1]; xz[i] = matrices[i][0][2];
+			yy[i] = matrices[i][1][1]; yz[i] = matrices[i][1][2]; zz[i] = matrices[i][2][2];
+		}
+
+		double [] e0 = new double[n], e1 = new double[n], e2 = new double[n];
+		double [] vectors = new double[9 * n];
+		int fallbacks = Eigensystem3x3Double.findEvaluesBatch( xx, xy, xz, yy, yz, zz, 0, n, true,
+								       e0, e1, e2, vectors );
+		// all but the identity and the last one
+		assertEquals( 3, fallbacks );
+
+		double [][] expected = {
+			{ 2, 2, 2 },
+			{ 1 - Math.sqrt(5) * 1e-9, 1, 1 + Math.sqrt(5) * 1e-9 },
+			{ 3, 5, 5 },
+			{ 3, 3, 6 },
+			{ 1, 2, -3 }
+		};
+		for( int i = 0; i < n; ++i ) {
+			double [] e = { e0[i], e1[i], e2[i] };
+			for( int k = 0; k < 3; ++k )
+				assertEquals( expected[i][k], e[k], 1e-12 );
+			checkEvectors( matrices[i], e, vectors, i, 1e-9 );
+		}
+	}
+
 	// ========================================================================
 
 	@Test
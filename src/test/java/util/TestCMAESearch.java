@@ -0,0 +1,152 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import pal.math.MultivariateFunction;
+
+import org.junit.Test;
+
+public class TestCMAESearch {
+
+	/* a quadratic with its minimum at center, scaled per coordinate */
+	static class Quadratic implements MultivariateFunction {
+		double[] center;
+		double bound;
+
+		Quadratic(double[] center, double bound) {
+			this.center = center;
+			this.bound = bound;
+		}
+
+		public double evaluate(double[] x) {
+			double sum = 0;
+			for (int i = 0; i < x.length; i++) {
+				double d = x[i] - center[i];
+				sum += (i + 1) * d * d;
+			}
+			return sum;
+		}
+
+		public int getNumArguments() {
+			return center.length;
+		}
+
+		public double getLowerBound(int n) {
+			return -bound;
+		}
+
+		public double getUpperBound(int n) {
+			return bound;
+		}
+	}
+
+	/*
+	 * The Rosenbrock function, which must not be evaluated by two
+	 * threads at the same time (it uses a scratch field), and which
+	 * remembers its best evaluation.
+	 */
+	static class Rosenbrock implements MultivariateFunction,
+			CMAESearch.Duplicable {
+		int n;
+		boolean copies;
+		int duplicates;
+		double[] scratch;
+		double[] best;
+		double min = Double.MAX_VALUE;
+
+		Rosenbrock(int n, boolean copies) {
+			this.n = n;
+			this.copies = copies;
+			scratch = new double[n];
+		}
+
+		public synchronized MultivariateFunction duplicate() {
+			if (!copies)
+				return null;
+			duplicates++;
+			return new Rosenbrock(n, false);
+		}
+
+		public double evaluate(double[] x) {
+			System.arraycopy(x, 0, scratch, 0, n);
+			double sum = 0;
+			for (int i = 0; i < n - 1; i++) {
+				double a = scratch[i + 1]
+					- scratch[i] * scratch[i];
+				double b = 1 - scratch[i];
+				sum += 100 * a * a + b * b;
+			}
+			if (sum < min) {
+				min = sum;
+				best = (double[])x.clone();
+			}
+			return sum;
+		}
+
+		public int getNumArguments() {
+			return n;
+		}
+
+		public double getLowerBound(int n) {
+			return -3;
+		}
+
+		public double getUpperBound(int n) {
+			return 3;
+		}
+	}
+
+	static double[] optimize(MultivariateFunction f, int threads) {
+		CMAESearch search = new CMAESearch();
+		search.threads = threads;
+		search.sigma = 0.5;
+		double[] x = new double[f.getNumArguments()];
+		search.optimize(f, x, 1e-12, 1e-8);
+		return x;
+	}
+
+	@Test
+	public void testQuadratic() {
+		double[] center = { 1, -2, 0.5, 3 };
+		double[] x = optimize(new Quadratic(center, 5), 4);
+		assertArrayEquals(center, x, 1e-4);
+	}
+
+	/* the candidates are clamped to the bounds */
+	@Test
+	public void testBounds() {
+		double[] center = { 7, -2, 0.5, -9 };
+		double[] x = optimize(new Quadratic(center, 5), 4);
+		assertArrayEquals(new double[] { 5, -2, 0.5, -5 }, x, 1e-4);
+	}
+
+	@Test
+	public void testRosenbrock() {
+		Rosenbrock f = new Rosenbrock(4, true);
+		double[] x = optimize(f, 4);
+		assertArrayEquals(new double[] { 1, 1, 1, 1 }, x, 1e-3);
+		// the original function saw the best vector, too
+		assertArrayEquals(x, f.best, 0);
+	}
+
+	/* the result must not depend on the number of threads */
+	@Test
+	public void testThreads() {
+		double[] center = { 1, -2, 0.5, 3 };
+		assertArrayEquals(optimize(new Quadratic(center, 5), 1),
+			optimize(new Quadratic(center, 5), 4), 0);
+
+		double[] serial = optimize(new Rosenbrock(4, true), 1);
+		Rosenbrock copied = new Rosenbrock(4, true);
+		assertArrayEquals(serial, optimize(copied, 4), 0);
+		assertTrue(copied.duplicates > 0);
+		// evaluated one at a time without copies
+		Rosenbrock shared = new Rosenbrock(4, false);
+		assertArrayEquals(serial, optimize(shared, 4), 0);
+		assertEquals(0, shared.duplicates);
+	}
+}
@@ -0,0 +1,391 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.measure.Calibration;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/* The weight tables must give exactly the coordinates of
+   transformPoint( double, ... ), and the transformed images must be
+   what the voxel-by-voxel interpolation gives; the cached inverse
+   must map back what was written */
+
+public class TestCMTKTransformation {
+
+	static final int dimsx = 6, dimsy = 5, dimsz = 7;
+	static final double domainx = 18, domainy = 12, domainz = 10;
+
+	/* the control points (i - 1) * delta give the identity, as the
+	   B-splines reproduce linear functions; the others are moved by
+	   up to jitter */
+	static CMTKTransformation grid( double jitter, long seed ) {
+		Random random = new Random( seed );
+		double deltax = domainx / (dimsx - 3);
+		double deltay = domainy / (dimsy - 3);
+		double deltaz = domainz / (dimsz - 3);
+		double [][] coeffs = new double[dimsx * dimsy * dimsz][];
+		int c = 0;
+		for( int k = 0; k < dimsz; ++k )
+			for( int j = 0; j < dimsy; ++j )
+				for( int i = 0; i < dimsx; ++i )
+					coeffs[c++] = new double[] {
+						(i - 1) * deltax + jitter * (2 * random.nextDouble() - 1),
+						(j - 1) * deltay + jitter * (2 * random.nextDouble() - 1),
+						(k - 1) * deltaz + jitter * (2 * random.nextDouble() - 1)
+					};
+		return new CMTKTransformation( dimsx, dimsy, dimsz,
+					       domainx, domainy, domainz,
+					       0, 0, 0, coeffs );
+	}
+
+	static ImagePlus image( int type, int w, int h, int d,
+				double pw, double ph, double pd, long seed ) {
+		Random random = new Random( seed );
+		ImageStack stack = new ImageStack( w, h );
+		for( int z = 0; z < d; ++z ) {
+			Object pixels;
+			if( type == ImagePlus.GRAY8 ) {
+				byte [] p = new byte[w * h];
+				random.nextBytes( p );
+				pixels = p;
+			} else if( type == ImagePlus.GRAY16 ) {
+				// above 32767, too
+				short [] p = new short[w * h];
+				for( int i = 0; i < p.length; ++i )
+					p[i] = (short)random.nextInt( 65536 );
+				pixels = p;
+			} else {
+				float [] p = new float[w * h];
+				for( int i = 0; i < p.length; ++i )
+					p[i] = (float)(1000 * random.nextGaussian());
+				pixels = p;
+			}
+			stack.addSlice( "", pixels );
+		}
+		ImagePlus image = new ImagePlus( "image", stack );
+		Calibration calibration = new Calibration();
+		calibration.pixelWidth = pw;
+		calibration.pixelHeight = ph;
+		calibration.pixelDepth = pd;
+		image.setCalibration( calibration );
+		return image;
+	}
+
+	static ImagePlus template() {
+		return image( ImagePlus.GRAY8, 12, 10, 6, 1.5, 1.25, 2, 0 );
+	}
+
+	static ImagePlus model( int type ) {
+		return image( type, 20, 16, 9, 1, 1, 1.5, 1 );
+	}
+
+	@Test
+	public void testWeightTable() {
+		CMTKTransformation t = grid( 1, 2 );
+		int w = 12, h = 10, d = 6;
+		double sx = 1.5, sy = 1.25, sz = 2;
+		CMTKTransformation.WeightTable tx = t.weightTable( w, sx, t.deltax, dimsx );
+		CMTKTransformation.WeightTable ty = t.weightTable( h, sy, t.deltay, dimsy );
+		CMTKTransformation.WeightTable tz = t.weightTable( d, sz, t.deltaz, dimsz );
+		double [] expect = new double[3], actual = new double[3];
+		for( int z = 0; z < d; ++z )
+			for( int y = 0; y < h; ++y )
+				for( int x = 0; x < w; ++x ) {
+					t.transformPoint( x * sx, y * sy, z * sz, expect );
+					t.transformPoint( x, y, z, tx, ty, tz, actual );
+					for( int c = 0; c < 3; ++c )
+						assertEquals( "voxel " + x + ", " + y + ", " + z,
+							      expect[c], actual[c], 0 );
+				}
+	}
+
+	/* the voxel-by-voxel transformation, as transform() did it
+	   for 8-bit models before the weight tables */
+	static Object [] expected( CMTKTransformation t, ImagePlus template, ImagePlus model ) {
+		int w = template.getWidth(), h = template.getHeight();
+		int d = template.getStackSize();
+		Calibration tc = template.getCalibration();
+		Calibration mc = model.getCalibration();
+		int mw = model.getWidth(), mh = model.getHeight();
+		int md = model.getStackSize();
+		int type = model.getType();
+		Object [] planes = new Object[md];
+		byte [][] bytes = new byte[md][];
+		for( int z = 0; z < md; ++z ) {
+			planes[z] = model.getStack().getPixels( z + 1 );
+			if( type == ImagePlus.GRAY8 )
+				bytes[z] = (byte[])planes[z];
+		}
+		Object [] result = new Object[d];
+		double [] p = new double[3];
+		for( int z = 0; z < d; ++z ) {
+			byte [] b = new byte[w * h];
+			short [] s = new short[w * h];
+			float [] f = new float[w * h];
+			result[z] = type == ImagePlus.GRAY8 ? b :
+				type == ImagePlus.GRAY16 ? (Object)s : f;
+			for( int y = 0; y < h; ++y )
+				for( int x = 0; x < w; ++x ) {
+					t.transformPoint( x * tc.pixelWidth, y * tc.pixelHeight,
+							  z * tc.pixelDepth, p );
+					double mx = p[0] / mc.pixelWidth;
+					double my = p[1] / mc.pixelHeight;
+					double mz = p[2] / mc.pixelDepth;
+					int i = x + w * y;
+					if( type == ImagePlus.GRAY8 ) {
+						b[i] = t.trilinearInterpolateByte( mx, my, mz,
+										   mw, mh, md, bytes );
+						continue;
+					}
+					double value = t.trilinearInterpolate( mx, my, mz,
+									       mw, mh, md, planes );
+					s[i] = (short)Math.max( 0, Math.min( 65535, Math.round( value ) ) );
+					f[i] = (float)value;
+				}
+		}
+		return result;
+	}
+
+	/* the voxel as the transformation reads it: unsigned */
+	static double value( Object plane, int index ) {
+		if( plane instanceof byte[] )
+			return ((byte[])plane)[index] & 0xFF;
+		return CMTKTransformation.value( plane, index );
+	}
+
+	static void assertTransformed( CMTKTransformation t, int type ) {
+		ImagePlus template = template();
+		ImagePlus model = model( type );
+		ImagePlus result = t.transform( template, model );
+		assertEquals( type, result.getType() );
+		assertEquals( template.getWidth(), result.getWidth() );
+		assertEquals( template.getHeight(), result.getHeight() );
+		assertEquals( template.getStackSize(), result.getStackSize() );
+		assertEquals( 1.25, result.getCalibration().pixelHeight, 0 );
+		Object [] expect = expected( t, template, model );
+		int nonzero = 0;
+		for( int z = 0; z < expect.length; ++z ) {
+			Object actual = result.getStack().getPixels( z + 1 );
+			for( int i = 0; i < template.getWidth() * template.getHeight(); ++i ) {
+				double e = value( expect[z], i );
+				double a = value( actual, i );
+				assertEquals( "slice " + z + ", pixel " + i, e, a, 0 );
+				if( a != 0 )
+					nonzero++;
+			}
+		}
+		assertTrue( nonzero > 0 );
+	}
+
+	@Test
+	public void testBytes() {
+		assertTransformed( grid( 1, 3 ), ImagePlus.GRAY8 );
+	}
+
+	@Test
+	public void testShortsAndFloats() {
+		assertTransformed( grid( 1, 4 ), ImagePlus.GRAY16 );
+		assertTransformed( grid( 1, 5 ), ImagePlus.GRAY32 );
+	}
+
+	/* the identity reproduces the model, unsigned for 16-bit */
+	@Test
+	public void testIdentity() {
+		CMTKTransformation t = grid( 0, 6 );
+		for( int type : new int[] { ImagePlus.GRAY16, ImagePlus.GRAY32 } ) {
+			ImagePlus model = image( type, 12, 10, 6, 1.5, 1.25, 2, 7 );
+			ImagePlus result = t.transform( model, model );
+			assertEquals( type, result.getType() );
+			int w = 12, h = 10;
+			int above = 0;
+			// the borders may round to outside the model
+			for( int z = 1; z < 5; ++z ) {
+				Object expect = model.getStack().getPixels( z + 1 );
+				Object actual = result.getStack().getPixels( z + 1 );
+				for( int y = 1; y < h - 1; ++y )
+					for( int x = 1; x < w - 1; ++x ) {
+						double e = value( expect, x + w * y );
+						double a = value( actual, x + w * y );
+						assertEquals( "voxel " + x + ", " + y + ", " + z,
+							      e, a, 1e-4 * Math.max( 1, Math.abs( e ) ) );
+						if( e > 32767 )
+							above++;
+					}
+			}
+			if( type == ImagePlus.GRAY16 )
+				assertTrue( above > 0 );
+		}
+	}
+
+	/* a random inverse, with some voxels without a template voxel */
+	static CMTKTransformation.Inverse randomInverse( ImagePlus template, ImagePlus model, long seed ) {
+		Random random = new Random( seed );
+		CMTKTransformation.Inverse inverse = new CMTKTransformation.Inverse( template, model );
+		int planeSize = model.getWidth() * model.getHeight();
+		ShortBuffer [][] components = { inverse.templateX, inverse.templateY, inverse.templateZ };
+		for( int c = 0; c < 3; ++c )
+			for( int z = 0; z < model.getStackSize(); ++z ) {
+				short [] plane = new short[planeSize];
+				for( int i = 0; i < planeSize; ++i )
+					plane[i] = random.nextInt( 10 ) == 0 ? Short.MIN_VALUE :
+						(short)random.nextInt( 1 << 16 );
+				components[c][z] = ShortBuffer.wrap( plane );
+			}
+		return inverse;
+	}
+
+	static void assertSameInverse( CMTKTransformation.Inverse expect, CMTKTransformation.Inverse actual ) {
+		assertEquals( expect.modelDepth, actual.modelDepth );
+		int [] e = new int[3], a = new int[3];
+		for( int z = 0; z < expect.modelDepth; ++z )
+			for( int y = 0; y < expect.modelHeight; ++y )
+				for( int x = 0; x < expect.modelWidth; ++x ) {
+					expect.transformPoint( x, y, z, e );
+					actual.transformPoint( x, y, z, a );
+					for( int c = 0; c < 3; ++c )
+						assertEquals( "voxel " + x + ", " + y + ", " + z,
+							      e[c], a[c] );
+				}
+	}
+
+	static File temporaryDirectory() throws IOException {
+		return Files.createTempDirectory( "cmtk" ).toFile();
+	}
+
+	static void delete( File directory ) {
+		for( File file : directory.listFiles() )
+			file.delete();
+		directory.delete();
+	}
+
+	static void truncate( File file ) throws IOException {
+		RandomAccessFile f = new RandomAccessFile( file, "rw" );
+		f.setLength( f.length() / 2 );
+		f.close();
+	}
+
+	@Test
+	public void testRawRoundTrip() throws IOException {
+		ImagePlus template = template();
+		ImagePlus model = model( ImagePlus.GRAY8 );
+		CMTKTransformation.Inverse inverse = randomInverse( template, model, 8 );
+		File directory = temporaryDirectory();
+		try {
+			File header = new File( directory, "inverse-raw.nhdr" );
+			File raw = new File( directory, "inverse.raw" );
+			inverse.writeRaw( header, raw );
+			assertEquals( 3L * 2 * 20 * 16 * 9, raw.length() );
+			assertSameInverse( inverse, CMTKTransformation.Inverse.map( header, template, model ) );
+
+			// a model of another size does not match
+			assertNull( CMTKTransformation.Inverse.map( header, template, template ) );
+			truncate( raw );
+			assertNull( CMTKTransformation.Inverse.map( header, template, model ) );
+		} finally {
+			delete( directory );
+		}
+	}
+
+	/* writes the inverse in the older gzipped format */
+	static void writeGzipped( CMTKTransformation.Inverse inverse, File directory ) throws IOException {
+		String [] names = { "inverse_x.gz", "inverse_y.gz", "inverse_z.gz" };
+		ShortBuffer [][] components = { inverse.templateX, inverse.templateY, inverse.templateZ };
+		int planeSize = inverse.modelWidth * inverse.modelHeight;
+		for( int c = 0; c < 3; ++c ) {
+			DataOutputStream dos = new DataOutputStream( new GZIPOutputStream(
+				new FileOutputStream( new File( directory, names[c] ) ) ) );
+			for( int z = 0; z < inverse.modelDepth; ++z )
+				for( int i = 0; i < planeSize; ++i )
+					dos.writeShort( components[c][z].get( i ) );
+			dos.close();
+		}
+		PrintWriter pw = new PrintWriter( new File( directory, "inverse.nhdr" ), "UTF-8" );
+		pw.println( "NRRD0004" );
+		pw.println( "type: short" );
+		pw.println( "endian: big" );
+		pw.println( "dimension: 4" );
+		pw.println( "sizes: " + inverse.modelWidth + " " + inverse.modelHeight + " " + inverse.modelDepth + " 3" );
+		pw.println( "encoding: gzip" );
+		pw.println( "data file: LIST" );
+		for( String name : names )
+			pw.println( name );
+		pw.close();
+	}
+
+	@Test
+	public void testGzipConversion() throws IOException {
+		ImagePlus template = template();
+		ImagePlus model = model( ImagePlus.GRAY8 );
+		CMTKTransformation.Inverse inverse = randomInverse( template, model, 9 );
+		File directory = temporaryDirectory();
+		try {
+			writeGzipped( inverse, directory );
+			File header = new File( directory, "inverse-raw.nhdr" );
+			File raw = new File( directory, "inverse.raw" );
+
+			CMTKTransformation t = grid( 1, 10 );
+			t.setOriginalFile( new File( directory, "registration" ) );
+			assertTrue( t.precalculatedInverseExists() );
+			assertSameInverse( inverse, t.inverse( template, model ) );
+			// converted to the raw cache
+			assertTrue( header.exists() );
+			assertSameInverse( inverse, CMTKTransformation.Inverse.map( header, template, model ) );
+
+			// a broken raw cache is replaced from the gzipped files
+			truncate( raw );
+			t = grid( 1, 10 );
+			t.setOriginalFile( new File( directory, "registration" ) );
+			assertSameInverse( inverse, t.inverse( template, model ) );
+			assertSameInverse( inverse, CMTKTransformation.Inverse.map( header, template, model ) );
+		} finally {
+			delete( directory );
+		}
+	}
+
+	/* without any cache, the inverse is computed and written */
+	@Test
+	public void testComputedInverse() throws IOException {
+		ImagePlus template = template();
+		ImagePlus model = model( ImagePlus.GRAY8 );
+		File directory = temporaryDirectory();
+		try {
+			CMTKTransformation t = grid( 1, 11 );
+			t.setOriginalFile( new File( directory, "registration" ) );
+			assertFalse( t.precalculatedInverseExists() );
+			CMTKTransformation.Inverse computed = t.computeInverse( template, model );
+			CMTKTransformation.Inverse inverse = t.inverse( template, model );
+			assertSameInverse( computed, inverse );
+			assertTrue( t.precalculatedInverseExists() );
+
+			// a broken raw cache without gzipped files is computed again
+			truncate( new File( directory, "inverse.raw" ) );
+			t = grid( 1, 11 );
+			t.setOriginalFile( new File( directory, "registration" ) );
+			assertSameInverse( computed, t.inverse( template, model ) );
+			assertSameInverse( computed, CMTKTransformation.Inverse.map(
+				new File( directory, "inverse-raw.nhdr" ), template, model ) );
+		} finally {
+			delete( directory );
+		}
+	}
+}
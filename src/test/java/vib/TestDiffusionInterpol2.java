@@ -0,0 +1,94 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.Test;
+
+/* The solvers must agree on the diffusion between two labels */
+
+public class TestDiffusionInterpol2 {
+	final static int w = 29, h = 23, d = 19;
+
+	static ImagePlus labels() {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			byte[] pixels = new byte[w * h];
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++) {
+					int dx = i - 7, dy = j - 8, dz = k - 9;
+					if (dx * dx + dy * dy + dz * dz < 16)
+						pixels[j * w + i] = 1;
+					else if (i > 20 && j > 4 && j < 19)
+						pixels[j * w + i] = 2;
+				}
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus("labels", stack);
+	}
+
+	static DisplacementField diffuse(int solver, float tolerance) {
+		return diffuse(solver, tolerance, DisplacementField.HEAP);
+	}
+
+	static DisplacementField diffuse(int solver, float tolerance,
+			int storage) {
+		ImagePlus labels = labels();
+		DiffusionInterpol2 interpol = new DiffusionInterpol2();
+		interpol.template = new InterpolatedImage(labels);
+		interpol.templateLabels = new InterpolatedImage(labels);
+		interpol.solver = solver;
+		interpol.displace = new DisplacementField(w, h, d, storage);
+		for (int k = 0; k < d; k++)
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++) {
+					int label = interpol.templateLabels
+						.getNoInterpol(i, j, k);
+					int index = 3 * (j * w + i);
+					interpol.displace.set(k, index, 4 * label);
+					interpol.displace.set(k, index + 1, -label);
+					interpol.displace.set(k, index + 2,
+						label == 1 ? 2 : 0);
+				}
+		interpol.iterate(tolerance, false);
+		return interpol.displace;
+	}
+
+	static void assertClose(DisplacementField expected,
+			DisplacementField actual, float delta) {
+		for (int k = 0; k < d; k++)
+			for (int i = 0; i < 3 * w * h; i++)
+				assertEquals(expected.get(k, i),
+					actual.get(k, i), delta);
+	}
+
+	@Test
+	public void testSolvers() {
+		DisplacementField gaussSeidel =
+			diffuse(DiffusionInterpol2.GAUSS_SEIDEL, 1e-5f);
+		DisplacementField redBlack =
+			diffuse(DiffusionInterpol2.RED_BLACK, 1e-5f);
+		DisplacementField multigrid =
+			diffuse(DiffusionInterpol2.MULTIGRID, 1e-5f);
+		assertClose(gaussSeidel, redBlack, 0.01f);
+		assertClose(gaussSeidel, multigrid, 0.01f);
+
+		// the labeled voxels keep their displacement
+		assertEquals(8, multigrid.get(9, 3 * (10 * w + 25)), 0);
+		assertEquals(4, multigrid.get(9, 3 * (8 * w + 7)), 0);
+	}
+
+	@Test
+	public void testStorage() {
+		DisplacementField heap =
+			diffuse(DiffusionInterpol2.MULTIGRID, 1e-3f);
+		assertClose(heap, diffuse(DiffusionInterpol2.MULTIGRID, 1e-3f,
+			DisplacementField.DIRECT), 0);
+		assertClose(heap, diffuse(DiffusionInterpol2.MULTIGRID, 1e-3f,
+			DisplacementField.MAPPED), 0);
+	}
+}
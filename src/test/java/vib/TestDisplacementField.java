@@ -0,0 +1,164 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+
+import org.junit.Test;
+
+public class TestDisplacementField {
+	@Test
+	public void testHalfPrecision() {
+		float[] exact = {
+			0, 1, -2, 0.5f, 1024, 65504, -65504, 1 / 1024f,
+			1 / (float)(1 << 24), -1 / (float)(1 << 14)
+		};
+		for (int i = 0; i < exact.length; i++)
+			assertEquals(exact[i], DisplacementField.halfToFloat(
+				DisplacementField.floatToHalf(exact[i])), 0);
+
+		// ties round to even
+		assertEquals(2048, round(2049), 0);
+		assertEquals(2052, round(2051), 0);
+		assertEquals(1, round(1 + 1 / 4096f), 0);
+		assertEquals(1 + 1 / 1024f, round(1 + 3 / 4096f), 0);
+		assertEquals(Float.POSITIVE_INFINITY, round(65520), 0);
+		assertEquals(0, round(1 / (float)(1 << 25)), 0);
+		assertEquals(2 / (float)(1 << 24),
+			round(1.5f / (1 << 24)), 0);
+		assertEquals(Float.NEGATIVE_INFINITY,
+			round(Float.NEGATIVE_INFINITY), 0);
+		assertEquals(Float.NaN, round(Float.NaN), 0);
+
+		for (float f = -100; f < 100; f += 0.0137f)
+			assertEquals(f, round(f), Math.abs(f) / 2048);
+	}
+
+	static float round(float f) {
+		return DisplacementField.halfToFloat(
+			DisplacementField.floatToHalf(f));
+	}
+
+	@Test
+	public void testStorage() {
+		int w = 5, h = 4, d = 3;
+		int[] storages = {
+			DisplacementField.HEAP, DisplacementField.DIRECT,
+			DisplacementField.MAPPED
+		};
+		for (int s = 0; s < storages.length; s++) {
+			DisplacementField field = new DisplacementField(w, h, d,
+				storages[s]);
+			assertEquals(4 * 3 * w * h * d, field.getSizeInBytes());
+			for (int k = 0; k < d; k++)
+				for (int i = 0; i < 3 * w * h; i++)
+					field.set(k, i, k * 100 + i / 8f);
+			DisplacementField half = field.copy(storages[s], true);
+			assertEquals(2 * 3 * w * h * d, half.getSizeInBytes());
+			for (int k = 0; k < d; k++)
+				for (int i = 0; i < 3 * w * h; i++) {
+					assertEquals(k * 100 + i / 8f,
+						field.get(k, i), 0);
+					assertEquals(k * 100 + i / 8f,
+						half.get(k, i), 0.125f);
+				}
+		}
+	}
+
+	@Test
+	public void testCache() {
+		DisplacementField a = new DisplacementField(10, 10, 10,
+			DisplacementField.HEAP);
+		DisplacementField b = a.copy(DisplacementField.HEAP, true);
+		DisplacementField c = a.copy(DisplacementField.HEAP, true);
+		DisplacementFieldCache cache =
+			new DisplacementFieldCache(a.getSizeInBytes());
+		cache.put("a", a);
+		assertSame(a, cache.get("a"));
+		cache.put("b", b);
+		assertNull(cache.get("a"));
+		cache.put("c", c);
+		assertSame(b, cache.get("b"));
+		assertSame(c, cache.get("c"));
+		assertEquals(a.getSizeInBytes(), cache.getSizeInBytes());
+
+		// the least recently used field goes first
+		cache.get("b");
+		cache.setMaxBytes(b.getSizeInBytes());
+		assertSame(b, cache.get("b"));
+		assertNull(cache.get("c"));
+
+		// too large on its own: kept, as the most recent field
+		cache.put("a", a);
+		assertSame(a, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(a.getSizeInBytes(), cache.getSizeInBytes());
+	}
+
+	@Test
+	public void testCacheStorage() {
+		DisplacementField a = new DisplacementField(10, 10, 10,
+			DisplacementField.HEAP);
+		DisplacementField b = a.copy(DisplacementField.DIRECT, false);
+		DisplacementField c = a.copy(DisplacementField.MAPPED, false);
+		DisplacementFieldCache cache =
+			new DisplacementFieldCache(a.getSizeInBytes());
+		cache.put("a", a);
+		// fields outside the heap do not count against the bound
+		cache.put("b", b);
+		assertSame(a, cache.get("a"));
+		assertSame(b, cache.get("b"));
+		assertEquals(a.getSizeInBytes(), cache.getSizeInBytes());
+		// but only the most recent of them is kept
+		cache.put("c", c);
+		assertSame(a, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertSame(c, cache.get("c"));
+
+		cache.setMaxBytes(0);
+		assertNull(cache.get("a"));
+		assertSame(c, cache.get("c"));
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	static class Key implements DisplacementFieldCache.WeakKey {
+		boolean cleared;
+
+		public boolean isCleared() {
+			return cleared;
+		}
+	}
+
+	@Test
+	public void testWeakKeys() {
+		DisplacementField a = new DisplacementField(10, 10, 10,
+			DisplacementField.HEAP);
+		DisplacementField b = a.copy(DisplacementField.HEAP, false);
+		DisplacementFieldCache cache =
+			new DisplacementFieldCache(4 * a.getSizeInBytes());
+		Key key = new Key();
+		cache.put(key, a);
+		key.cleared = true;
+		cache.put("b", b);
+		assertNull(cache.get(key));
+		assertEquals(b.getSizeInBytes(), cache.getSizeInBytes());
+
+		// the template labels are only weakly referenced
+		ImagePlus labels = new ImagePlus();
+		FloatMatrix[] transformations = { null, new FloatMatrix(1) };
+		DiffusionInterpol2.CacheKey key2 =
+			new DiffusionInterpol2.CacheKey(labels, transformations);
+		assertEquals(key2, new DiffusionInterpol2.CacheKey(labels,
+			transformations));
+		assertFalse(key2.isCleared());
+		key2.templateLabels.clear();
+		assertTrue(key2.isCleared());
+		assertFalse(key2.equals(key2));
+	}
+}
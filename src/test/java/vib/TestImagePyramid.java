@@ -0,0 +1,91 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/* Check when the cached levels are reused, and when they are not */
+
+public class TestImagePyramid {
+
+	static ImageStack stack(int w, int h, int d, int seed) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte)(i * 13 + k * 7 + seed);
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	@Before
+	public void setUp() {
+		ImagePyramid.clear();
+	}
+
+	@After
+	public void tearDown() {
+		ImagePyramid.setMaxBytes(Runtime.getRuntime().maxMemory() / 4);
+		ImagePyramid.clear();
+	}
+
+	@Test
+	public void testHit() {
+		ImagePlus image = new ImagePlus("image", stack(16, 12, 8, 0));
+		ImagePlus half = ImagePyramid.resample(image, 2);
+		assertTrue(half == ImagePyramid.resample(image, 2));
+		assertTrue(half != ImagePyramid.resampleMinEnt(image, 2));
+		assertTrue(half != ImagePyramid.resample(image, 4));
+		// the levels of the levels are cached, too
+		ImagePlus quarter = ImagePyramid.resample(half, 2);
+		assertTrue(quarter == ImagePyramid.resample(half, 2));
+	}
+
+	@Test
+	public void testChanges() {
+		ImagePlus image = new ImagePlus("image", stack(16, 12, 8, 0));
+		ImagePlus half = ImagePyramid.resample(image, 2);
+
+		// a new stack gives new levels
+		image.setStack(null, stack(16, 12, 8, 1));
+		ImagePlus other = ImagePyramid.resample(image, 2);
+		assertTrue(half != other);
+
+		// so does adding a slice
+		image.getStack().addSlice("", new byte[16 * 12]);
+		ImagePlus added = ImagePyramid.resample(image, 2);
+		assertTrue(added != other);
+		assertTrue(added == ImagePyramid.resample(image, 2));
+
+		// changes in place need invalidate()
+		ImagePyramid.invalidate(image);
+		assertTrue(added != ImagePyramid.resample(image, 2));
+	}
+
+	@Test
+	public void testEviction() {
+		ImagePlus image1 = new ImagePlus("1", stack(16, 12, 8, 0));
+		ImagePlus image2 = new ImagePlus("2", stack(16, 12, 8, 1));
+		// room for one level of 8 x 6 x 4 bytes
+		ImagePyramid.setMaxBytes(8 * 6 * 4);
+		ImagePlus half1 = ImagePyramid.resample(image1, 2);
+		assertTrue(half1 == ImagePyramid.resample(image1, 2));
+		ImagePlus half2 = ImagePyramid.resample(image2, 2);
+		assertTrue(half2 == ImagePyramid.resample(image2, 2));
+		// the least recently used level was evicted
+		assertTrue(half1 != ImagePyramid.resample(image1, 2));
+
+		// the most recent level is kept even when it is too large
+		ImagePyramid.setMaxBytes(0);
+		ImagePlus half = ImagePyramid.resample(image1, 2);
+		assertTrue(half == ImagePyramid.resample(image1, 2));
+	}
+}
@@ -0,0 +1,152 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/* Check the trilinear kernels against a straightforward implementation */
+
+public class TestInterpolatedImage {
+
+	static ImagePlus random(int w, int h, int d, boolean isShort) {
+		Random random = new Random(17);
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			if (isShort) {
+				short[] pixels = new short[w * h];
+				for (int i = 0; i < pixels.length; i++)
+					// above 32767, too (read as negative)
+					pixels[i] = (short)random.nextInt(65536);
+				stack.addSlice("", pixels);
+			} else {
+				byte[] pixels = new byte[w * h];
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = (byte)random.nextInt(256);
+				stack.addSlice("", pixels);
+			}
+		}
+		return new ImagePlus("random", stack);
+	}
+
+	/* the voxels outside the image count as 0 */
+	static double trilinear(InterpolatedImage ii,
+			double x, double y, double z) {
+		int x0 = (int)Math.floor(x);
+		int y0 = (int)Math.floor(y);
+		int z0 = (int)Math.floor(z);
+		double result = 0;
+		for (int k = 0; k < 2; k++)
+			for (int j = 0; j < 2; j++)
+				for (int i = 0; i < 2; i++) {
+					double weight =
+						(i == 0 ? x0 + 1 - x : x - x0) *
+						(j == 0 ? y0 + 1 - y : y - y0) *
+						(k == 0 ? z0 + 1 - z : z - z0);
+					result += weight * ii.getNoInterpolValue(
+						x0 + i, y0 + j, z0 + k);
+				}
+		return result;
+	}
+
+	/* getRow() must give the same values as get() */
+	void checkRow(InterpolatedImage ii, double x, double y, double z,
+			double dx, double dy, double dz, float[] row) {
+		double[] xs = new double[row.length], ys = new double[row.length],
+			zs = new double[row.length];
+		for (int i = 0; i < row.length; i++) {
+			xs[i] = x + i * dx;
+			ys[i] = y + i * dy;
+			zs[i] = z + i * dz;
+		}
+		ii.getRow(xs, ys, zs, row.length, row);
+		for (int i = 0; i < row.length; i++)
+			assertEquals((float)ii.interpol.get(xs[i], ys[i], zs[i]),
+				row[i], 0);
+	}
+
+	void checkKernels(boolean isShort) {
+		InterpolatedImage ii =
+			new InterpolatedImage(random(13, 11, 7, isShort));
+		Random random = new Random(5);
+		float[] row = new float[20];
+		for (int n = 0; n < 200; n++) {
+			// include samples beyond the border
+			double x = random.nextDouble() * 15 - 1;
+			double y = random.nextDouble() * 13 - 1;
+			double z = random.nextDouble() * 9 - 1;
+			double v = ii.interpol.get(x, y, z);
+			assertEquals(trilinear(ii, x, y, z), v, 1e-9);
+
+			double dx = 0.7, dy = -0.1, dz = 0.05;
+			checkRow(ii, x, y, z, dx, dy, dz, row);
+		}
+	}
+
+	@Test
+	public void testByte() {
+		checkKernels(false);
+	}
+
+	@Test
+	public void testShort() {
+		checkKernels(true);
+	}
+
+	@Test
+	public void testBSpline() {
+		InterpolatedImage ii =
+			new InterpolatedImage(random(13, 11, 7, true));
+		ii.setBSplineInterpolation();
+		// the spline interpolates the voxel values
+		for (int k = 0; k < 7; k++)
+			for (int j = 0; j < 11; j++)
+				for (int i = 0; i < 13; i++)
+					assertEquals(ii.getNoInterpolValue(i, j, k),
+						ii.interpol.get(i, j, k), 1e-2);
+
+		Random random = new Random(3);
+		float[] row = new float[20];
+		for (int n = 0; n < 50; n++) {
+			double x = random.nextDouble() * 13;
+			double y = random.nextDouble() * 11;
+			double z = random.nextDouble() * 7;
+			double dx = -0.3, dy = 0.2, dz = 0.1;
+			checkRow(ii, x, y, z, dx, dy, dz, row);
+		}
+	}
+
+	/* the coefficients follow the stack, as the levels of ImagePyramid */
+	@Test
+	public void testBSplineChanges() {
+		ImagePlus image = random(13, 11, 7, true);
+		BSplineCoefficients coefficients = BSplineCoefficients.get(image);
+		assertSame(coefficients, BSplineCoefficients.get(image));
+
+		// a new stack of other dimensions gives new coefficients
+		image.setStack(null, random(9, 8, 5, true).getStack());
+		BSplineCoefficients other = BSplineCoefficients.get(image);
+		assertTrue(coefficients != other);
+		assertEquals(9, other.w);
+		InterpolatedImage ii = new InterpolatedImage(image);
+		ii.setBSplineInterpolation();
+		assertEquals(ii.getNoInterpolValue(8, 7, 4),
+			ii.interpol.get(8, 7, 4), 1e-2);
+
+		// changes in place need invalidate()
+		((short[])image.getStack().getPixels(5))[8 + 9 * 7] = 1000;
+		assertSame(other, BSplineCoefficients.get(image));
+		BSplineCoefficients.invalidate(image);
+		assertTrue(other != BSplineCoefficients.get(image));
+		ii.setBSplineInterpolation();
+		assertEquals(1000, ii.interpol.get(8, 7, 4), 1e-2);
+	}
+}
@@ -0,0 +1,58 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.Test;
+
+/* Check the run-length index against the labels it was built from */
+
+public class TestMaterialRuns {
+
+	static ImagePlus labels(int w, int h, int d) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte)((i * 7 + k * 3) % 5 == 0 ?
+						1 : (i + k) % 11 == 0 ? 2 : 0);
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus("labels", stack);
+	}
+
+	@Test
+	public void testRuns() {
+		ImagePlus image = labels(17, 9, 4);
+		MaterialRuns runs = MaterialRuns.get(image, new int[] { 2, 1 });
+		assertTrue(runs == MaterialRuns.get(image, new int[] { 1, 2 }));
+
+		ImageStack stack = image.getStack();
+		long count = 0;
+		int[] spans = new int[17 + 1];
+		for (int k = 0; k < 4; k++) {
+			byte[] pixels = (byte[])stack.getPixels(k + 1);
+			for (int j = 0; j < 9; j++) {
+				boolean[] inSpan = new boolean[17];
+				int n = runs.getSpans(j, k, 3, 12, spans);
+				for (int s = 0; s < 2 * n; s += 2)
+					for (int i = spans[s]; i <= spans[s + 1]; i++)
+						inSpan[i] = true;
+				for (int i = 0; i < 17; i++) {
+					boolean label = pixels[i + 17 * j] != 0;
+					if (label)
+						count++;
+					assertEquals(label, runs.contains(i, j, k));
+					assertEquals(label && i >= 3 && i <= 12,
+							inSpan[i]);
+				}
+			}
+		}
+		assertEquals(count, runs.getVoxelCount());
+	}
+}
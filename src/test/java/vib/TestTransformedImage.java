@@ -0,0 +1,272 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import distance.Euclidean;
+import distance.ParzenMutualInformation;
+import distance.PixelPairs;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import util.Parallel;
+
+/* Check the distances, gradients and renderings of a TransformedImage */
+
+public class TestTransformedImage {
+
+	static ImagePlus image(String title, int w, int h, int d, int seed) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			byte[] pixels = new byte[w * h];
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++)
+					pixels[i + w * j] = (byte)(Math.sin(
+						(i + seed) * 0.3 + j * 0.2)
+						* Math.cos(k * 0.4 - j * 0.1)
+						* 100 + 128);
+			stack.addSlice("", pixels);
+		}
+		ImagePlus image = new ImagePlus(title, stack);
+		// non-trivial calibrations, so fromOrig and toTransform are used
+		Calibration calibration = new Calibration();
+		calibration.pixelWidth = 0.7;
+		calibration.pixelHeight = 0.9;
+		calibration.pixelDepth = 1.3;
+		calibration.xOrigin = seed;
+		image.setCalibration(calibration);
+		return image;
+	}
+
+	static FastMatrix orientation(int i) {
+		return FastMatrix.rotateEulerAt(i * 0.05, -i * 0.03, i * 0.02,
+			3, 3, 2).times(FastMatrix.translate(i * 0.1, 0, 0));
+	}
+
+	@Test
+	public void testParallelOrientations() {
+		TransformedImage t = new TransformedImage(
+			image("template", 6, 5, 3, 0),
+			image("model", 7, 6, 4, 3));
+		t.measure = new Euclidean();
+		t.threads = 1;
+
+		final int n = 64;
+		final float[] serial = new float[n];
+		for (int i = 0; i < n; i++) {
+			t.setTransformation(orientation(i));
+			serial[i] = t.getDistance();
+		}
+
+		final TransformedImage[] copies = new TransformedImage[4];
+		for (int i = 0; i < copies.length; i++) {
+			copies[i] = t.duplicate();
+			// the race on the scratch fields is rarely observable
+			assertTrue(copies[i].fromOrig != t.fromOrig);
+			assertTrue(copies[i].toTransform != t.toTransform);
+		}
+		final float[] parallel = new float[n];
+		for (int round = 0; round < 100; round++)
+			Parallel.forEach(copies.length, copies.length,
+					new Parallel.Loop() {
+				public void run(int c) {
+					for (int i = c; i < n; i += copies.length) {
+						copies[c].setTransformation(
+							orientation(i));
+						parallel[i] = copies[c].getDistance();
+					}
+				}
+			});
+		for (int i = 0; i < n; i++)
+			assertEquals("orientation " + i, serial[i], parallel[i], 0);
+	}
+
+	static FastMatrix euler(double[] p) {
+		return FastMatrix.translate(p[3], p[4], p[5]).times(
+			FastMatrix.rotateEulerAt(p[0], p[1], p[2], 6, 5, 3));
+	}
+
+	/* compare the analytic gradient with central differences */
+	@Test
+	public void testGradient() {
+		TransformedImage t = new TransformedImage(
+			image("template", 14, 12, 7, 0),
+			image("model", 15, 13, 8, 3));
+		t.measure = new Euclidean();
+
+		double[] p = { 0.1, -0.05, 0.07, 0.3, -0.2, 0.1 };
+		FastMatrix[] derivatives = new FastMatrix[6];
+		for (int i = 0; i < 3; i++)
+			derivatives[i] = FastMatrix.rotateEulerAtDerivative(
+				p[0], p[1], p[2], 6, 5, 3, i);
+		for (int i = 3; i < 6; i++)
+			derivatives[i] = new FastMatrix();
+		derivatives[3].a03 = derivatives[4].a13 =
+			derivatives[5].a23 = 1;
+
+		t.setTransformation(euler(p));
+		double[] gradient = new double[6];
+		float distance = t.getDistanceAndGradient(derivatives,
+			gradient);
+		assertEquals(t.getDistance(), distance, 1e-4 * distance);
+
+		double h = 1e-3;
+		for (int i = 0; i < 6; i++) {
+			double[] q = p.clone();
+			q[i] = p[i] + h;
+			t.setTransformation(euler(q));
+			double plus = t.getDistance();
+			q[i] = p[i] - h;
+			t.setTransformation(euler(q));
+			double minus = t.getDistance();
+			double expect = (plus - minus) / (2 * h);
+			assertEquals("parameter " + i, expect, gradient[i],
+				0.02 * Math.abs(expect) + 1e-3);
+		}
+	}
+
+	/* the row paths must see exactly the coordinates of the Iterator */
+	@Test
+	public void testIteratorCoordinates() {
+		final TransformedImage t = new TransformedImage(
+			image("template", 14, 12, 7, 0),
+			image("model", 15, 13, 8, 3));
+		t.setTransformation(orientation(5));
+		final int x0 = 2, y0 = 1, z0 = 1, x1 = 11, y1 = 10, z1 = 6;
+		final int[] count = new int[1];
+		t.scanRows(new TransformedImage.RowVisitor() {
+			TransformedImage.Iterator iter = t.iterator(false,
+				x0, y0, z0, x1, y1, z1);
+			public void row(int i0, int j, int k, int length,
+					Object pixels, int offset,
+					double[] x, double[] y, double[] z) {
+				for (int n = 0; n < length; n++) {
+					iter.next();
+					assertEquals(iter.i, i0 + n);
+					assertEquals(iter.j, j);
+					assertEquals(iter.k, k);
+					assertEquals(iter.x, x[n], 0);
+					assertEquals(iter.y, y[n], 0);
+					assertEquals(iter.z, z[n], 0);
+					count[0]++;
+				}
+			}
+		}, x0, y0, z0, x1, y1, z1);
+		assertEquals((x1 - x0) * (y1 - y0) * (z1 - z0), count[0]);
+	}
+
+	/* getDistance() must be what the Iterator gives, bit for bit */
+	@Test
+	public void testIteratorDistance() {
+		TransformedImage t = new TransformedImage(
+			image("template", 14, 12, 7, 0),
+			image("model", 15, 13, 8, 3));
+		t.measure = new Euclidean();
+		for (int i = 0; i < 8; i++) {
+			t.setTransformation(orientation(3 * i));
+			Euclidean expect = new Euclidean();
+			TransformedImage.Iterator iter = t.iterator(false,
+				t.x0, t.y0, t.z0, t.x1, t.y1, t.z1);
+			while (iter.next() != null)
+				expect.add(t.orig.getNoInterpol(iter.i,
+						iter.j, iter.k),
+					(float)t.transform.interpol.get(
+						iter.x, iter.y, iter.z));
+			t.threads = 1;
+			assertEquals(expect.distance(), t.getDistance(), 0);
+			t.threads = 4;
+			assertEquals(expect.distance(), t.getDistance(), 0);
+		}
+	}
+
+	/* a measure written before duplicate() and merge() existed */
+	static class AbsoluteDifference implements PixelPairs {
+		double sum;
+		long count;
+
+		public void reset() {
+			sum = 0;
+			count = 0;
+		}
+
+		public void add(float value1, float value2) {
+			sum += Math.abs(value1 - value2);
+			count++;
+		}
+
+		public float distance() {
+			return count == 0 ? 0 : (float)(sum / count);
+		}
+	}
+
+	/* measures which cannot be copied are evaluated serially */
+	@Test
+	public void testMeasureWithoutCopies() {
+		TransformedImage t = new TransformedImage(
+			image("template", 14, 12, 7, 0),
+			image("model", 15, 13, 8, 3));
+		t.measure = new AbsoluteDifference();
+		t.setTransformation(orientation(2));
+		assertNull(t.duplicate());
+
+		t.threads = 1;
+		float serial = t.getDistance();
+		ImagePlus difference = t.getDifferenceImage();
+		t.threads = 4;
+		assertEquals(serial, t.getDistance(), 0);
+		assertSameImage(difference, t.getDifferenceImage());
+	}
+
+	/* mutual information means nothing for single voxels */
+	@Test
+	public void testDifferenceImage() {
+		TransformedImage t = new TransformedImage(
+			image("template", 14, 12, 7, 0),
+			image("model", 15, 13, 8, 3));
+		t.setTransformation(orientation(3));
+		t.measure = new Euclidean();
+		ImagePlus expect = t.getDifferenceImage();
+		t.measure = new ParzenMutualInformation();
+		assertSameImage(expect, t.getDifferenceImage());
+	}
+
+	static void assertSameImage(ImagePlus expect, ImagePlus actual) {
+		assertEquals(expect.getStackSize(), actual.getStackSize());
+		for (int z = 1; z <= expect.getStackSize(); z++)
+			assertTrue(Arrays.equals(
+				(byte[])expect.getStack().getPixels(z),
+				(byte[])actual.getStack().getPixels(z)));
+	}
+
+	/* channels with other calibrations must get their own coordinates */
+	@Test
+	public void testChannels() {
+		ImagePlus template = image("template", 14, 12, 7, 0);
+		ImagePlus[] channels = {
+			image("model", 15, 13, 8, 3),
+			image("other calibration", 15, 13, 8, 5),
+			image("same calibration", 16, 11, 9, 3)
+		};
+		FastMatrix matrix = orientation(4);
+		TransformedImage t = new TransformedImage(template,
+			channels[0]);
+		t.setTransformation(matrix);
+		ImagePlus[] results = t.getTransformed(channels);
+		for (int c = 0; c < channels.length; c++) {
+			TransformedImage single = new TransformedImage(
+				template, channels[c]);
+			single.setTransformation(matrix);
+			single.threads = 1;
+			assertSameImage(single.getTransformed(), results[c]);
+		}
+	}
+}
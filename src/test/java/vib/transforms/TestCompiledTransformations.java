@@ -0,0 +1,106 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib.transforms;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import math3d.Point3d;
+
+import org.junit.Test;
+
+import vib.FastMatrix;
+
+/* The compiled chain must give exactly the coordinates of the chain:
+   the callers truncate them to voxels */
+
+public class TestCompiledTransformations {
+
+	static FastMatrixTransform affine(int i) {
+		return new FastMatrixTransform(FastMatrix.rotateEulerAt(
+			0.1 * i, -0.07 * i, 0.05 * i, 20, 15, 10).times(
+			FastMatrix.translate(0.3 * i, -0.2 * i, 0.1)));
+	}
+
+	static BooksteinTransform bookstein(int count, long seed) {
+		Random random = new Random(seed);
+		Point3d[] orig = new Point3d[count];
+		Point3d[] trans = new Point3d[count];
+		for (int i = 0; i < count; i++) {
+			orig[i] = new Point3d(random.nextDouble() * 40,
+					random.nextDouble() * 30,
+					random.nextDouble() * 20);
+			trans[i] = new Point3d(orig[i].x + random.nextDouble(),
+					orig[i].y + random.nextDouble(),
+					orig[i].z + random.nextDouble());
+		}
+		return new BooksteinTransform(orig, trans);
+	}
+
+	static void assertSameCoordinates(OrderedTransformations chain) {
+		CompiledTransformations compiled = chain.compile();
+		int n = 41;
+		double[] xs = new double[n], ys = new double[n],
+			zs = new double[n];
+		double[] expect = new double[3], actual = new double[3];
+		for (int k = 0; k < 20; k += 3)
+			for (int j = 0; j < 30; j += 7) {
+				for (int i = 0; i < n; i++) {
+					// non-integer points, as for the rows
+					xs[i] = i + 0.1 * j;
+					ys[i] = j - 0.3 * i / n;
+					zs[i] = k + 0.01 * i;
+				}
+				for (int i = 0; i < n; i++) {
+					chain.apply(xs[i], ys[i], zs[i], expect);
+					compiled.apply(xs[i], ys[i], zs[i],
+						actual);
+					for (int c = 0; c < 3; c++)
+						assertEquals(expect[c],
+							actual[c], 0);
+				}
+				double[] x = xs.clone(), y = ys.clone(),
+					z = zs.clone();
+				compiled.apply(x, y, z, n);
+				for (int i = 0; i < n; i++) {
+					chain.apply(xs[i], ys[i], zs[i], expect);
+					assertEquals(expect[0], x[i], 0);
+					assertEquals(expect[1], y[i], 0);
+					assertEquals(expect[2], z[i], 0);
+				}
+			}
+	}
+
+	@Test
+	public void testAffine() {
+		OrderedTransformations chain = new OrderedTransformations();
+		chain.addLast(affine(1));
+		chain.addLast(affine(2));
+		// an identity and an inverse, which fusing would round away
+		chain.addLast(new FastMatrixTransform(1.0));
+		chain.addLast(affine(3));
+		chain.addLast(affine(3).inverse());
+		assertSameCoordinates(chain);
+	}
+
+	@Test
+	public void testBookstein() {
+		OrderedTransformations chain = new OrderedTransformations();
+		chain.addLast(bookstein(12, 1));
+		chain.addLast(bookstein(8, 2));
+		assertSameCoordinates(chain);
+	}
+
+	@Test
+	public void testMixed() {
+		OrderedTransformations chain = new OrderedTransformations();
+		chain.addLast(affine(1));
+		chain.addLast(bookstein(12, 3));
+		chain.addLast(affine(2));
+		chain.addLast(affine(4));
+		chain.addLast(bookstein(6, 4));
+		chain.addLast(affine(5));
+		assertSameCoordinates(chain);
+	}
+}
@@ -0,0 +1,89 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib.transforms;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.junit.Test;
+
+/* The channels, transformed at once and in parallel, must be what each
+   of them gives on its own, and what the chain gives voxel by voxel */
+
+public class TestOrderedTransformations {
+
+	static ImagePlus image(String title, int w, int h, int d, int seed) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte)(i * 13 + k * 7 + seed);
+			stack.addSlice("", pixels);
+		}
+		return new ImagePlus(title, stack);
+	}
+
+	@Test
+	public void testChannels() {
+		OrderedTransformations chain = new OrderedTransformations();
+		chain.addLast(TestCompiledTransformations.affine(1));
+		chain.addLast(TestCompiledTransformations.bookstein(12, 1));
+		chain.addLast(TestCompiledTransformations.affine(2));
+
+		int w = 40, h = 30, d = 20;
+		ImagePlus template = image("template", w, h, d, 0);
+		ImagePlus[] channels = {
+			image("red", w, h, d, 1),
+			image("green", w, h, d, 2),
+			image("blue", w, h, d, 3)
+		};
+		int xmin = -2, xmax = w + 1, ymin = 1, ymax = h - 2;
+		int zmin = 0, zmax = d - 1;
+		// in parallel even on one processor
+		chain.threads = 4;
+		ImagePlus[] results = chain.createNewImagesReal(template,
+			channels, xmin, xmax, ymin, ymax, zmin, zmax, false);
+		assertEquals(channels.length, results.length);
+
+		OrderedTransformations inverse = chain.inverse();
+		int widthNew = xmax - xmin + 1, heightNew = ymax - ymin + 1;
+		double[] p = new double[3];
+		chain.threads = 1;
+		for (int c = 0; c < channels.length; c++) {
+			ImagePlus single = chain.createNewImageReal(template,
+				channels[c], xmin, xmax, ymin, ymax,
+				zmin, zmax, false);
+			ImageStack stack = channels[c].getStack();
+			assertEquals(zmax - zmin + 1, results[c].getStackSize());
+			for (int z = 0; z <= zmax - zmin; z++) {
+				byte[] expect = new byte[widthNew * heightNew];
+				for (int y = 0; y < heightNew; y++)
+					for (int x = 0; x < widthNew; x++) {
+						inverse.apply(x + xmin, y + ymin,
+							z + zmin, p);
+						int i = (int)p[0], j = (int)p[1];
+						int k = (int)p[2];
+						if (i >= 0 && i < w && j >= 0
+								&& j < h && k >= 0
+								&& k < d)
+							expect[x + y * widthNew] =
+								((byte[])stack
+								.getPixels(k + 1))
+								[i + j * w];
+					}
+				byte[] actual = (byte[])results[c].getStack()
+					.getPixels(z + 1);
+				byte[] alone = (byte[])single.getStack()
+					.getPixels(z + 1);
+				for (int i = 0; i < expect.length; i++) {
+					assertEquals("channel " + c + ", slice "
+						+ z + ", pixel " + i,
+						expect[i], actual[i]);
+					assertEquals(expect[i], alone[i]);
+				}
+			}
+		}
+	}
+}